@@ -0,0 +1,56 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.componentSystem.action;
+
+import org.terasology.craft.components.utility.CraftRecipeComponent;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Map;
+
+/**
+ * Recipes defined in code by other modules, next to the recipe prefabs.
+ * <p/>
+ * Recipes are added and removed in batches: every batch is parsed on all cores and the index is built again once,
+ * so a module which generates thousands of recipes should register them in one call rather than one by one.
+ * The batches are built in the background one after the other, in the order they were given, and the craft blocks
+ * find the new recipes from a later tick on. A module which is unloaded removes all its recipes by its name.
+ * <p/>
+ * A module with a very large number of recipes should ship them as a recipe pack (see RecipePackReader),
+ * which is read one recipe at a time instead of being built as definitions first.
+ */
+public interface CraftRecipeRegistry {
+
+    /*
+     * Add the recipes by their names, which must differ from the names of recipe prefabs.
+     * A recipe replaces the recipe of the same name registered earlier.
+     * The type of a recipe defined in code must not be SELF, as it has no prefab to craft.
+     * Returns the count of recipes accepted; a recipe which cannot be parsed is logged when it is built.
+     */
+    int addRecipes(String owner, Map<String, CraftRecipeComponent> recipes);
+
+    /*
+     * Add the recipes of a pack, as addRecipes does. The pack is read to its end but not closed.
+     * Nothing is added if the pack is not valid JSON.
+     */
+    int addRecipePack(String owner, Reader pack) throws IOException;
+
+    /*
+     * Remove the recipes of the module, returns their count. The count is known at once, the recipes are removed
+     * from the index in the background like they are added.
+     */
+    int removeRecipes(String owner);
+}
@@ -15,48 +15,90 @@
  */
 package org.terasology.craft.componentSystem.action;
 
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.terasology.craft.components.actions.CraftingActionComponent;
 import org.terasology.craft.components.utility.CraftRecipeComponent;
+import org.terasology.craft.components.utility.CraftStatisticsComponent;
+import org.terasology.craft.components.utility.CraftTagsComponent;
 import org.terasology.craft.events.crafting.AddItemEvent;
 import org.terasology.craft.events.crafting.ChangeLevelEvent;
 import org.terasology.craft.events.crafting.CheckRefinementEvent;
 import org.terasology.craft.events.crafting.DeleteItemEvent;
 import org.terasology.craft.rendering.CraftingGrid;
+import org.terasology.craft.utils.CraftRecipe;
+import org.terasology.craft.utils.CraftStations;
+import org.terasology.craft.utils.IngredientDictionary;
+import org.terasology.craft.utils.RecipeConflict;
+import org.terasology.craft.utils.RecipeIndex;
+import org.terasology.craft.utils.RecipeIndexCache;
+import org.terasology.craft.utils.RecipeMatchCache;
+import org.terasology.craft.utils.RecipeMatchState;
+import org.terasology.craft.utils.RecipeMatrix;
+import org.terasology.craft.utils.RecipeMatrixPool;
+import org.terasology.craft.utils.RecipePackReader;
+import org.terasology.craft.utils.RecipeSuggestion;
+import org.terasology.craft.utils.RecipeSymmetry;
+import org.terasology.engine.paths.PathManager;
 import org.terasology.entitySystem.entity.EntityManager;
 import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.entity.lifecycleEvents.BeforeDeactivateComponent;
+import org.terasology.entitySystem.entity.lifecycleEvents.OnActivatedComponent;
 import org.terasology.entitySystem.event.ReceiveEvent;
 import org.terasology.entitySystem.prefab.PrefabManager;
 import org.terasology.entitySystem.systems.BaseComponentSystem;
 import org.terasology.entitySystem.systems.RegisterMode;
 import org.terasology.entitySystem.systems.RegisterSystem;
+import org.terasology.entitySystem.systems.UpdateSubscriberSystem;
 import org.terasology.logic.characters.CharacterComponent;
 import org.terasology.logic.common.ActivateEvent;
 import org.terasology.logic.common.DisplayNameComponent;
+import org.terasology.logic.console.Command;
 import org.terasology.logic.inventory.InventoryManager;
 import org.terasology.logic.inventory.InventoryUtils;
 import org.terasology.logic.inventory.ItemComponent;
 import org.terasology.logic.players.LocalPlayer;
 import org.terasology.math.AABB;
+import org.terasology.math.Vector3i;
 import org.terasology.registry.In;
+import org.terasology.registry.Share;
 import org.terasology.world.WorldProvider;
 import org.terasology.world.block.Block;
 import org.terasology.world.block.BlockComponent;
 import org.terasology.entitySystem.prefab.Prefab;
 import org.terasology.world.block.BlockManager;
+import org.terasology.world.block.family.BlockFamily;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * @author Small-Jeeper
  */
 @RegisterSystem(RegisterMode.AUTHORITY)
-public class CraftingAction extends BaseComponentSystem {
+@Share(CraftRecipeRegistry.class)
+public class CraftingAction extends BaseComponentSystem implements UpdateSubscriberSystem, CraftRecipeRegistry {
     @In
     private WorldProvider worldProvider;
     @In
@@ -67,62 +109,1208 @@ public class CraftingAction extends BaseComponentSystem {
     private LocalPlayer localPlayer;
     @In
     private InventoryManager inventoryManager;
+    @In
+    private BlockManager blockManager;
+
+    private static final int MAX_STACK = 99;
+    private static final int MAX_SUGGESTIONS = 5;
+    private IngredientDictionary ingredients = new IngredientDictionary();
+    //the pool of the current recipes, every build of the recipes has a new one
+    private RecipeMatrixPool recipePool = new RecipeMatrixPool();
+    private RecipeIndex<CraftRecipe> entitesWithRecipes = new RecipeIndex<CraftRecipe>(ingredients);
+    private Map<Integer, ArrayList<RefinementData>> entitesWithRefinement = Maps.newHashMap();
+    private CraftStations<EntityRef> craftStations = new CraftStations<EntityRef>();
+    private ForkJoinPool matchPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private Map<EntityRef, PendingMatch> pendingMatches = Maps.newLinkedHashMap();
+    private boolean asyncMatching = true;
+    private boolean bitParallelComparison = true;
+    private boolean compiledPatterns = true;
+    private boolean cacheRecipes = true;
+    private RecipeIndexCache recipeCache;
+    private Map<String, String> recipeKeys = Maps.newHashMap();
+    private List<ParsedRecipe> prefabRecipes = Collections.emptyList();
+    private List<ParsedRecipe> codeRecipes = Collections.emptyList();
+    private List<CraftRecipe> queuedRecipes = Lists.newArrayList();
+    private List<RecipePackReader.Definition> queuedPackRecipes = Lists.newArrayList();
+    private boolean initialised = false;
+    //builds the recipes one change after the other, each from the recipes the change before it built
+    private ExecutorService recipeBuilder = Executors.newSingleThreadExecutor();
+    private Future<RecipeSnapshot> pendingRecipes;
+    //owner of every recipe registered in code, by its name
+    private Map<String, String> codeRecipeOwners = Maps.newHashMap();
+    private static final Logger logger = LoggerFactory.getLogger(CraftingAction.class);
+
+
+    @Override
+    public void initialise() {
+        long start = System.currentTimeMillis();
+        entitesWithRecipes.setPool(recipePool);
+        registerIngredients(ingredients);
+
+        List<Prefab> prefabs = Lists.newArrayList(prefManager.listPrefabs(CraftRecipeComponent.class));
+        recipeKeys = getRecipeKeys(prefabs);
+        RecipeIndexCache.Key key = cacheRecipes ? getRecipesKey(prefabs) : null;
+        List<ParsedRecipe> parsedRecipes = key == null ? null : readRecipeCache(key, prefabs);
+
+        if (parsedRecipes == null) {
+            int firstIngredient = ingredients.size();
+            int firstTag = ingredients.countTags();
+            parsedRecipes = parseRecipes(getPrefabRecipes(prefabs), ingredients, recipePool);
+
+            if (key != null) {
+                writeRecipeCache(key, parsedRecipes, firstIngredient, firstTag);
+            }
+        }
+
+        prefabRecipes = parsedRecipes;
+        codeRecipes = parseRecipes(queuedRecipes, ingredients, recipePool);
+        codeRecipes.addAll(parseDefinitions(queuedPackRecipes, ingredients, recipePool));
+        queuedRecipes = Lists.newArrayList();
+        queuedPackRecipes = Lists.newArrayList();
+
+        int countRecipes = 0;
+        int countRefinements = 0;
+
+        for (ParsedRecipe parsed : Iterables.concat(prefabRecipes, codeRecipes)) {
+            countRefinements += publishRefinements(parsed, entitesWithRefinement);
+
+            if (parsed.recipe != null && entitesWithRecipes.add(parsed.recipe)) {
+                logger.debug("Found recipe: {}", parsed.craftRecipe.getName());
+                countRecipes++;
+            }
+        }
+
+        initialised = true;
+        logger.info("Found {} recipes and {} refinements in {} ms", countRecipes, countRefinements, System.currentTimeMillis() - start);
+        logger.info(recipeFootprint());
+        prepareInBackground();
+    }
+
+    private static List<CraftRecipe> getPrefabRecipes(List<Prefab> prefabs) {
+        List<CraftRecipe> recipes = Lists.newArrayList();
+
+        for (Prefab prefab : prefabs) {
+            recipes.add(CraftRecipe.fromPrefab(prefab));
+        }
+
+        return recipes;
+    }
+
+    /*
+     * Parse the recipes in parallel, the results keep the order of the recipes
+     */
+    private List<ParsedRecipe> parseRecipes(List<CraftRecipe> recipes, final IngredientDictionary dictionary, final RecipeMatrixPool pool) {
+        List<Callable<ParsedRecipe>> parsers = Lists.newArrayList();
+
+        for (final CraftRecipe recipe : recipes) {
+            parsers.add(new Callable<ParsedRecipe>() {
+                @Override
+                public ParsedRecipe call() {
+                    return parseRecipe(recipe, dictionary, pool);
+                }
+            });
+        }
+
+        return parse(parsers);
+    }
+
+    /*
+     * Parse the recipes read from packs in parallel, their cells are translated to the dictionary
+     */
+    private List<ParsedRecipe> parseDefinitions(List<RecipePackReader.Definition> definitions, final IngredientDictionary dictionary,
+                                                final RecipeMatrixPool pool) {
+        List<Callable<ParsedRecipe>> parsers = Lists.newArrayList();
+
+        for (final RecipePackReader.Definition definition : definitions) {
+            parsers.add(new Callable<ParsedRecipe>() {
+                @Override
+                public ParsedRecipe call() {
+                    return parseDefinition(definition, dictionary, pool);
+                }
+            });
+        }
+
+        return parse(parsers);
+    }
+
+    private List<ParsedRecipe> parse(List<Callable<ParsedRecipe>> parsers) {
+        List<ParsedRecipe> parsedRecipes = Lists.newArrayList();
+
+        try {
+            for (Future<ParsedRecipe> future : matchPool.invokeAll(parsers)) {
+                try {
+                    parsedRecipes.add(future.get());
+                } catch (ExecutionException exception) {
+                    logger.error("Failed to parse a recipe", exception.getCause());
+                }
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while parsing the recipes");
+        }
+
+        return parsedRecipes;
+    }
+
+    /*
+     * Hash of everything the recipe index is built from: the ingredients registered so far and the recipe prefabs in their order
+     */
+    private RecipeIndexCache.Key getRecipesKey(List<Prefab> prefabs) {
+        RecipeIndexCache.Key key = new RecipeIndexCache.Key().update(ingredients);
+
+        for (Prefab prefab : prefabs) {
+            key.update(prefab.getName()).update(recipeKeys.get(prefab.getName()));
+        }
+
+        return key;
+    }
+
+    /*
+     * Hash of every recipe prefab by its name, to find the recipes which changed
+     */
+    private static Map<String, String> getRecipeKeys(List<Prefab> prefabs) {
+        Map<String, String> keys = Maps.newLinkedHashMap();
+
+        for (Prefab prefab : prefabs) {
+            keys.put(prefab.getName(), getRecipeKey(prefab.getComponent(CraftRecipeComponent.class)));
+        }
+
+        return keys;
+    }
+
+    private static String getRecipeKey(CraftRecipeComponent recipe) {
+        RecipeIndexCache.Key key = new RecipeIndexCache.Key();
+
+        key.update(recipe.countLevels)
+                .update(recipe.width)
+                .update(recipe.depth)
+                .update(recipe.fullMatch)
+                .update(recipe.shapeless)
+                .update(recipe.symmetry.size());
+
+        for (RecipeSymmetry symmetry : recipe.symmetry) {
+            key.update(symmetry.name());
+        }
+
+        Map<String, List<String>> levels = new TreeMap<String, List<String>>(recipe.recipe);
+        key.update(levels.size());
+
+        for (Map.Entry<String, List<String>> level : levels.entrySet()) {
+            key.update(level.getKey()).update(level.getValue().size());
+
+            for (String cell : level.getValue()) {
+                key.update(cell);
+            }
+        }
+
+        updateKey(key, recipe.variables);
+
+        Map<String, Map<String, String>> refinements = new TreeMap<String, Map<String, String>>(recipe.refinement);
+        key.update(refinements.size());
+
+        for (Map.Entry<String, Map<String, String>> refinement : refinements.entrySet()) {
+            key.update(refinement.getKey());
+            updateKey(key, refinement.getValue());
+        }
+
+        return key.toString();
+    }
+
+    private static void updateKey(RecipeIndexCache.Key key, Map<String, String> values) {
+        Map<String, String> sorted = new TreeMap<String, String>(values);
+        key.update(sorted.size());
+
+        for (Map.Entry<String, String> value : sorted.entrySet()) {
+            key.update(value.getKey()).update(value.getValue());
+        }
+    }
+
+    /*
+     * Recipes and refinements of the prefabs as they were parsed at an earlier start, null if there is no usable cache
+     */
+    private List<ParsedRecipe> readRecipeCache(RecipeIndexCache.Key key, List<Prefab> prefabs) {
+        RecipeIndexCache.Content content;
+
+        try {
+            content = getRecipeCache().read(key, ingredients);
+        } catch (IOException exception) {
+            logger.warn("Failed to read the recipe cache {}", getRecipeCache().getFile(key), exception);
+            return null;
+        }
+
+        if (content == null) {
+            return null;
+        }
+
+        Map<String, ParsedRecipe> parsedRecipes = Maps.newLinkedHashMap();
+
+        for (Prefab prefab : prefabs) {
+            parsedRecipes.put(prefab.getName(), new ParsedRecipe(CraftRecipe.fromPrefab(prefab)));
+        }
+
+        for (RecipeIndex.NormalizedRecipe<String> recipe : content.getRecipes()) {
+            ParsedRecipe parsed = parsedRecipes.get(recipe.getValue());
+
+            if (parsed == null) {
+                return null;
+            }
+            parsed.recipe = recipePool.intern(recipe.withValue(parsed.craftRecipe));
+        }
+
+        for (RecipeIndexCache.Refinement refinement : content.getRefinements()) {
+            ParsedRecipe parsed = parsedRecipes.get(refinement.getValue());
+
+            if (parsed == null) {
+                return null;
+            }
+
+            RefinementData refinementData = new RefinementData();
+            refinementData.instigator = refinement.getInstigator();
+            refinementData.target = refinement.getTarget();
+            refinementData.resultCount = refinement.getResultCount();
+            parsed.refinements.add(refinementData);
+        }
+
+        logger.info("Read {} recipes from the cache {}", content.getRecipes().size(), getRecipeCache().getFile(key));
+        return Lists.newArrayList(parsedRecipes.values());
+    }
+
+    private void writeRecipeCache(RecipeIndexCache.Key key, Collection<ParsedRecipe> parsedRecipes, int firstIngredient, int firstTag) {
+        RecipeIndexCache.Content content = new RecipeIndexCache.Content();
+
+        for (ParsedRecipe parsed : parsedRecipes) {
+            String name = parsed.craftRecipe.getName();
+
+            if (parsed.recipe != null) {
+                content.addRecipe(parsed.recipe.withValue(name));
+            }
+
+            for (RefinementData refinementData : parsed.refinements) {
+                content.addRefinement(new RecipeIndexCache.Refinement(name, refinementData.instigator, refinementData.target,
+                        refinementData.resultCount));
+            }
+        }
+
+        try {
+            getRecipeCache().write(key, ingredients, firstIngredient, firstTag, content);
+        } catch (IOException exception) {
+            logger.warn("Failed to write the recipe cache {}", getRecipeCache().getFile(key), exception);
+        }
+    }
+
+    private RecipeIndexCache getRecipeCache() {
+        if (recipeCache == null) {
+            recipeCache = new RecipeIndexCache(PathManager.getInstance().getHomePath().resolve("cache").resolve("crafting"));
+        }
+
+        return recipeCache;
+    }
+
+    /*
+     * Read the recipe and the refinements of a definition without touching the entity manager, so recipes can be parsed in parallel.
+     * Ingredients unknown so far are registered in the dictionary, which is safe to share between threads
+     */
+    private ParsedRecipe parseRecipe(CraftRecipe craftRecipe, IngredientDictionary dictionary, RecipeMatrixPool pool) {
+        CraftRecipeComponent recipe = craftRecipe.getDefinition();
+        ParsedRecipe parsed = parseRefinements(craftRecipe, dictionary);
+
+        if (recipe.recipe.size() > 0) {
+            try {
+                RecipeMatrix matrix = new RecipeMatrix(recipe.recipe, recipe.countLevels, recipe.width, recipe.depth, dictionary, recipe.variables);
+                parsed.recipe = normalizeRecipe(craftRecipe, matrix, pool);
+            } catch (IllegalArgumentException exception) {
+                logger.warn("Recipe: {}. {}", craftRecipe.getName(), exception.getMessage());
+            }
+        }
+
+        return parsed;
+    }
+
+    private ParsedRecipe parseDefinition(RecipePackReader.Definition definition, IngredientDictionary dictionary, RecipeMatrixPool pool) {
+        CraftRecipe craftRecipe = definition.getRecipe();
+        ParsedRecipe parsed = parseRefinements(craftRecipe, dictionary);
+        RecipeMatrix matrix = definition.getMatrix(dictionary);
+
+        if (matrix != null) {
+            try {
+                parsed.recipe = normalizeRecipe(craftRecipe, matrix, pool);
+            } catch (IllegalArgumentException exception) {
+                logger.warn("Recipe: {}. {}", craftRecipe.getName(), exception.getMessage());
+            }
+        }
+
+        return parsed;
+    }
+
+    private ParsedRecipe parseRefinements(CraftRecipe craftRecipe, IngredientDictionary dictionary) {
+        CraftRecipeComponent recipe = craftRecipe.getDefinition();
+        ParsedRecipe parsed = new ParsedRecipe(craftRecipe);
+
+        for (Map<String, String> refinement : recipe.refinement.values()) {
+            if (refinement.containsKey("instigator") && refinement.containsKey("target")) {
+
+                RefinementData refinementData = new RefinementData();
+                refinementData.instigator = getIngredientId(dictionary, refinement.get("instigator"));
+                refinementData.target = getIngredientId(dictionary, refinement.get("target"));
+
+                if (refinement.containsKey("resultCount")) {
+                    try {
+                        refinementData.resultCount = Byte.parseByte(refinement.get("resultCount"));
+                    } catch (NumberFormatException exception) {
+                        logger.warn("Refinement: {}. The resultCount must be a byte!", craftRecipe.getName());
+                    }
+                }
+
+                parsed.refinements.add(refinementData);
+            }
+        }
+
+        return parsed;
+    }
+
+    /*
+     * All orientations of the matrix of the recipe, kept in the pool
+     */
+    private static RecipeIndex.NormalizedRecipe<CraftRecipe> normalizeRecipe(CraftRecipe craftRecipe, RecipeMatrix matrix,
+                                                                             RecipeMatrixPool pool) {
+        CraftRecipeComponent recipe = craftRecipe.getDefinition();
+
+        if (recipe.shapeless) {
+            return pool.intern(RecipeIndex.normalizeShapeless(matrix, craftRecipe));
+        }
+
+        Set<RecipeSymmetry> symmetries = EnumSet.noneOf(RecipeSymmetry.class);
+        symmetries.addAll(recipe.symmetry);
+
+        return pool.intern(RecipeIndex.normalize(matrix, recipe.fullMatch, symmetries, craftRecipe));
+    }
+
+    /*
+     * Create the result entities of the parsed refinements, if they were not created before, and register them by target,
+     * on the main thread. A recipe registered in code refines into the prefab named by its result.
+     */
+    private int publishRefinements(ParsedRecipe parsed, Map<Integer, ArrayList<RefinementData>> refinements) {
+        Prefab resultPrefab = parsed.craftRecipe.getPrefab();
+
+        if (resultPrefab == null && !parsed.refinements.isEmpty()) {
+            resultPrefab = prefManager.getPrefab(parsed.craftRecipe.getDefinition().result);
+
+            if (resultPrefab == null) {
+                logger.warn("Refinement: {}. Unknown result {}", parsed.craftRecipe.getName(), parsed.craftRecipe.getDefinition().result);
+                return 0;
+            }
+        }
+
+        for (RefinementData refinementData : parsed.refinements) {
+            if (refinementData.resultPrefab == null) {
+                refinementData.resultPrefab = entityManager.create(resultPrefab);
+            }
+
+            if (!refinements.containsKey(refinementData.target)) {
+                refinements.put(refinementData.target, new ArrayList<RefinementData>());
+            }
+            logger.debug("Found refinement: {}", parsed.craftRecipe.getName());
+            refinements.get(refinementData.target).add(refinementData);
+        }
+
+        return parsed.refinements.size();
+    }
+
+    /*
+     * Build the fingerprint table of the default craft block on the recipe builder, before the hits are restored
+     * by postBegin. Building a table is synchronized, so a craft block looked up before the table is ready waits for it
+     * instead of building it a second time
+     */
+    private void prepareInBackground() {
+        final RecipeIndex<CraftRecipe> recipes = entitesWithRecipes;
+
+        recipeBuilder.execute(new Runnable() {
+            @Override
+            public void run() {
+                prepareRecipes(recipes);
+            }
+        });
+    }
+
+    private static void prepareRecipes(RecipeIndex<CraftRecipe> recipes) {
+        prepareDefaultGrid(recipes);
+
+        List<RecipeConflict<CraftRecipe>> conflicts = recipes.getConflicts();
+
+        for (RecipeConflict<CraftRecipe> conflict : conflicts) {
+            logger.warn("Recipe {}", conflict);
+        }
+
+        if (!conflicts.isEmpty()) {
+            logger.warn("Found {} recipe conflicts, the earlier recipes win", conflicts.size());
+        }
+    }
+
+    private static void prepareDefaultGrid(RecipeIndex<CraftRecipe> recipes) {
+        CraftingActionComponent defaultGrid = new CraftingActionComponent();
+        long start = System.currentTimeMillis();
+
+        recipes.prepare(defaultGrid.countLevels, defaultGrid.width, defaultGrid.depth);
+        logger.debug("Prepared the recipe index in {} ms", System.currentTimeMillis() - start);
+    }
+
+    /*
+     * Give an id to every item and block, so recipes and craft blocks can be compared by ids
+     */
+    private void registerIngredients(IngredientDictionary dictionary) {
+        registerIngredients(dictionary, prefManager.listPrefabs(ItemComponent.class), blockManager.listRegisteredBlockFamilies());
+    }
+
+    /*
+     * Needs no main thread once the item prefabs and block families are listed
+     */
+    private static void registerIngredients(IngredientDictionary dictionary, Iterable<Prefab> itemPrefabs, Iterable<BlockFamily> blockFamilies) {
+        for (Prefab prefab : itemPrefabs) {
+            int id = dictionary.register(prefab.getName());
+            DisplayNameComponent displayName = prefab.getComponent(DisplayNameComponent.class);
+
+            if (displayName != null) {
+                dictionary.addAlias(displayName.name, id);
+            }
+
+            CraftTagsComponent tags = prefab.getComponent(CraftTagsComponent.class);
+
+            if (tags != null) {
+                for (String tag : tags.tags) {
+                    dictionary.addTag(id, tag);
+                }
+            }
+        }
+
+        for (BlockFamily blockFamily : blockFamilies) {
+            int id = dictionary.register(blockFamily.getURI().toString());
+            dictionary.addAlias(blockFamily.getDisplayName(), id);
+
+            for (String category : blockFamily.getCategories()) {
+                dictionary.addTag(id, category);
+            }
+        }
+    }
+
+    private static int getIngredientId(IngredientDictionary dictionary, String name) {
+        int id = dictionary.getId(name);
+        return id == IngredientDictionary.UNKNOWN ? dictionary.register(name) : id;
+    }
+
+    /*
+     * Restore the hits of the recipes counted before the restart, and build the table of the default craft block
+     * again in the background with the recipes found most often first
+     */
+    @Override
+    public void postBegin() {
+        CraftStatisticsComponent statistics = getStatisticsEntity().getComponent(CraftStatisticsComponent.class);
+
+        Map<String, CraftRecipe> recipesByName = Maps.newHashMap();
+
+        for (ParsedRecipe parsed : Iterables.concat(prefabRecipes, codeRecipes)) {
+            recipesByName.put(parsed.craftRecipe.getName(), parsed.craftRecipe);
+        }
+
+        final Map<CraftRecipe, Long> hits = Maps.newHashMap();
+
+        for (Map.Entry<String, Long> recipeHits : statistics.recipeHits.entrySet()) {
+            CraftRecipe recipe = recipesByName.get(recipeHits.getKey());
+
+            if (recipe != null && recipeHits.getValue() != null) {
+                hits.put(recipe, recipeHits.getValue());
+            }
+        }
+
+        final RecipeIndex<CraftRecipe> recipes = entitesWithRecipes;
+
+        //after the table of initialise() on the same thread, so it cannot be published after the reorder
+        recipeBuilder.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Map.Entry<CraftRecipe, Long> recipeHits : hits.entrySet()) {
+                    recipes.setHits(recipeHits.getKey(), recipeHits.getValue());
+                }
+
+                recipes.reorderByHits();
+                prepareDefaultGrid(recipes);
+            }
+        });
+    }
+
+    /*
+     * The hits are only saved: reordering would drop the fingerprint tables at every autosave.
+     * They are reordered when the world is loaded again or the recipes change.
+     */
+    @Override
+    public void preSave() {
+        EntityRef statisticsEntity = getStatisticsEntity();
+        CraftStatisticsComponent statistics = statisticsEntity.getComponent(CraftStatisticsComponent.class);
+
+        for (Map.Entry<CraftRecipe, Long> recipeHits : entitesWithRecipes.getHits().entrySet()) {
+            statistics.recipeHits.put(recipeHits.getKey().getName(), recipeHits.getValue());
+        }
+
+        statisticsEntity.saveComponent(statistics);
+    }
+
+    /*
+     * Names of the recipes with how often they were found, the most often found first
+     */
+    public List<Map.Entry<String, Long>> getRecipeHits() {
+        List<Map.Entry<String, Long>> recipeHits = Lists.newArrayList();
+
+        for (Map.Entry<CraftRecipe, Long> hits : entitesWithRecipes.getHits().entrySet()) {
+            recipeHits.add(Maps.immutableEntry(hits.getKey().getName(), hits.getValue()));
+        }
+
+        Collections.sort(recipeHits, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> first, Map.Entry<String, Long> second) {
+                return second.getValue().compareTo(first.getValue());
+            }
+        });
+
+        return recipeHits;
+    }
+
+    @SuppressWarnings("unchecked")
+    private EntityRef getStatisticsEntity() {
+        for (EntityRef statisticsEntity : entityManager.getEntitiesWith(CraftStatisticsComponent.class)) {
+            return statisticsEntity;
+        }
+
+        return entityManager.create(new CraftStatisticsComponent());
+    }
+
+    @Override
+    public void shutdown() {
+        RecipeMatchCache<CraftRecipe> cache = entitesWithRecipes.getCache();
+        logger.info("Recipe cache: {} hits, {} misses", cache.getHits(), cache.getMisses());
+        recipeBuilder.shutdown();
+        matchPool.shutdown();
+    }
+
+    //the class is passed as a generic varargs array
+    @SuppressWarnings("unchecked")
+    private Iterable<EntityRef> getCraftBlocks() {
+        return entityManager.getEntitiesWith(CraftingActionComponent.class);
+    }
+
+    /*
+     * Search the recipes of every craft block again, after the recipes were reloaded or the world was loaded
+     */
+    public void revalidateRecipes() {
+        applyRecipes(findRecipes(takeSnapshots(getCraftBlocks())));
+    }
+
+    /*
+     * Memory of the recipe matrices, which the pool shares between recipes and orientations,
+     * and of the index with the fingerprint tables it keeps now
+     */
+    @Command(shortDescription = "Show how many recipe matrices are kept and the memory the recipe index takes")
+    public String recipeFootprint() {
+        RecipeIndex<CraftRecipe> recipes = entitesWithRecipes;
+        return "Recipe matrices: " + recipePool + "; recipe index with " + recipes.getCountFingerprintTables()
+                + " fingerprint tables: " + recipes.getFootprint() / 1024 + " KB";
+    }
+
+    /*
+     * Build the recipes again from the recipe prefabs in the background. The new index, refinements and dictionary
+     * replace the old ones together on a later tick; searches already running keep the index they started with.
+     * The prefabs and the ingredients are listed on the main thread, everything else is done by the recipe builder.
+     */
+    @Command(shortDescription = "Reload the recipe prefabs and search again the craft blocks they affect")
+    public String reloadRecipes() {
+        final List<Prefab> itemPrefabs = Lists.newArrayList(prefManager.listPrefabs(ItemComponent.class));
+        final List<BlockFamily> blockFamilies = Lists.newArrayList(blockManager.listRegisteredBlockFamilies());
+        final List<Prefab> prefabs = Lists.newArrayList(prefManager.listPrefabs(CraftRecipeComponent.class));
+
+        buildInBackground(new RecipeChange() {
+            @Override
+            public RecipeSnapshot apply(RecipeSnapshot base) {
+                IngredientDictionary dictionary = base.ingredients.copy();
+                RecipeMatrixPool pool = new RecipeMatrixPool();
+                registerIngredients(dictionary, itemPrefabs, blockFamilies);
+
+                Map<String, String> keys = getRecipeKeys(prefabs);
+                Set<String> changed = Sets.newHashSet();
+
+                for (Map.Entry<String, String> recipeKey : keys.entrySet()) {
+                    if (!recipeKey.getValue().equals(base.recipeKeys.get(recipeKey.getKey()))) {
+                        changed.add(recipeKey.getKey());
+                    }
+                }
+
+                for (String name : base.recipeKeys.keySet()) {
+                    if (!keys.containsKey(name)) {
+                        changed.add(name);
+                    }
+                }
+
+                List<ParsedRecipe> parsedRecipes = parseRecipes(getPrefabRecipes(prefabs), dictionary, pool);
+                return buildRecipes(dictionary, pool, keys, parsedRecipes, base.codeRecipes, changed, base);
+            }
+        });
+
+        return "Reloading " + prefabs.size() + " recipes";
+    }
+
+    /*
+     * The recipes are parsed in the background and found from a later tick on
+     */
+    @Override
+    public int addRecipes(String owner, Map<String, CraftRecipeComponent> recipes) {
+        final List<CraftRecipe> added = Lists.newArrayList();
+
+        for (Map.Entry<String, CraftRecipeComponent> recipe : recipes.entrySet()) {
+            if (recipe.getValue().type == CraftRecipeComponent.CraftRecipeType.SELF) {
+                logger.warn("Recipe: {}. A recipe registered by {} needs a result", recipe.getKey(), owner);
+                continue;
+            }
+
+            added.add(new CraftRecipe(recipe.getKey(), owner, recipe.getValue()));
+        }
+
+        final Set<String> changed = Sets.newHashSet(recipes.keySet());
+        setOwners(changed, added, owner);
+
+        if (!initialised) {
+            queuedRecipes.addAll(added);
+            return added.size();
+        }
+
+        buildInBackground(new RecipeChange() {
+            @Override
+            public RecipeSnapshot apply(RecipeSnapshot base) {
+                IngredientDictionary dictionary = base.ingredients.copy();
+                RecipeMatrixPool pool = new RecipeMatrixPool();
+                return replaceCodeRecipes(base, dictionary, pool, parseRecipes(added, dictionary, pool), changed);
+            }
+        });
+
+        return added.size();
+    }
+
+    /*
+     * The pack is read on the calling thread one recipe at a time into a dictionary of its own, so reading it
+     * registers nothing in the dictionary of the index. Only the cells by id are kept, never the cells by name;
+     * they are translated to the dictionary of the index when the recipes are parsed in the background.
+     */
+    @Override
+    public int addRecipePack(String owner, Reader pack) throws IOException {
+        RecipePackReader reader = new RecipePackReader(pack, new IngredientDictionary(), owner);
+        final List<RecipePackReader.Definition> definitions = Lists.newArrayList();
+        List<CraftRecipe> added = Lists.newArrayList();
+        final Set<String> changed = Sets.newHashSet();
+        RecipePackReader.Definition definition = reader.next();
+
+        for (; definition != null; definition = reader.next()) {
+            CraftRecipe craftRecipe = definition.getRecipe();
+
+            if (craftRecipe.getName() == null) {
+                logger.warn("Recipe pack of {}. {}", owner, definition.getError());
+                continue;
+            }
+
+            if (craftRecipe.getDefinition().type == CraftRecipeComponent.CraftRecipeType.SELF) {
+                logger.warn("Recipe: {}. A recipe registered by {} needs a result", craftRecipe.getName(), owner);
+                continue;
+            }
+
+            if (definition.getError() != null) {
+                logger.warn("Recipe: {}. {}", craftRecipe.getName(), definition.getError());
+            }
+
+            definitions.add(definition);
+            added.add(craftRecipe);
+            changed.add(craftRecipe.getName());
+        }
+
+        setOwners(changed, added, owner);
+
+        if (!initialised) {
+            queuedPackRecipes.addAll(definitions);
+            return definitions.size();
+        }
+
+        buildInBackground(new RecipeChange() {
+            @Override
+            public RecipeSnapshot apply(RecipeSnapshot base) {
+                IngredientDictionary dictionary = base.ingredients.copy();
+                RecipeMatrixPool pool = new RecipeMatrixPool();
+                return replaceCodeRecipes(base, dictionary, pool, parseDefinitions(definitions, dictionary, pool), changed);
+            }
+        });
+
+        return definitions.size();
+    }
+
+    /*
+     * The owners are kept on the main thread as the registry was asked, ahead of the builds,
+     * so removeRecipes knows its count without waiting for them
+     */
+    private void setOwners(Set<String> changed, List<CraftRecipe> added, String owner) {
+        codeRecipeOwners.keySet().removeAll(changed);
+
+        for (CraftRecipe recipe : added) {
+            codeRecipeOwners.put(recipe.getName(), owner);
+        }
+    }
+
+    /*
+     * Replace the recipes registered in code by the changed names with the parsed recipes
+     */
+    private RecipeSnapshot replaceCodeRecipes(RecipeSnapshot base, IngredientDictionary dictionary, RecipeMatrixPool pool,
+                                              List<ParsedRecipe> parsedRecipes, Set<String> changed) {
+        List<ParsedRecipe> newCodeRecipes = Lists.newArrayList();
+
+        for (ParsedRecipe parsed : base.codeRecipes) {
+            if (!changed.contains(parsed.craftRecipe.getName())) {
+                newCodeRecipes.add(parsed);
+            }
+        }
+        newCodeRecipes.addAll(parsedRecipes);
+
+        return buildRecipes(dictionary, pool, base.recipeKeys, base.prefabRecipes, newCodeRecipes, changed, base);
+    }
+
+    @Override
+    public int removeRecipes(String owner) {
+        final Set<String> removed = Sets.newHashSet();
+        Iterator<Map.Entry<String, String>> owners = codeRecipeOwners.entrySet().iterator();
+
+        while (owners.hasNext()) {
+            Map.Entry<String, String> recipeOwner = owners.next();
+
+            if (owner.equals(recipeOwner.getValue())) {
+                removed.add(recipeOwner.getKey());
+                owners.remove();
+            }
+        }
+
+        if (!initialised) {
+            Iterator<CraftRecipe> iterator = queuedRecipes.iterator();
+
+            while (iterator.hasNext()) {
+                if (owner.equals(iterator.next().getOwner())) {
+                    iterator.remove();
+                }
+            }
+
+            Iterator<RecipePackReader.Definition> packIterator = queuedPackRecipes.iterator();
+
+            while (packIterator.hasNext()) {
+                if (owner.equals(packIterator.next().getRecipe().getOwner())) {
+                    packIterator.remove();
+                }
+            }
+
+            return removed.size();
+        }
+
+        if (removed.isEmpty()) {
+            return 0;
+        }
+
+        buildInBackground(new RecipeChange() {
+            @Override
+            public RecipeSnapshot apply(RecipeSnapshot base) {
+                return replaceCodeRecipes(base, base.ingredients, new RecipeMatrixPool(), Collections.<ParsedRecipe>emptyList(), removed);
+            }
+        });
+
+        return removed.size();
+    }
+
+    /*
+     * Apply the change on the recipe builder thread to the recipes of the build submitted before it,
+     * or to the current recipes if there is none, so the changes are applied one after the other in the order
+     * they were asked for. update() swaps in the last build only. A change which fails leaves the recipes as they were.
+     */
+    private void buildInBackground(final RecipeChange change) {
+        final Future<RecipeSnapshot> previous = pendingRecipes;
+        final RecipeSnapshot current = new RecipeSnapshot(ingredients, recipePool, entitesWithRecipes,
+                new RecipeIndex<CraftRecipe>(ingredients), recipeKeys, prefabRecipes, codeRecipes, Collections.<String>emptySet());
+
+        pendingRecipes = recipeBuilder.submit(new Callable<RecipeSnapshot>() {
+            @Override
+            public RecipeSnapshot call() {
+                RecipeSnapshot base = getBase(previous, current);
+
+                try {
+                    return change.apply(base);
+                } catch (RuntimeException exception) {
+                    logger.error("Failed to build the recipes", exception);
+                    return base;
+                }
+            }
+        });
+    }
+
+    private static RecipeSnapshot getBase(Future<RecipeSnapshot> previous, RecipeSnapshot current) {
+        if (previous == null) {
+            return current;
+        }
+
+        try {
+            return previous.get();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return current;
+        } catch (ExecutionException exception) {
+            return current;
+        }
+    }
+
+    /*
+     * The index of all parsed recipes, prefab recipes first, with the hits carried over from the index of the base,
+     * and a second index of the recipes changed since the recipes which are swapped in now. Needs no main thread.
+     *
+     * Every build has a pool of its own, which the recipes parsed before are copied to, so the matrices of removed
+     * and changed recipes are dropped with the old pool instead of piling up. The parsed recipes of the base
+     * are never changed, as the base may still be the current snapshot.
+     */
+    private RecipeSnapshot buildRecipes(IngredientDictionary dictionary, RecipeMatrixPool pool, Map<String, String> keys,
+                                        List<ParsedRecipe> parsedPrefabRecipes, List<ParsedRecipe> parsedCodeRecipes, Set<String> changed,
+                                        RecipeSnapshot base) {
+        List<ParsedRecipe> newPrefabRecipes = inPool(parsedPrefabRecipes, pool);
+        List<ParsedRecipe> newCodeRecipes = inPool(parsedCodeRecipes, pool);
+        RecipeIndex<CraftRecipe> recipes = new RecipeIndex<CraftRecipe>(dictionary);
+        RecipeIndex<CraftRecipe> changedRecipes = new RecipeIndex<CraftRecipe>(dictionary);
+        Set<String> allChanged = Sets.newHashSet(base.changed);
+
+        recipes.setPool(pool);
+        changedRecipes.setPool(pool);
+        allChanged.addAll(changed);
+
+        Map<String, Long> previousHits = Maps.newHashMap();
+        for (Map.Entry<CraftRecipe, Long> recipeHits : base.recipes.getHits().entrySet()) {
+            previousHits.put(recipeHits.getKey().getName(), recipeHits.getValue());
+        }
+
+        for (ParsedRecipe parsed : Iterables.concat(newPrefabRecipes, newCodeRecipes)) {
+            String name = parsed.craftRecipe.getName();
+
+            if (parsed.recipe == null) {
+                continue;
+            }
+
+            recipes.add(parsed.recipe);
+
+            if (allChanged.contains(name)) {
+                changedRecipes.add(parsed.recipe);
+            }
 
-    private static final int MAX_STACK = 99;
-    private Map<String, ArrayList<Prefab>> entitesWithRecipes = Maps.newHashMap();
-    private Map<String, ArrayList<RefinementData>> entitesWithRefinement = Maps.newHashMap();
-    private static final String EMPTY_ROW = " ";
-    private static final Logger logger = LoggerFactory.getLogger(CraftingAction.class);
+            if (previousHits.containsKey(name)) {
+                recipes.setHits(parsed.craftRecipe, previousHits.get(name));
+            }
+        }
 
+        recipes.reorderByHits();
+        recipes.setBitParallelComparison(bitParallelComparison);
+        recipes.setCompiledPatterns(compiledPatterns);
+        prepareRecipes(recipes);
 
-    @Override
-    public void initialise() {
-        //prefMan.getPrefab()
-        for (Prefab prefab : prefManager.listPrefabs(CraftRecipeComponent.class)) {
-            CraftRecipeComponent recipe = prefab.getComponent(CraftRecipeComponent.class);
-
-            if (recipe.refinement.size() > 0) {
-                for (Map<String, String> refinement : recipe.refinement.values()) {
-                    if (refinement.containsKey("instigator") && refinement.containsKey("target")) {
-
-                        RefinementData refinementData = new RefinementData();
-                        refinementData.instigator = refinement.get("instigator").toLowerCase();
-                        refinementData.target = refinement.get("target").toLowerCase();
-
-                        if (refinement.containsKey("resultCount")) {
-                            try {
-                                refinementData.resultCount = Byte.parseByte(refinement.get("resultCount"));
-                            } catch (NumberFormatException exception) {
-                                logger.warn("Refinement: {}. The resultCount must be a byte!", prefab.getName());
-                            }
-                        }
+        return new RecipeSnapshot(dictionary, pool, recipes, changedRecipes, keys, newPrefabRecipes, newCodeRecipes, allChanged);
+    }
 
-                        refinementData.resultPrefab = entityManager.create(prefab);
+    private static List<ParsedRecipe> inPool(List<ParsedRecipe> parsedRecipes, RecipeMatrixPool pool) {
+        List<ParsedRecipe> copies = Lists.newArrayListWithCapacity(parsedRecipes.size());
 
-                        if (!entitesWithRefinement.containsKey(refinementData.target)) {
-                            entitesWithRefinement.put(refinementData.target, new ArrayList<RefinementData>());
-                        }
-                        logger.info("Found refinement: {}", prefab.getName());
-                        entitesWithRefinement.get(refinementData.target).add(refinementData);
-                    }
+        for (ParsedRecipe parsed : parsedRecipes) {
+            copies.add(parsed.inPool(pool));
+        }
+
+        return copies;
+    }
+
+    /*
+     * Swap in the new recipes on the main thread and search again the craft blocks whose recipe changed,
+     * which a changed recipe may match now, or which were being searched with the old index
+     */
+    private void swapRecipes(RecipeSnapshot snapshot) {
+        Map<Integer, ArrayList<RefinementData>> refinements = Maps.newHashMap();
+        Set<RefinementData> kept = Sets.newIdentityHashSet();
+
+        for (ParsedRecipe parsed : Iterables.concat(snapshot.prefabRecipes, snapshot.codeRecipes)) {
+            publishRefinements(parsed, refinements);
+            kept.addAll(parsed.refinements);
+        }
+
+        for (List<RefinementData> targetRefinements : entitesWithRefinement.values()) {
+            for (RefinementData refinementData : targetRefinements) {
+                if (!kept.contains(refinementData)) {
+                    refinementData.resultPrefab.destroy();
                 }
             }
+        }
 
-            if (recipe.recipe.size() > 0) {
-                String key = getRecipeKey(recipe.recipe);
-                if (!entitesWithRecipes.containsKey(key)) {
-                    entitesWithRecipes.put(key, new ArrayList<Prefab>());
-                }
+        ingredients = snapshot.ingredients;
+        recipePool = snapshot.pool;
+        entitesWithRecipes = snapshot.recipes;
+        entitesWithRefinement = refinements;
+        recipeKeys = snapshot.recipeKeys;
+        prefabRecipes = snapshot.prefabRecipes;
+        codeRecipes = snapshot.codeRecipes;
+
+        List<EntityRef> affected = Lists.newArrayList();
+
+        for (EntityRef craftBlockEntity : getCraftBlocks()) {
+            CraftingActionComponent craftingComponent = craftBlockEntity.getComponent(CraftingActionComponent.class);
+
+            if (craftingComponent == null || craftingComponent.isRefinement) {
+                continue;
+            }
+
+            if (pendingMatches.containsKey(craftBlockEntity)
+                    || (craftingComponent.recipe != null && snapshot.changed.contains(craftingComponent.recipe.getName()))
+                    || snapshot.changedRecipes.find(getCurrentMatchState(craftBlockEntity, craftingComponent)) != null) {
+                affected.add(craftBlockEntity);
+            }
+        }
+
+        for (EntityRef craftBlockEntity : affected) {
+            updatePossibleItem(craftBlockEntity);
+        }
+
+        logger.info("Updated the recipes: {} recipes, {} changed, {} craft blocks searched again",
+                entitesWithRecipes.size(), snapshot.changed.size(), affected.size());
+    }
+
+    /*
+     * Copy the grids of the craft blocks, on the main thread
+     */
+    public Map<EntityRef, RecipeMatchState> takeSnapshots(Iterable<EntityRef> craftBlocks) {
+        Map<EntityRef, RecipeMatchState> snapshots = Maps.newLinkedHashMap();
+
+        for (EntityRef craftBlockEntity : craftBlocks) {
+            CraftingActionComponent craftingComponent = craftBlockEntity.getComponent(CraftingActionComponent.class);
+
+            if (craftingComponent == null) {
+                continue;
+            }
+
+            snapshots.put(craftBlockEntity, getCurrentMatchState(craftBlockEntity, craftingComponent).copy());
+        }
+
+        return snapshots;
+    }
+
+    /*
+     * Search the recipes of the snapshots on all cores, then the suggestions of the snapshots which match none.
+     * The recipes must not change until it returns.
+     */
+    public Map<EntityRef, MatchResult> findRecipes(Map<EntityRef, RecipeMatchState> snapshots) {
+        List<EntityRef> craftBlocks = Lists.newArrayList(snapshots.keySet());
+        List<RecipeMatchState> states = Lists.newArrayList(snapshots.values());
+        RecipeIndex<CraftRecipe> recipes = entitesWithRecipes;
+        List<CraftRecipe> found = recipes.findAll(states, matchPool);
+        List<MatchTask> tasks = Lists.newArrayList();
+        Map<EntityRef, MatchResult> results = Maps.newLinkedHashMap();
+
+        for (int i = 0; i < craftBlocks.size(); i++) {
+            tasks.add(new MatchTask(recipes, ingredients, states.get(i), found.get(i)));
+        }
+
+        List<Future<MatchResult>> matches = matchPool.invokeAll(tasks);
 
-                logger.info("Found recipe: {}", prefab.getName());
-                entitesWithRecipes.get(key).add(prefab);
+        try {
+            for (int i = 0; i < craftBlocks.size(); i++) {
+                results.put(craftBlocks.get(i), matches.get(i).get());
             }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException exception) {
+            logger.warn("Failed to search the recipes", exception.getCause());
+        }
+
+        return results;
+    }
+
+    /*
+     * Store the results of findRecipes in the craft blocks, on the main thread
+     */
+    public void applyRecipes(Map<EntityRef, MatchResult> matches) {
+        for (Map.Entry<EntityRef, MatchResult> match : matches.entrySet()) {
+            applyRecipe(match.getKey(), match.getValue());
+        }
+    }
+
+    private void applyRecipe(EntityRef craftBlockEntity, MatchResult match) {
+        if (!craftBlockEntity.exists()) {
+            return;
+        }
+
+        CraftingActionComponent craftingComponent = craftBlockEntity.getComponent(CraftingActionComponent.class);
+
+        if (craftingComponent == null || craftingComponent.isRefinement) {
+            return;
+        }
 
+        CraftRecipe recipe = match.getRecipe();
+        craftingComponent.recipe = recipe;
+        craftingComponent.suggestions = match.getSuggestions();
+        craftingComponent.resultName = match.getResultName();
+
+        if (recipe == null) {
+            craftingComponent.possibleItem = EntityRef.NULL;
+            craftBlockEntity.saveComponent(craftingComponent);
+        } else {
+            //craftingComponent.possibleItem = createNewElement(recipe, craftingComponent.resultName);
+            //craftBlockEntity.saveComponent(craftingComponent);
+        }
+    }
+
+    /*
+     * Craft blocks placed next to each other are merged into one station,
+     * the fingerprint table for the size of its grid is built in the background
+     */
+    @ReceiveEvent(components = {CraftingActionComponent.class, BlockComponent.class})
+    public void onCraftBlockActivated(OnActivatedComponent event, EntityRef entity) {
+        CraftingActionComponent craftingComponent = entity.getComponent(CraftingActionComponent.class);
+        CraftStations.Station<EntityRef> station = craftStations.add(entity.getComponent(BlockComponent.class).getPosition(), entity,
+                craftingComponent.countLevels, craftingComponent.width, craftingComponent.depth);
+
+        if (station.size() > 1) {
+            final RecipeIndex<CraftRecipe> recipes = entitesWithRecipes;
+            final int levels = station.getLevels();
+            final int width = station.getCountZ() * station.getWidth();
+            final int height = station.getCountX() * station.getDepth();
+
+            matchPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    recipes.prepare(levels, width, height);
+                }
+            });
         }
     }
 
+    @ReceiveEvent(components = {CraftingActionComponent.class, BlockComponent.class})
+    public void onCraftBlockDeactivated(BeforeDeactivateComponent event, EntityRef entity) {
+        craftStations.remove(entity.getComponent(BlockComponent.class).getPosition());
+        pendingMatches.remove(entity);
+    }
+
+    /*
+     * Store the recipes searched on other threads if their grids did not change meanwhile,
+     * otherwise search again
+     */
     @Override
-    public void shutdown() {
+    public void update(float delta) {
+        if (pendingRecipes != null && pendingRecipes.isDone()) {
+            try {
+                swapRecipes(pendingRecipes.get());
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException exception) {
+                logger.error("Failed to build the recipes", exception.getCause());
+            } finally {
+                pendingRecipes = null;
+            }
+        }
+
+        if (pendingMatches.isEmpty()) {
+            return;
+        }
+
+        List<EntityRef> changed = Lists.newArrayList();
+        Iterator<Map.Entry<EntityRef, PendingMatch>> iterator = pendingMatches.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            Map.Entry<EntityRef, PendingMatch> pending = iterator.next();
+            PendingMatch match = pending.getValue();
+
+            if (!match.result.isDone()) {
+                continue;
+            }
+
+            iterator.remove();
+
+            if (!pending.getKey().exists()) {
+                continue;
+            }
+
+            if (!isCurrent(pending.getKey(), match)) {
+                changed.add(pending.getKey());
+                continue;
+            }
+
+            try {
+                applyRecipe(pending.getKey(), match.result.get());
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException exception) {
+                logger.warn("Failed to search the recipe", exception.getCause());
+            }
+        }
+
+        for (EntityRef craftBlockEntity : changed) {
+            updatePossibleItem(craftBlockEntity);
+        }
+    }
+
+    public void setAsyncMatching(boolean asyncMatching) {
+        this.asyncMatching = asyncMatching;
+    }
+
+    /*
+     * Compare grids with the suggested recipes by bit masks, or cell by cell if false
+     */
+    public void setBitParallelComparison(boolean bitParallel) {
+        this.bitParallelComparison = bitParallel;
+        entitesWithRecipes.setBitParallelComparison(bitParallel);
+    }
+
+    /*
+     * Search the recipes with tags by their compiled checks, or in the trie of their cells if false
+     */
+    public void setCompiledPatterns(boolean compiled) {
+        this.compiledPatterns = compiled;
+        entitesWithRecipes.setCompiledPatterns(compiled);
+    }
+
+    /*
+     * Whether the normalized recipes are kept in a file between starts, see RecipeIndexCache
+     */
+    public void setRecipeCache(boolean cacheRecipes) {
+        this.cacheRecipes = cacheRecipes;
+    }
+
+    /*
+     * Search the recipe of the craft block. In the async mode the grid is copied and searched on another thread,
+     * and the result is stored on a later tick
+     */
+    private void updatePossibleItem(EntityRef craftBlockEntity) {
+        CraftingActionComponent craftingComponent = craftBlockEntity.getComponent(CraftingActionComponent.class);
+
+        RecipeMatchState matchState = getCurrentMatchState(craftBlockEntity, craftingComponent);
+
+        if (!asyncMatching) {
+            applyRecipe(craftBlockEntity, new MatchTask(entitesWithRecipes, ingredients, matchState).call());
+            return;
+        }
+
+        RecipeMatchState snapshot = matchState.copy();
+        Future<MatchResult> match = matchPool.submit(new MatchTask(entitesWithRecipes, ingredients, snapshot));
+
+        pendingMatches.put(craftBlockEntity, new PendingMatch(match, matchState, snapshot.getVersion()));
+    }
+
+    /*
+     * The craft block still has the same grid (the station was not changed) in the same version
+     */
+    private boolean isCurrent(EntityRef craftBlockEntity, PendingMatch match) {
+        CraftingActionComponent craftingComponent = craftBlockEntity.getComponent(CraftingActionComponent.class);
+
+        if (craftingComponent == null) {
+            return false;
+        }
+
+        RecipeMatchState matchState = getCurrentMatchState(craftBlockEntity, craftingComponent);
+        return matchState == match.matchState && matchState.getVersion() == match.version;
     }
 
     @ReceiveEvent(components = {CraftingActionComponent.class})
@@ -211,7 +1399,7 @@ public class CraftingAction extends BaseComponentSystem {
 
             craftItem.stackCount = sendingCount;
             entityToCraftBlock.saveComponent(craftItem);
-            craftingComponent.getCurrentLevelElements().set(selectedCell, entityToCraftBlock);
+            craftingComponent.addItem(selectedCell, entityToCraftBlock);
 
         } else {
             EntityRef entityToCraftBlock = entityManager.copy(entityFromPlayer);
@@ -226,7 +1414,7 @@ public class CraftingAction extends BaseComponentSystem {
             //selectedEntity.saveComponent(tItem);
             //player.send(new ReceiveItemEvent(entityManager.copy(selectedEntity)));
             inventoryManager.giveItem(player,player,selectedEntity);
-            craftingComponent.getCurrentLevelElements().set(selectedCell, entityToCraftBlock);
+            craftingComponent.addItem(selectedCell, entityToCraftBlock);
         }
 
         playerItem.stackCount += returnedCount;
@@ -240,8 +1428,7 @@ public class CraftingAction extends BaseComponentSystem {
 
         entity.saveComponent(craftingComponent);
 
-        craftingComponent.possibleItem = tryCraft(entity);
-        entity.saveComponent(craftingComponent);
+        updatePossibleItem(entity);
 
     }    */
 
@@ -295,7 +1482,7 @@ public class CraftingAction extends BaseComponentSystem {
         inventoryManager.giveItem(player,player,selectedEntity);
 
         if (craftItem.stackCount == 0) {
-            craftingComponent.deleteItem(getSelectedItemFromCraftBlock(entity, craftingComponent.getCurrentLevel()));
+            craftingComponent.deleteItem(selectedCell);
             entity.saveComponent(craftingComponent);
         } else {
             selectedEntity.saveComponent(craftItem);
@@ -304,16 +1491,7 @@ public class CraftingAction extends BaseComponentSystem {
         checkEmptyCraftBlock(entity);
 
         if (entity.exists()) {
-
-            EntityRef possibleCraft = tryCraft(entity);
-
-            if (!possibleCraft.equals(EntityRef.NULL)) {
-                craftingComponent.possibleItem = possibleCraft;
-                entity.saveComponent(craftingComponent);
-            } else if (!craftingComponent.possibleItem.equals(EntityRef.NULL)) {
-                craftingComponent.possibleItem = EntityRef.NULL;
-                entity.saveComponent(craftingComponent);
-            }
+            updatePossibleItem(entity);
         }
     }*/
 
@@ -352,34 +1530,32 @@ public class CraftingAction extends BaseComponentSystem {
         //UIItemContainer toolbar = (UIItemContainer) CoreRegistry.get(GUIManager.class).getWindowById("hud").getElementById("toolbar");
         EntityRef heldItem = InventoryUtils.getItemAt(entity, characterComponent.selectedItem);
         ItemComponent instigatorItem = heldItem.getComponent(ItemComponent.class);
-        DisplayNameComponent instigatorItemInfo = heldItem.getComponent(DisplayNameComponent.class);
 
         int selectedCell = getSelectedItemFromCraftBlock(entity, craftingComponent.getCurrentLevel());
 
         EntityRef selectedEntity = craftingComponent.getCurrentLevelElements().get(selectedCell);
 
         ItemComponent targetItem = selectedEntity.getComponent(ItemComponent.class);
-        DisplayNameComponent targetItemInfo = selectedEntity.getComponent(DisplayNameComponent.class);
 
         if (instigatorItem == null || targetItem == null) {
             disablePossibleItem(craftingComponent);
             return;
         }
 
-        String instigatorName = instigatorItemInfo.name.toLowerCase();
-        String targetName = targetItemInfo.name.toLowerCase();
+        int instigatorId = ingredients.getId(heldItem);
+        int targetId = ingredients.getId(selectedEntity);
 
-        if (entitesWithRefinement.containsKey(targetName) && !entitesWithRefinement.get(targetName).isEmpty()) {
+        if (entitesWithRefinement.containsKey(targetId) && !entitesWithRefinement.get(targetId).isEmpty()) {
 
-            for (RefinementData refinementData : entitesWithRefinement.get(targetName)) {
-                if (refinementData.instigator.equals(instigatorName)) {
+            for (RefinementData refinementData : entitesWithRefinement.get(targetId)) {
+                if (refinementData.instigator == instigatorId) {
 
                     EntityRef refinementElement = refinementData.resultPrefab.copy();
 
                     CraftRecipeComponent craftRecipe = refinementElement.getComponent(CraftRecipeComponent.class);
                     craftRecipe.resultCount = refinementData.resultCount;
                     refinementElement.saveComponent(craftRecipe);
-                    EntityRef refinementElement = createNewElement(refinementData.resultPrefab);
+                    EntityRef refinementElement = createNewElement(refinementData.resultPrefab, null);
 
                     if (!refinementElement.equals(EntityRef.NULL)) {
                         craftingComponent.possibleItem = refinementElement;
@@ -420,61 +1596,178 @@ public class CraftingAction extends BaseComponentSystem {
      * Check current craft block for the recipe
      */
     /*private EntityRef tryCraft(EntityRef entity) {
-        CraftingActionComponent craftingComponent = entity.getComponent(CraftingActionComponent.class);
-        Map<String, List<String>> possibleRecipe = Maps.newHashMap();
+        CraftRecipe foundRecipe = findRecipe(entity, entity.getComponent(CraftingActionComponent.class));
+
+        //Recipe founded. Return result Entity!
+        if (foundRecipe != null) {
+            return createNewElement(foundRecipe, getCurrentMatchState(entity, entity.getComponent(CraftingActionComponent.class)));
+        }
+
+        return EntityRef.NULL;
+    }   */
 
-        //Converting entites from craft block to the string recipe
+    /*
+     * Search the recipe for the current content of the craft block, or of its station if it is merged with other blocks
+     */
+    private CraftRecipe findRecipe(EntityRef craftBlockEntity, CraftingActionComponent craftingComponent) {
+        return entitesWithRecipes.find(getCurrentMatchState(craftBlockEntity, craftingComponent));
+    }
 
-        for (String level : CraftingActionComponent.levels) {
+    /*
+     * The grid of the station of the craft block, or of the block alone
+     */
+    private RecipeMatchState getCurrentMatchState(EntityRef craftBlockEntity, CraftingActionComponent craftingComponent) {
+        CraftStations.Station<EntityRef> station = getStation(craftBlockEntity);
 
-            int countNotEmptyElements = 0;
-            ArrayList<EntityRef> craftLevel = craftingComponent.getLevelElements(level);
-            ArrayList<String> translatedLevel = new ArrayList<String>();
-
-            if (craftLevel != null) {
-                for (EntityRef craftElement : craftLevel) {
-                    DisplayNameComponent item = craftElement.getComponent(DisplayNameComponent.class);
-                    if (item != null) {
-                        translatedLevel.add(item.name.toLowerCase());
-                        countNotEmptyElements++;
-                    } else {
-                        translatedLevel.add(EMPTY_ROW);
-                    }
+        if (station != null && station.size() > 1) {
+            return getMatchState(station);
+        }
+
+        return getMatchState(craftingComponent);
+    }
+
+    private CraftStations.Station<EntityRef> getStation(EntityRef craftBlockEntity) {
+        BlockComponent blockComp = craftBlockEntity.getComponent(BlockComponent.class);
+        return blockComp == null ? null : craftStations.getStation(blockComp.getPosition());
+    }
+
+    /*
+     * The grid of a station is the grids of its blocks side by side, over the bounding box of the blocks.
+     * All blocks of a station have grids of the same size.
+     */
+    private RecipeMatchState getMatchState(CraftStations.Station<EntityRef> station) {
+        RecipeMatchState matchState = station.getMatchState();
+
+        if (matchState != null) {
+            for (Map.Entry<Vector3i, EntityRef> block : station.getBlocks().entrySet()) {
+                CraftingActionComponent blockComponent = block.getValue().getComponent(CraftingActionComponent.class);
+
+                if (blockComponent != null && !applyChanges(matchState, blockComponent, station.getChanges(block.getKey()), station, block.getKey())) {
+                    matchState = null;
+                    break;
+                }
+            }
+        }
 
+        if (matchState == null) {
+            matchState = new RecipeMatchState(station.getLevels(), station.getCountZ() * station.getWidth(), station.getCountX() * station.getDepth());
+
+            for (Map.Entry<Vector3i, EntityRef> block : station.getBlocks().entrySet()) {
+                CraftingActionComponent blockComponent = block.getValue().getComponent(CraftingActionComponent.class);
+
+                if (blockComponent == null) {
+                    continue;
+                }
+
+                for (int level = 0; level < station.getLevels(); level++) {
+                    ArrayList<EntityRef> craftLevel = blockComponent.getLevelElements(level);
+
+                    if (craftLevel != null) {
+                        for (int i = 0; i < craftLevel.size(); i++) {
+                            matchState.set(getStationIndex(station, block.getKey(), level, i), ingredients.getId(craftLevel.get(i)));
+                        }
+                    }
                 }
-                possibleRecipe.put(level, translatedLevel);
+            }
+
+            station.setMatchState(matchState);
+        }
+
+        for (Map.Entry<Vector3i, EntityRef> block : station.getBlocks().entrySet()) {
+            CraftingActionComponent blockComponent = block.getValue().getComponent(CraftingActionComponent.class);
+
+            if (blockComponent != null) {
+                station.setChanges(block.getKey(), blockComponent.getCountChanges());
             }
         }
 
-        String searchingKey = getRecipeKey(possibleRecipe);
+        return matchState;
+    }
+
+    private static int getStationIndex(CraftStations.Station<EntityRef> station, Vector3i position, int level, int slot) {
+        int countRows = station.getCountX() * station.getDepth();
+        int countColumns = station.getCountZ() * station.getWidth();
+        int row = (position.x - station.getMinX()) * station.getDepth() + slot / station.getWidth();
+        int column = (position.z - station.getMinZ()) * station.getWidth() + slot % station.getWidth();
+
+        return (level * countRows + row) * countColumns + column;
+    }
 
-        if (entitesWithRecipes.containsKey(searchingKey)) {
-            boolean isRecipe = false;
-            for (Prefab prefabWithRecipe : entitesWithRecipes.get(searchingKey)) {
+    /*
+     * The match state follows the cells changed by addItem and deleteItem of the component
+     */
+    private RecipeMatchState getMatchState(CraftingActionComponent craftingComponent) {
+        if (craftingComponent.matchState != null
+                && !applyChanges(craftingComponent.matchState, craftingComponent, craftingComponent.matchStateChanges, null, null)) {
+            craftingComponent.matchState = null;
+        }
 
-                CraftRecipeComponent craftRecipe = prefabWithRecipe.getComponent(CraftRecipeComponent.class);
+        if (craftingComponent.matchState == null) {
+            RecipeMatchState matchState = new RecipeMatchState(craftingComponent.countLevels, craftingComponent.width, craftingComponent.depth);
 
-                RecipeMatrix possibleRecipeMatrix = new RecipeMatrix(possibleRecipe, 3, 3);
-                RecipeMatrix craftMatrix = new RecipeMatrix(craftRecipe.recipe, 3, 3);
+            //Converting entites from craft block to the ingredient ids
 
-                isRecipe = !craftRecipe.fullMatch ?
-                        possibleRecipeMatrix.trim().equals(craftMatrix.trim()) :
-                        possibleRecipeMatrix.equals(craftMatrix);
+            for (int level = 0; level < craftingComponent.countLevels; level++) {
+                ArrayList<EntityRef> craftLevel = craftingComponent.getLevelElements(level);
 
-                //Recipe founded. Return result Entity!
-                if (isRecipe) {
-                    return createNewElement(prefabWithRecipe);
+                if (craftLevel != null) {
+                    for (int i = 0; i < craftLevel.size(); i++) {
+                        matchState.set(level, i, ingredients.getId(craftLevel.get(i)));
+                    }
                 }
             }
+
+            craftingComponent.matchState = matchState;
         }
 
-        return EntityRef.NULL;
-    }   */
+        craftingComponent.matchStateChanges = craftingComponent.getCountChanges();
+        return craftingComponent.matchState;
+    }
+
+    /*
+     * Set the cells the craft block changed after the first changes, in the grid of its station if there is one.
+     * False if some of the changes are no longer known and the grid must be built again.
+     */
+    private boolean applyChanges(RecipeMatchState matchState, CraftingActionComponent craftingComponent, int applied,
+                                 CraftStations.Station<EntityRef> station, Vector3i position) {
+        for (int change = applied; change != craftingComponent.getCountChanges(); change++) {
+            int cell = craftingComponent.getChangedCell(change);
+
+            if (cell < 0) {
+                return false;
+            }
+
+            int level = cell / craftingComponent.getCountSlots();
+            int slot = cell % craftingComponent.getCountSlots();
+            ArrayList<EntityRef> craftLevel = craftingComponent.getLevelElements(level);
+            int id = craftLevel == null ? IngredientDictionary.EMPTY : ingredients.getId(craftLevel.get(slot));
+
+            matchState.set(station == null ? cell : getStationIndex(station, position, level, slot), id);
+        }
+
+        return true;
+    }
+
+    /*
+     * Result of the recipe, where the variables of a template recipe are replaced
+     * by the short names of the ingredients they hold in the grid. Only reads the index and the dictionary,
+     * so it runs on the threads of the match pool.
+     */
+    private static String getResultName(CraftRecipe recipe, RecipeIndex<CraftRecipe> recipes, IngredientDictionary dictionary,
+                                        RecipeMatchState matchState) {
+        CraftRecipeComponent craftRecipe = recipe.getDefinition();
+
+        if (craftRecipe.type == CraftRecipeComponent.CraftRecipeType.SELF || craftRecipe.variables.isEmpty()) {
+            return craftRecipe.result;
+        }
+
+        return dictionary.bindVariables(craftRecipe.result, recipes.findBindings(matchState));
+    }
 
-    /*private EntityRef createNewElement(Prefab prefab) {
+    /*private EntityRef createNewElement(CraftRecipe foundRecipe, String resultName) {
 
-        Prefab resultPrefab = prefab;
-        CraftRecipeComponent craftRecipe = prefab.getComponent(CraftRecipeComponent.class);
+        Prefab resultPrefab = foundRecipe.getPrefab();
+        CraftRecipeComponent craftRecipe = foundRecipe.getDefinition();
 
         String name = "";
 
@@ -484,10 +1777,10 @@ public class CraftingAction extends BaseComponentSystem {
         }
 
         if (craftRecipe.type != CraftRecipeComponent.CraftRecipeType.SELF) {
-            resultPrefab = prefabManager.getPrefab(craftRecipe.result);
-            name = craftRecipe.result;
+            name = resultName;
+            resultPrefab = prefabManager.getPrefab(name);
         } else {
-            resultPrefab = prefab;
+            resultPrefab = foundRecipe.getPrefab();
             name = resultPrefab.getName();
         }
 
@@ -503,7 +1796,7 @@ public class CraftingAction extends BaseComponentSystem {
             Block recipeBlock = null;
             BlockItemFactory blockFactory = new BlockItemFactory(entityManager);
             if (craftRecipe.type != CraftRecipeComponent.CraftRecipeType.SELF) {
-                result = blockFactory.newInstance(BlockManager.getInstance().getBlockFamily(craftRecipe.result));
+                result = blockFactory.newInstance(BlockManager.getInstance().getBlockFamily(name));
             } else {
                 recipeBlock = BlockManager.getInstance().getBlock(resultPrefab);
 
@@ -536,8 +1829,7 @@ public class CraftingAction extends BaseComponentSystem {
         ItemComponent item = result.getComponent(ItemComponent.class);
 
         if (item != null) {
-            CraftRecipeComponent recipeComponent = prefab.getComponent(CraftRecipeComponent.class);
-            item.stackCount = recipeComponent.resultCount;
+            item.stackCount = craftRecipe.resultCount;
             result.saveComponent(item);
         } else {
             logger.warn("Failed to create entity with name {}", name);
@@ -559,11 +1851,9 @@ public class CraftingAction extends BaseComponentSystem {
             return;
         }
 
-        int countLevels = craftingComponent.getAllElements().size();
-
-        for (int i = 0; i < countLevels; i++) {
-            for (int j = 0; j < CraftingActionComponent.MAX_SLOTS; j++) {
-                ArrayList<EntityRef> list = craftingComponent.getLevelElements(CraftingActionComponent.levels[i]);
+        for (int i = 0; i < craftingComponent.countLevels; i++) {
+            for (int j = 0; j < craftingComponent.getCountSlots(); j++) {
+                ArrayList<EntityRef> list = craftingComponent.getLevelElements(i);
 
                 if (list == null) {
                     continue;
@@ -634,7 +1924,7 @@ public class CraftingAction extends BaseComponentSystem {
             if (newBlock.isTargetable()) {
                 aabb = newBlock.getBounds(blockComp.getPosition());
                 CraftingGrid craftingGridRenderer = new CraftingGrid();
-                craftingGridRenderer.setAABB(aabb, level);
+                craftingGridRenderer.setAABB(aabb, level, entity.getComponent(CraftingActionComponent.class));
                 blockSelected = craftingGridRenderer.getSelectedBlock();
             }
         }
@@ -642,26 +1932,161 @@ public class CraftingAction extends BaseComponentSystem {
         return blockSelected;
     }
 
-    private String getRecipeKey(Map<String, List<String>> map) {
-        String key = "" + map.size();
+    /**
+     * What a craft block is given after a search: its recipe with the name of its result,
+     * or the closest recipes if it matches none
+     */
+    public static final class MatchResult {
+        private final CraftRecipe recipe;
+        private final String resultName;
+        private final List<RecipeSuggestion<CraftRecipe>> suggestions;
+
+        private MatchResult(CraftRecipe recipe, String resultName, List<RecipeSuggestion<CraftRecipe>> suggestions) {
+            this.recipe = recipe;
+            this.resultName = resultName;
+            this.suggestions = suggestions;
+        }
 
-        for (List<String> currentLevel : map.values()) {
-            int countNotEmptyElements = 0;
-            for (String element : currentLevel) {
-                if (!element.equals(EMPTY_ROW)) {
-                    countNotEmptyElements++;
-                }
+        public CraftRecipe getRecipe() {
+            return recipe;
+        }
+
+        /*
+         * Null if there is no recipe
+         */
+        public String getResultName() {
+            return resultName;
+        }
+
+        public List<RecipeSuggestion<CraftRecipe>> getSuggestions() {
+            return suggestions;
+        }
+    }
+
+    /*
+     * Searches one grid, on a thread of the match pool or on the main thread. The grid must not change meanwhile.
+     */
+    private static class MatchTask implements Callable<MatchResult> {
+        private final RecipeIndex<CraftRecipe> recipes;
+        private final IngredientDictionary dictionary;
+        private final RecipeMatchState matchState;
+        private final CraftRecipe recipe;
+        private final boolean found;
+
+        private MatchTask(RecipeIndex<CraftRecipe> recipes, IngredientDictionary dictionary, RecipeMatchState matchState) {
+            this.recipes = recipes;
+            this.dictionary = dictionary;
+            this.matchState = matchState;
+            this.recipe = null;
+            this.found = false;
+        }
+
+        /*
+         * The recipe was searched already, e.g. by RecipeIndex.findAll
+         */
+        private MatchTask(RecipeIndex<CraftRecipe> recipes, IngredientDictionary dictionary, RecipeMatchState matchState, CraftRecipe recipe) {
+            this.recipes = recipes;
+            this.dictionary = dictionary;
+            this.matchState = matchState;
+            this.recipe = recipe;
+            this.found = true;
+        }
+
+        @Override
+        public MatchResult call() {
+            CraftRecipe match = found ? recipe : recipes.find(matchState);
+
+            if (match == null) {
+                return new MatchResult(null, null, recipes.suggest(matchState, MAX_SUGGESTIONS));
             }
-            key += "-" + countNotEmptyElements;
+
+            return new MatchResult(match, getResultName(match, recipes, dictionary, matchState),
+                    Collections.<RecipeSuggestion<CraftRecipe>>emptyList());
         }
+    }
 
-        return key;
+    private static class PendingMatch {
+        private final Future<MatchResult> result;
+        private final RecipeMatchState matchState;
+        private final int version;
+
+        private PendingMatch(Future<MatchResult> result, RecipeMatchState matchState, int version) {
+            this.result = result;
+            this.matchState = matchState;
+            this.version = version;
+        }
+    }
+
+    private static class ParsedRecipe {
+        private final CraftRecipe craftRecipe;
+        private final List<RefinementData> refinements;
+        private RecipeIndex.NormalizedRecipe<CraftRecipe> recipe;
+
+        private ParsedRecipe(CraftRecipe craftRecipe) {
+            this(craftRecipe, Lists.<RefinementData>newArrayList());
+        }
+
+        private ParsedRecipe(CraftRecipe craftRecipe, List<RefinementData> refinements) {
+            this.craftRecipe = craftRecipe;
+            this.refinements = refinements;
+        }
+
+        /*
+         * The same recipe with its matrices in the pool, this one if they are there already.
+         * The copy shares the refinements, so they are kept by swapRecipes.
+         */
+        private ParsedRecipe inPool(RecipeMatrixPool pool) {
+            RecipeIndex.NormalizedRecipe<CraftRecipe> interned = recipe == null ? null : pool.intern(recipe);
+
+            if (interned == recipe) {
+                return this;
+            }
+
+            ParsedRecipe copy = new ParsedRecipe(craftRecipe, refinements);
+            copy.recipe = interned;
+            return copy;
+        }
+    }
+
+    /**
+     * A change of the recipes, applied on the recipe builder thread to the recipes built before it
+     */
+    private interface RecipeChange {
+        RecipeSnapshot apply(RecipeSnapshot base);
+    }
+
+    /*
+     * Everything which is swapped at once when the recipes change. The lists of parsed recipes and the parsed recipes
+     * are never changed, they are replaced.
+     */
+    private static class RecipeSnapshot {
+        private final IngredientDictionary ingredients;
+        private final RecipeMatrixPool pool;
+        private final RecipeIndex<CraftRecipe> recipes;
+        private final RecipeIndex<CraftRecipe> changedRecipes;
+        private final Map<String, String> recipeKeys;
+        private final List<ParsedRecipe> prefabRecipes;
+        private final List<ParsedRecipe> codeRecipes;
+        private final Set<String> changed;
+
+        private RecipeSnapshot(IngredientDictionary ingredients, RecipeMatrixPool pool, RecipeIndex<CraftRecipe> recipes,
+                               RecipeIndex<CraftRecipe> changedRecipes, Map<String, String> recipeKeys, List<ParsedRecipe> prefabRecipes,
+                               List<ParsedRecipe> codeRecipes, Set<String> changed) {
+            this.ingredients = ingredients;
+            this.pool = pool;
+            this.recipes = recipes;
+            this.changedRecipes = changedRecipes;
+            this.recipeKeys = recipeKeys;
+            this.prefabRecipes = prefabRecipes;
+            this.codeRecipes = codeRecipes;
+            this.changed = changed;
+        }
     }
 
     private static class RefinementData {
         public byte resultCount = 1;
-        public String instigator = "";
-        public String target = "";
+        public int instigator = IngredientDictionary.UNKNOWN;
+        public int target = IngredientDictionary.UNKNOWN;
         public EntityRef resultPrefab = null;
     }
 }
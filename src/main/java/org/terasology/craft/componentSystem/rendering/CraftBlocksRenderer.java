@@ -154,7 +154,9 @@ public class CraftBlocksRenderer /*implements RenderSystem, EventHandlerSystem*/
 
                 boolean notCurrentLevel = false;
 
-                for (int y = 0; y < 3; y++) {
+                Vector3f cellSize = CraftingGrid.getCellSize(craftingActionComponent);
+
+                for (int y = 0; y < craftingActionComponent.countLevels; y++) {
                     ArrayList<EntityRef> currentItems = craftingActionComponent.getLevelElements(y);
                     notCurrentLevel = craftingActionComponent.getCurrentLevel() != y && foundedTarget;
 
@@ -162,15 +164,15 @@ public class CraftBlocksRenderer /*implements RenderSystem, EventHandlerSystem*/
                         continue;
                     }
 
-                    for (int x = 0; x < 3; x++) {
-                        for (int z = 0; z < 3; z++) {
+                    for (int x = 0; x < craftingActionComponent.depth; x++) {
+                        for (int z = 0; z < craftingActionComponent.width; z++) {
                             Vector3f bobOffset = new Vector3f(aabb.getMin());
-                            bobOffset.add(new Vector3f(0.15f, 0.15f, 0.15f));
-                            bobOffset.x += x * CraftingGrid.CUBE_SIZE.x;
-                            bobOffset.y += y * CraftingGrid.CUBE_SIZE.y;
-                            bobOffset.z += z * CraftingGrid.CUBE_SIZE.z;
+                            bobOffset.add(new Vector3f(0.45f * cellSize.x, 0.45f * cellSize.y, 0.45f * cellSize.z));
+                            bobOffset.x += x * cellSize.x;
+                            bobOffset.y += y * cellSize.y;
+                            bobOffset.z += z * cellSize.z;
 
-                            int i = x * 3 + z;
+                            int i = x * craftingActionComponent.width + z;
 
                             if (!currentItems.get(i).equals(EntityRef.NULL)) {
                                 BlockItemComponent blockItem = currentItems.get(i).getComponent(BlockItemComponent.class);
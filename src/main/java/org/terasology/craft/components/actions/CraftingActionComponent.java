@@ -16,34 +16,81 @@
 package org.terasology.craft.components.actions;
 
 import com.google.common.collect.Maps;
+import org.terasology.craft.utils.CraftRecipe;
+import org.terasology.craft.utils.RecipeMatchState;
+import org.terasology.craft.utils.RecipeSuggestion;
 import org.terasology.entitySystem.Component;
 import org.terasology.entitySystem.entity.EntityRef;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 /**
  * @author Small-Jeeper
  */
 public class CraftingActionComponent implements Component {
+    private static final int MAX_CHANGED_CELLS = 64;
+
     private Map<String, ArrayList<EntityRef>> elements = Maps.newHashMap();
 
     public static String[] levels = {"bottom", "middle", "top"};
 
+    /*
+     * Size of the grid: cells in a row, rows in a level and levels.
+     * The slot of the cell in the row x and the column z is x * width + z
+     */
+    public int width = 3;
+    public int depth = 3;
+    public int countLevels = 3;
+
     public EntityRef possibleItem = EntityRef.NULL;
     public EntityRef lastSelected = EntityRef.NULL;
     public boolean isRefinement = false;
 
-    public static final int MAX_SLOTS = 9;
-    public static final int MAX_LEVEL = 3;
+    /*
+     * Recipes closest to the grid while it matches none, the closest first, with the cells to change.
+     * Not saved: it is searched again with the possible item.
+     */
+    public transient List<RecipeSuggestion<CraftRecipe>> suggestions = Collections.emptyList();
+
+    /*
+     * Recipe the grid matches, null if none. Not saved: CraftingAction reloading the recipes
+     * searches again the craft blocks whose recipe changed.
+     */
+    public transient CraftRecipe recipe = null;
+
+    /*
+     * Name of the result of the recipe, with the variables of a template recipe replaced
+     * by the ingredients they hold in the grid. Not saved, like the recipe.
+     */
+    public transient String resultName = null;
+
+    /*
+     * Ingredient ids of the cells, kept up to date by CraftingAction from the changed cells.
+     * Not saved: it is built again from the elements when it is needed.
+     */
+    public transient RecipeMatchState matchState = null;
+
+    /*
+     * Count of changes the match state has followed, see getChangedCell()
+     */
+    public transient int matchStateChanges = 0;
+
+    /*
+     * The last cells changed by addItem and deleteItem, as level * getCountSlots() + slot, in a ring
+     */
+    private transient int[] changedCells = null;
+    private transient int countChanges = 0;
 
     private int currentItemSlot = 0;
     private int currentLevel = 0;
 
     public void increaseLevel() {
         currentLevel++;
-        if (currentLevel >= MAX_LEVEL) {
-            currentLevel = (MAX_LEVEL - 1);
+        if (currentLevel >= countLevels) {
+            currentLevel = (countLevels - 1);
         }
     }
 
@@ -56,10 +103,10 @@ public class CraftingActionComponent implements Component {
     }
 
     public void addItem(int slot, EntityRef entity) {
-        if (!elements.containsKey(levels[currentLevel])) {
+        if (!elements.containsKey(getLevelName(currentLevel))) {
             ArrayList<EntityRef> list = new ArrayList<EntityRef>();
 
-            for (int i = 0; i < MAX_SLOTS; i++) {
+            for (int i = 0; i < getCountSlots(); i++) {
                 if (slot == i) {
                     list.add(entity);
                 } else {
@@ -67,24 +114,27 @@ public class CraftingActionComponent implements Component {
                 }
             }
 
-            elements.put(levels[currentLevel], list);
+            elements.put(getLevelName(currentLevel), list);
+            addChange(currentLevel, slot);
 
             return;
         }
 
-        elements.get(levels[currentLevel]).set(slot, entity);
+        elements.get(getLevelName(currentLevel)).set(slot, entity);
+        addChange(currentLevel, slot);
     }
 
     public void deleteItem(int slot) {
-        if (!elements.containsKey(levels[currentLevel])) {
+        if (!elements.containsKey(getLevelName(currentLevel))) {
             return;
         }
 
-        ArrayList<EntityRef> list = elements.get(levels[currentLevel]);
+        ArrayList<EntityRef> list = elements.get(getLevelName(currentLevel));
         list.set(slot, EntityRef.NULL);
+        addChange(currentLevel, slot);
 
-
-        for (String key : levels) {
+        for (int level = 0; level < countLevels; level++) {
+            String key = getLevelName(level);
 
             if (!elements.containsKey(key)) {
                 continue;
@@ -104,12 +154,13 @@ public class CraftingActionComponent implements Component {
     }
 
     public void deleteItem(int level, int slot) {
-        if (!elements.containsKey(levels[level])) {
+        if (!elements.containsKey(getLevelName(level))) {
             return;
         }
 
-        ArrayList<EntityRef> list = elements.get(levels[level]);
+        ArrayList<EntityRef> list = elements.get(getLevelName(level));
         list.set(slot, EntityRef.NULL);
+        addChange(level, slot);
 
         for (EntityRef entity : list) {
             if (!entity.equals(EntityRef.NULL)) {
@@ -117,7 +168,39 @@ public class CraftingActionComponent implements Component {
             }
         }
 
-        elements.remove(levels[level]);
+        elements.remove(getLevelName(level));
+    }
+
+    /*
+     * Count of cells changed by addItem and deleteItem since the component was created
+     */
+    public int getCountChanges() {
+        return countChanges;
+    }
+
+    /*
+     * Cell changed by the change with the given number, as level * getCountSlots() + slot,
+     * or -1 if the change is too old to be kept and whoever follows the cells must read them all again
+     */
+    public int getChangedCell(int change) {
+        if (changedCells == null || countChanges - change > MAX_CHANGED_CELLS || countChanges - change <= 0) {
+            return -1;
+        }
+
+        return changedCells[change & (MAX_CHANGED_CELLS - 1)];
+    }
+
+    private void addChange(int level, int slot) {
+        if (changedCells == null) {
+            changedCells = new int[MAX_CHANGED_CELLS];
+        }
+
+        changedCells[countChanges & (MAX_CHANGED_CELLS - 1)] = level * getCountSlots() + slot;
+        countChanges++;
+    }
+
+    public int getCountSlots() {
+        return width * depth;
     }
 
     public int getCurrentLevel() {
@@ -125,11 +208,11 @@ public class CraftingActionComponent implements Component {
     }
 
     public ArrayList<EntityRef> getLevelElements(int level) {
-        if (!elements.containsKey(levels[level])) {
+        if (!elements.containsKey(getLevelName(level))) {
             return null;
         }
 
-        return elements.get(levels[level]);
+        return elements.get(getLevelName(level));
     }
 
     public ArrayList<EntityRef> getLevelElements(String level) {
@@ -141,15 +224,22 @@ public class CraftingActionComponent implements Component {
     }
 
     public ArrayList<EntityRef> getCurrentLevelElements() {
-        if (!elements.containsKey(levels[currentLevel])) {
+        if (!elements.containsKey(getLevelName(currentLevel))) {
             addItem(0, EntityRef.NULL);
         }
 
-        return elements.get(levels[currentLevel]);
+        return elements.get(getLevelName(currentLevel));
     }
 
     public Map<String, ArrayList<EntityRef>> getAllElements() {
         return elements;
     }
 
+    /*
+     * The first levels keep their names, the next ones are named by their index
+     */
+    public static String getLevelName(int level) {
+        return level < levels.length ? levels[level] : String.valueOf(level);
+    }
+
 }
@@ -1,6 +1,8 @@
 package org.terasology.craft.components.utility;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import org.terasology.craft.utils.RecipeSymmetry;
 import org.terasology.entitySystem.Component;
 
 import java.util.List;
@@ -21,7 +23,38 @@ public class CraftRecipeComponent implements Component {
     public String result = "";
 
     public boolean fullMatch = true;
+
+    /*
+     * Size of the grid the recipe is written for, as in CraftingActionComponent.
+     * A full match recipe only matches craft blocks of this size, other recipes match any craft block they fit in
+     */
+    public int width = 3;
+    public int depth = 3;
+    public int countLevels = 3;
+
+    /*
+     * Only the ingredients of the recipe and their counts matter, not the cells they lie in
+     */
+    public boolean shapeless = false;
+
+    /*
+     * The recipe can always be rotated around the vertical axis.
+     * MIRROR, FLIP and CUBE allow the other orientations, see RecipeSymmetry
+     */
+    public List<RecipeSymmetry> symmetry = Lists.newArrayList();
+
+    /*
+     * Cells of the levels by names of items and blocks. A cell may also be "#tag" for any ingredient
+     * with the tag (see CraftTagsComponent and the categories of blocks) or "*" for any ingredient or nothing
+     */
     public Map<String, List<String>> recipe = Maps.newHashMap();
+
+    /*
+     * Variables of a template recipe by name, each bound to a tag, e.g. "M": "#stairMaterial".
+     * A cell "$M" takes any ingredient with the tag, the same in all cells of "$M",
+     * and "$M" in the result is replaced by the short name of that ingredient: "engine:$Mstair".
+     */
+    public Map<String, String> variables = Maps.newHashMap();
     public Map<String, Map<String, String>> refinement = Maps.newHashMap();
     public byte resultCount = 1;
 }
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.components.utility;
+
+import com.google.common.collect.Maps;
+import org.terasology.entitySystem.Component;
+
+import java.util.Map;
+
+/**
+ * How often every recipe was found, by the name of its prefab.
+ * Kept on one persistent entity, so the order of the recipes survives restarts.
+ */
+public class CraftStatisticsComponent implements Component {
+    public Map<String, Long> recipeHits = Maps.newHashMap();
+}
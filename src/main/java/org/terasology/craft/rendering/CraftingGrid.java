@@ -24,28 +24,37 @@ public class CraftingGrid implements BlockOverlayRenderer {
     private ArrayList<AABBRenderer> cellsRender = new ArrayList<AABBRenderer>();
 
     private AABB aabb;
-    private final int countOfCells = 3;
+    private int countRows = 3;
+    private int countColumns = 3;
+    private Vector3f cellSize = CUBE_SIZE;
     private int selectedItem = 0;
 
     public void setAABB(AABB aabb) {
-        int level = CoreRegistry.get(CameraTargetSystem.class).getTarget().getComponent(CraftingActionComponent.class).getCurrentLevel();
-        if ((aabb != null && !aabb.equals(this.aabb)) || selectedLevel != level) {
-            dispose();
-            this.aabb = aabb;
-            selectedLevel = level;
-            reCalculateCells();
-        }
+        CraftingActionComponent craftingComponent = CoreRegistry.get(CameraTargetSystem.class).getTarget().getComponent(CraftingActionComponent.class);
+        setAABB(aabb, craftingComponent.getCurrentLevel(), craftingComponent);
     }
 
-    public void setAABB(AABB aabb, int level) {
-        if ((aabb != null && !aabb.equals(this.aabb)) || selectedLevel != level) {
+    public void setAABB(AABB aabb, int level, CraftingActionComponent craftingComponent) {
+        boolean sizeChanged = countRows != craftingComponent.depth || countColumns != craftingComponent.width;
+
+        if ((aabb != null && !aabb.equals(this.aabb)) || selectedLevel != level || sizeChanged) {
             dispose();
             this.aabb = aabb;
             selectedLevel = level;
+            countRows = craftingComponent.depth;
+            countColumns = craftingComponent.width;
+            cellSize = getCellSize(craftingComponent);
             reCalculateCells();
         }
     }
 
+    /*
+     * Size of one cell of the craft block, the block is split in as many cells as its grid has
+     */
+    public static Vector3f getCellSize(CraftingActionComponent craftingComponent) {
+        return new Vector3f(1f / craftingComponent.depth, 1f / craftingComponent.countLevels, 1f / craftingComponent.width);
+    }
+
     public void dispose() {
         for (AABBRenderer cell : cellsRender) {
             cell.dispose();
@@ -83,15 +92,15 @@ public class CraftingGrid implements BlockOverlayRenderer {
 
         Vector3f min = aabb.getMin();
 
-        for (int x = 0; x < countOfCells; x++) {
-            for (int z = 0; z < countOfCells; z++) {
+        for (int x = 0; x < countRows; x++) {
+            for (int z = 0; z < countColumns; z++) {
                 Vector3f newMin = new Vector3f(min);
-                newMin.x += x * CUBE_SIZE.x;
-                newMin.y += selectedLevel * CUBE_SIZE.y;
-                newMin.z += z * CUBE_SIZE.z;
+                newMin.x += x * cellSize.x;
+                newMin.y += selectedLevel * cellSize.y;
+                newMin.z += z * cellSize.z;
 
                 Vector3f newMax = new Vector3f(newMin);
-                newMax.add(CUBE_SIZE);
+                newMax.add(cellSize);
 
                 tAabb = AABB.createMinMax(newMin, newMax);
 
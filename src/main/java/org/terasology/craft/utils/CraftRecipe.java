@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+import org.terasology.craft.components.utility.CraftRecipeComponent;
+import org.terasology.entitySystem.prefab.Prefab;
+
+/**
+ * A recipe as it is kept in the index: its definition with a unique name,
+ * read from a prefab or registered in code by a module, which owns it.
+ * <p/>
+ * A prefab recipe is named as its prefab and crafts the prefab itself if its type is SELF.
+ * A recipe registered in code has no prefab, its type tells what its result is.
+ */
+public final class CraftRecipe {
+    private final String name;
+    private final String owner;
+    private final CraftRecipeComponent definition;
+    private final Prefab prefab;
+
+    public CraftRecipe(String name, String owner, CraftRecipeComponent definition) {
+        this(name, owner, definition, null);
+    }
+
+    private CraftRecipe(String name, String owner, CraftRecipeComponent definition, Prefab prefab) {
+        this.name = name;
+        this.owner = owner;
+        this.definition = definition;
+        this.prefab = prefab;
+    }
+
+    public static CraftRecipe fromPrefab(Prefab prefab) {
+        return new CraftRecipe(prefab.getName(), null, prefab.getComponent(CraftRecipeComponent.class), prefab);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /*
+     * Module which registered the recipe, null for prefab recipes
+     */
+    public String getOwner() {
+        return owner;
+    }
+
+    public CraftRecipeComponent getDefinition() {
+        return definition;
+    }
+
+    /*
+     * Null for recipes registered in code
+     */
+    public Prefab getPrefab() {
+        return prefab;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
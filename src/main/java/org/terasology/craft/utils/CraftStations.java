@@ -0,0 +1,240 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+import com.google.common.collect.Maps;
+import org.terasology.math.Vector3i;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Craft blocks which touch each other side by side at the same height, merged into stations
+ * which are crafted on as one grid. Only blocks whose grids have the same size are merged.
+ * <p/>
+ * Stations are kept in a union-find structure, so placing a block only looks at its four neighbours.
+ * A union-find can not be split, so removing a block rebuilds the station it belonged to and nothing else.
+ */
+public class CraftStations<T> {
+    private static final int[][] NEIGHBOURS = {{1, 0}, {-1, 0}, {0, 1}, {0, -1}};
+
+    private Map<Vector3i, Vector3i> parents = Maps.newHashMap();
+    private Map<Vector3i, Station<T>> stations = Maps.newHashMap();
+
+    /*
+     * The grid of the block has the given count of levels, cells in a row (width) and rows in a level (depth)
+     */
+    public Station<T> add(Vector3i position, T block, int levels, int width, int depth) {
+        Vector3i key = new Vector3i(position);
+
+        if (parents.containsKey(key)) {
+            remove(key);
+        }
+
+        Station<T> station = new Station<T>(levels, width, depth);
+        station.add(key, block);
+        parents.put(key, key);
+        stations.put(key, station);
+
+        for (int[] neighbour : NEIGHBOURS) {
+            Vector3i neighbourKey = new Vector3i(key.x + neighbour[0], key.y, key.z + neighbour[1]);
+
+            if (parents.containsKey(neighbourKey) && stations.get(find(neighbourKey)).hasGridSize(levels, width, depth)) {
+                union(key, neighbourKey);
+            }
+        }
+
+        return stations.get(find(key));
+    }
+
+    public void remove(Vector3i position) {
+        if (!parents.containsKey(position)) {
+            return;
+        }
+
+        Station<T> station = stations.remove(find(position));
+
+        for (Vector3i member : station.blocks.keySet()) {
+            parents.remove(member);
+        }
+
+        station.blocks.remove(position);
+
+        for (Map.Entry<Vector3i, T> member : station.blocks.entrySet()) {
+            add(member.getKey(), member.getValue(), station.levels, station.width, station.depth);
+        }
+    }
+
+    /*
+     * Returns null if there is no craft block at the position
+     */
+    public Station<T> getStation(Vector3i position) {
+        if (!parents.containsKey(position)) {
+            return null;
+        }
+
+        return stations.get(find(position));
+    }
+
+    public int size() {
+        return stations.size();
+    }
+
+    public void clear() {
+        parents.clear();
+        stations.clear();
+    }
+
+    private Vector3i find(Vector3i position) {
+        Vector3i current = position;
+
+        while (true) {
+            Vector3i parent = parents.get(current);
+
+            if (parent.equals(current)) {
+                return current;
+            }
+
+            Vector3i grandParent = parents.get(parent);
+            parents.put(current, grandParent);
+            current = grandParent;
+        }
+    }
+
+    /*
+     * The smaller station joins the larger one
+     */
+    private void union(Vector3i first, Vector3i second) {
+        Vector3i firstRoot = find(first);
+        Vector3i secondRoot = find(second);
+
+        if (firstRoot.equals(secondRoot)) {
+            return;
+        }
+
+        if (stations.get(firstRoot).size() < stations.get(secondRoot).size()) {
+            Vector3i root = firstRoot;
+            firstRoot = secondRoot;
+            secondRoot = root;
+        }
+
+        parents.put(secondRoot, firstRoot);
+        stations.get(firstRoot).merge(stations.remove(secondRoot));
+    }
+
+    public static final class Station<T> {
+        private final int levels;
+        private final int width;
+        private final int depth;
+        private Map<Vector3i, T> blocks = Maps.newHashMap();
+        private int minX = Integer.MAX_VALUE;
+        private int maxX = Integer.MIN_VALUE;
+        private int minZ = Integer.MAX_VALUE;
+        private int maxZ = Integer.MIN_VALUE;
+        private RecipeMatchState matchState = null;
+        private Map<Vector3i, Integer> changes = Maps.newHashMap();
+
+        private Station(int levels, int width, int depth) {
+            this.levels = levels;
+            this.width = width;
+            this.depth = depth;
+        }
+
+        public int size() {
+            return blocks.size();
+        }
+
+        public Map<Vector3i, T> getBlocks() {
+            return Collections.unmodifiableMap(blocks);
+        }
+
+        /*
+         * Size of the grid of every block of the station
+         */
+        public int getLevels() {
+            return levels;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+
+        public boolean hasGridSize(int gridLevels, int gridWidth, int gridDepth) {
+            return levels == gridLevels && width == gridWidth && depth == gridDepth;
+        }
+
+        public int getMinX() {
+            return minX;
+        }
+
+        public int getMinZ() {
+            return minZ;
+        }
+
+        /*
+         * Count of blocks along the x axis of the bounding box of the station
+         */
+        public int getCountX() {
+            return maxX - minX + 1;
+        }
+
+        public int getCountZ() {
+            return maxZ - minZ + 1;
+        }
+
+        /*
+         * Ingredient ids of the merged grid, dropped whenever the blocks of the station change
+         */
+        public RecipeMatchState getMatchState() {
+            return matchState;
+        }
+
+        public void setMatchState(RecipeMatchState matchState) {
+            this.matchState = matchState;
+        }
+
+        /*
+         * Count of changes of the block at the position which the match state has followed
+         */
+        public int getChanges(Vector3i position) {
+            Integer count = changes.get(position);
+            return count == null ? 0 : count;
+        }
+
+        public void setChanges(Vector3i position, int count) {
+            changes.put(position, count);
+        }
+
+        private void add(Vector3i position, T block) {
+            blocks.put(position, block);
+            minX = Math.min(minX, position.x);
+            maxX = Math.max(maxX, position.x);
+            minZ = Math.min(minZ, position.z);
+            maxZ = Math.max(maxZ, position.z);
+            matchState = null;
+        }
+
+        private void merge(Station<T> station) {
+            for (Map.Entry<Vector3i, T> block : station.blocks.entrySet()) {
+                add(block.getKey(), block.getValue());
+            }
+        }
+    }
+}
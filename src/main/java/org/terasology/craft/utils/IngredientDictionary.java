@@ -0,0 +1,360 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.prefab.Prefab;
+import org.terasology.logic.common.DisplayNameComponent;
+import org.terasology.world.block.items.BlockItemComponent;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Maps every item and block which can be used in a recipe to a dense int id.
+ * <p/>
+ * Items are registered by the name of their prefab and blocks by the uri of their family.
+ * Recipes may also use the display name or the short name ("stick" for "core:stick"),
+ * these are registered as aliases of the same id.
+ * <p/>
+ * A recipe cell may also hold a tag ("#plank"), which any ingredient with that tag matches,
+ * or the wildcard ("*"), which matches any ingredient and the empty cell.
+ * Tags and the wildcard get negative ids, and every ingredient keeps the bitset of its tags,
+ * so checking a cell against a tag is one bit test.
+ * <p/>
+ * Template recipes may hold variables ("$M") bound to a tag. A variable is kept in the cells like a tag
+ * and matches the same ingredients; RecipeTrie also checks that all cells of a variable hold the same ingredient.
+ * <p/>
+ * Names may be registered and looked up from several threads, as recipes are parsed in parallel.
+ */
+public class IngredientDictionary {
+    public static final int EMPTY = 0;
+    public static final int UNKNOWN = -1;
+    public static final String EMPTY_NAME = " ";
+    public static final int ANY = -2;
+    public static final String ANY_NAME = "*";
+    public static final String TAG_PREFIX = "#";
+    public static final String VARIABLE_PREFIX = "$";
+
+    private Map<String, Integer> ids = Maps.newHashMap();
+    private Map<String, Integer> aliases = Maps.newHashMap();
+    private List<String> names = Lists.newArrayList();
+    private List<BitSet> tagsOfIngredients = Lists.newArrayList();
+    private Map<String, Integer> tags = Maps.newHashMap();
+    private List<String> tagNames = Lists.newArrayList();
+    private BitSet variables = new BitSet();
+    private Map<Integer, Integer> variableTags = Maps.newHashMap();
+    private Map<Integer, String> variableNames = Maps.newHashMap();
+
+    public IngredientDictionary() {
+        names.add(EMPTY_NAME);
+        tagsOfIngredients.add(new BitSet());
+    }
+
+    /*
+     * A dictionary with the same ids, which can be extended without changing this one
+     */
+    public synchronized IngredientDictionary copy() {
+        IngredientDictionary copy = new IngredientDictionary();
+
+        copy.ids.putAll(ids);
+        copy.aliases.putAll(aliases);
+        copy.names.clear();
+        copy.names.addAll(names);
+        copy.tagsOfIngredients.clear();
+        for (BitSet tagsOfIngredient : tagsOfIngredients) {
+            copy.tagsOfIngredients.add((BitSet) tagsOfIngredient.clone());
+        }
+        copy.tags.putAll(tags);
+        copy.tagNames.addAll(tagNames);
+        copy.variables.or(variables);
+        copy.variableTags.putAll(variableTags);
+        copy.variableNames.putAll(variableNames);
+
+        return copy;
+    }
+
+    /*
+     * Names starting with # are registered as tags
+     */
+    public synchronized int register(String name) {
+        if (name.startsWith(TAG_PREFIX)) {
+            return registerTag(name.substring(TAG_PREFIX.length()));
+        }
+
+        String key = name.toLowerCase();
+        Integer id = ids.get(key);
+
+        if (id == null) {
+            id = names.size();
+            ids.put(key, id);
+            names.add(key);
+            tagsOfIngredients.add(new BitSet());
+
+            int separator = key.indexOf(':');
+            if (separator >= 0) {
+                addAlias(key.substring(separator + 1), id);
+            }
+        }
+
+        return id;
+    }
+
+    /*
+     * The first ingredient which used an alias keeps it
+     */
+    public synchronized void addAlias(String alias, int id) {
+        String key = alias.toLowerCase();
+
+        if (!aliases.containsKey(key)) {
+            aliases.put(key, id);
+        }
+    }
+
+    /*
+     * Id of the tag, as it is kept in the cells of recipes
+     */
+    public synchronized int registerTag(String tag) {
+        String key = tag.toLowerCase();
+        Integer index = tags.get(key);
+
+        if (index == null) {
+            index = tagNames.size();
+            tags.put(key, index);
+            tagNames.add(key);
+        }
+
+        return ANY - 1 - index;
+    }
+
+    /*
+     * Id of a variable bound to a tag, or to any ingredient if the tag is null.
+     * The same name bound to another tag is another variable.
+     */
+    public synchronized int registerVariable(String name, String tag) {
+        int boundTag = tag == null ? ANY : registerTag(tag.startsWith(TAG_PREFIX) ? tag.substring(TAG_PREFIX.length()) : tag);
+        int id = registerTag(VARIABLE_PREFIX + name + (tag == null ? "" : getName(boundTag)));
+        int index = ANY - 1 - id;
+
+        if (!variables.get(index)) {
+            variables.set(index);
+            variableTags.put(index, boundTag);
+            variableNames.put(index, VARIABLE_PREFIX + name);
+        }
+
+        return id;
+    }
+
+    public synchronized void addTag(int id, String tag) {
+        if (id > EMPTY && id < tagsOfIngredients.size()) {
+            tagsOfIngredients.get(id).set(ANY - 1 - registerTag(tag));
+        }
+    }
+
+    /*
+     * Whether the ingredient can lie in the cell of a recipe
+     */
+    public boolean matches(int cell, int id) {
+        if (!isTag(cell)) {
+            return cell == id;
+        }
+
+        if (cell == ANY) {
+            return true;
+        }
+
+        if (variables.get(ANY - 1 - cell)) {
+            return id > EMPTY && matches(variableTags.get(ANY - 1 - cell), id);
+        }
+
+        return id > EMPTY && id < tagsOfIngredients.size() && tagsOfIngredients.get(id).get(ANY - 1 - cell);
+    }
+
+    /*
+     * Id of the name used in a recipe
+     */
+    public synchronized int getId(String name) {
+        if (name.equals(EMPTY_NAME)) {
+            return EMPTY;
+        }
+
+        if (name.equals(ANY_NAME)) {
+            return ANY;
+        }
+
+        if (name.startsWith(TAG_PREFIX)) {
+            Integer index = tags.get(name.substring(TAG_PREFIX.length()).toLowerCase());
+            return index == null ? UNKNOWN : ANY - 1 - index;
+        }
+
+        Integer id = ids.get(name);
+
+        if (id == null) {
+            String key = name.toLowerCase();
+            id = ids.get(key);
+
+            if (id == null) {
+                id = aliases.get(key);
+            }
+        }
+
+        return id == null ? UNKNOWN : id;
+    }
+
+    /*
+     * Id of the item placed in the craft block
+     */
+    public int getId(EntityRef item) {
+        if (item == null || !item.exists()) {
+            return EMPTY;
+        }
+
+        BlockItemComponent blockItem = item.getComponent(BlockItemComponent.class);
+        if (blockItem != null && blockItem.blockFamily != null) {
+            int id = getId(blockItem.blockFamily.getURI().toString());
+            if (id != UNKNOWN) {
+                return id;
+            }
+        }
+
+        Prefab prefab = item.getParentPrefab();
+        if (prefab != null) {
+            int id = getId(prefab.getName());
+            if (id != UNKNOWN) {
+                return id;
+            }
+        }
+
+        DisplayNameComponent displayName = item.getComponent(DisplayNameComponent.class);
+        if (displayName != null) {
+            return getId(displayName.name);
+        }
+
+        return UNKNOWN;
+    }
+
+    public String getName(int id) {
+        if (id == ANY) {
+            return ANY_NAME;
+        }
+
+        if (isTag(id)) {
+            int index = ANY - 1 - id;
+
+            if (variables.get(index)) {
+                return variableNames.get(index);
+            }
+
+            return index < tagNames.size() ? TAG_PREFIX + tagNames.get(index) : null;
+        }
+
+        if (id < 0 || id >= names.size()) {
+            return null;
+        }
+
+        return names.get(id);
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    /*
+     * The name with every variable replaced by the short name of the ingredient it holds, e.g. "engine:$Mstair"
+     * with $M holding engine:stone gives "engine:stonestair". Where several variable names start at the same place
+     * the longest is replaced, so $MA is never read as $M followed by A. The names put in are not searched again.
+     */
+    public String bindVariables(String name, Map<Integer, Integer> bindings) {
+        String[] boundNames = new String[bindings.size()];
+        String[] values = new String[bindings.size()];
+        int k = 0;
+
+        for (Map.Entry<Integer, Integer> binding : bindings.entrySet()) {
+            String value = getName(binding.getValue());
+            boundNames[k] = getName(binding.getKey());
+            values[k] = value.substring(value.indexOf(':') + 1);
+            k++;
+        }
+
+        StringBuilder bound = new StringBuilder();
+        int i = 0;
+
+        while (i < name.length()) {
+            int longest = -1;
+
+            for (k = 0; k < boundNames.length; k++) {
+                if (name.startsWith(boundNames[k], i) && (longest < 0 || boundNames[k].length() > boundNames[longest].length())) {
+                    longest = k;
+                }
+            }
+
+            if (longest < 0) {
+                bound.append(name.charAt(i));
+                i++;
+            } else {
+                bound.append(values[longest]);
+                i += boundNames[longest].length();
+            }
+        }
+
+        return bound.toString();
+    }
+
+    /*
+     * Tags of the ingredient by their index, a copy
+     */
+    public synchronized BitSet getTags(int id) {
+        return id > EMPTY && id < tagsOfIngredients.size() ? (BitSet) tagsOfIngredients.get(id).clone() : new BitSet();
+    }
+
+    /*
+     * Aliases sorted by name, so they can be compared between two runs
+     */
+    public synchronized SortedMap<String, Integer> getAliases() {
+        return new TreeMap<String, Integer>(aliases);
+    }
+
+    /*
+     * Tag the variable is bound to, ANY if it takes any ingredient
+     */
+    public int getBoundTag(int variable) {
+        return variableTags.get(ANY - 1 - variable);
+    }
+
+    /*
+     * Count of tags and variables, their ids are ANY - 1 - index
+     */
+    public int countTags() {
+        return tagNames.size();
+    }
+
+    public boolean hasVariables() {
+        return !variables.isEmpty();
+    }
+
+    public boolean isVariable(int id) {
+        return id < ANY && variables.get(ANY - 1 - id);
+    }
+
+    public static boolean isTag(int id) {
+        return id <= ANY;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+/**
+ * A recipe which an earlier recipe hides from some or all grids, found by RecipeIndex while it is built.
+ * <p/>
+ * The earlier recipe always wins: a duplicate is never found, a shadowed recipe is not found
+ * in the grids which the earlier recipe also matches.
+ */
+public final class RecipeConflict<T> {
+    public enum Kind {
+        /*
+         * The recipe has the same cells as the earlier one, or the same ingredients if both are shapeless
+         */
+        DUPLICATE,
+        /*
+         * Every orientation of the recipe is an orientation of the earlier one
+         */
+        ROTATED_DUPLICATE,
+        /*
+         * Some grids the recipe matches give the earlier one: an orientation is shared,
+         * or the earlier recipe is shapeless or has tags and matches the same cells
+         */
+        SHADOWED
+    }
+
+    private final Kind kind;
+    private final T recipe;
+    private final T earlier;
+
+    public RecipeConflict(Kind kind, T recipe, T earlier) {
+        this.kind = kind;
+        this.recipe = recipe;
+        this.earlier = earlier;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public T getRecipe() {
+        return recipe;
+    }
+
+    public T getEarlier() {
+        return earlier;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof RecipeConflict)) {
+            return false;
+        }
+
+        RecipeConflict<?> conflict = (RecipeConflict<?>) obj;
+        return kind == conflict.kind && recipe.equals(conflict.recipe) && earlier.equals(conflict.earlier);
+    }
+
+    @Override
+    public int hashCode() {
+        return (31 * kind.hashCode() + recipe.hashCode()) * 31 + earlier.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        switch (kind) {
+            case DUPLICATE:
+                return recipe + " is a duplicate of " + earlier;
+            case ROTATED_DUPLICATE:
+                return recipe + " is a turned duplicate of " + earlier;
+            default:
+                return recipe + " is shadowed by " + earlier + " in some grids";
+        }
+    }
+}
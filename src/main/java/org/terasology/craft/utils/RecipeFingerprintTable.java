@@ -0,0 +1,465 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Every place where a recipe can lie in a craft grid of one size, by the fingerprint it gives to the grid.
+ * <p/>
+ * A trimmed recipe is placed at every position where it fits, starting from the bottom level
+ * or on every level if it may be turned on its side; a full match recipe only if it has the size of the grid.
+ * Searching for a RecipeMatchState is one probe by its fingerprint; only the occupied cells
+ * of the placements with the same fingerprint are compared, so the cost does not grow with the grid.
+ * A grid matches at most one placement of a chain, as placements with the same cells are only kept once,
+ * so the chains may be sorted, for example to try the recipes which match most often first.
+ * <p/>
+ * After resolve() every placement holds the recipe which a grid with exactly its cells gives,
+ * so a search which finds a placement is done and the other kinds of recipes need not be searched.
+ * <p/>
+ * Recipes with tags have no single fingerprint, their placements are kept in a RecipeTrie instead,
+ * which follows the tags matched by every cell of the grid, and compiled into a RecipePatternMatcher,
+ * which gives the same recipe by running the cell checks of the placements starting at the first occupied cell.
+ */
+public class RecipeFingerprintTable<V> {
+    // estimates with compressed references: a placement with its header and fields, the header of an array
+    private static final int PLACEMENT_BYTES = 48;
+    private static final int ARRAY_HEADER = 16;
+
+    private final int levels;
+    private final int width;
+    private final int height;
+
+    private long[] fingerprints = new long[64];
+    private Placement<V>[] placements = newPlacements(64);
+    private int size = 0;
+    private RecipeTrie<V> patterns = new RecipeTrie<V>();
+    private final RecipePatternMatcher<V> compiledPatterns;
+    private List<V> shadowedValues = Lists.newArrayList();
+    private List<V> shadowingValues = Lists.newArrayList();
+    private int countGroups = 0;
+    private boolean hasFixedPatterns = false;
+    private volatile long lastUse = 0;
+
+    public RecipeFingerprintTable(int levels, int width, int height) {
+        this.levels = levels;
+        this.width = width;
+        this.height = height;
+        this.compiledPatterns = new RecipePatternMatcher<V>(levels, width, height);
+    }
+
+    /*
+     * Placements are kept in the order they were added,
+     * so an earlier recipe wins if several recipes match the same grid
+     */
+    public void add(RecipeMatrix recipe, boolean translate, boolean anyLevel, V value) {
+        if (recipe.getLevels() > levels || recipe.getWidth() > width || recipe.getHeight() > height) {
+            return;
+        }
+
+        if (!translate && (recipe.getLevels() != levels || recipe.getWidth() != width || recipe.getHeight() != height)) {
+            return;
+        }
+
+        int lastLevel = anyLevel ? levels - recipe.getLevels() : 0;
+        int lastLine = height - recipe.getHeight();
+        int lastColumn = width - recipe.getWidth();
+        boolean hasTags = recipe.hasTags();
+        int[] ids = hasTags ? null : getIds(recipe);
+        hasFixedPatterns |= hasTags && (!translate || hasWildcards(recipe));
+
+        for (int level = 0; level <= lastLevel; level++) {
+            RecipeMatrix placed = recipe.getLevels() == levels ? recipe : recipe.placeOnLevel(levels, level);
+            //the placements of the recipe on one level only differ by where they lie on it
+            int group = countGroups++;
+
+            for (int line = 0; line <= lastLine; line++) {
+                for (int column = 0; column <= lastColumn; column++) {
+                    if (hasTags) {
+                        RecipeMatrix pattern = placed.place(width, height, line, column);
+
+                        if (patterns.put(pattern, value)) {
+                            compiledPatterns.add(pattern, value);
+                        }
+                    } else {
+                        add(new Placement<V>(placed, ids, width, height, line, column, group, value));
+                    }
+                }
+            }
+        }
+    }
+
+    public V find(RecipeMatchState state) {
+        if (state.getLevels() != levels || state.getWidth() != width || state.getHeight() != height) {
+            return null;
+        }
+
+        long fingerprint = state.getFingerprint();
+
+        for (int i = getIndex(fingerprint, fingerprints.length); placements[i] != null; i = (i + 1) & (fingerprints.length - 1)) {
+            if (fingerprints[i] == fingerprint) {
+                for (Placement<V> placement = placements[i]; placement != null; placement = placement.next) {
+                    if (placement.matches(state)) {
+                        return placement.value;
+                    }
+                }
+
+                return null;
+            }
+        }
+
+        return null;
+    }
+
+    /*
+     * Must be called before the table is shared with other threads
+     */
+    public void sortChains(Comparator<? super V> comparator) {
+        for (int i = 0; i < placements.length; i++) {
+            if (placements[i] == null || placements[i].next == null) {
+                continue;
+            }
+
+            List<Placement<V>> chain = Lists.newArrayList();
+
+            for (Placement<V> placement = placements[i]; placement != null; placement = placement.next) {
+                chain.add(placement);
+            }
+
+            Collections.sort(chain, new PlacementComparator<V>(comparator));
+
+            for (int j = 0; j < chain.size(); j++) {
+                chain.get(j).next = j + 1 < chain.size() ? chain.get(j + 1) : null;
+            }
+
+            placements[i] = chain.get(0);
+        }
+    }
+
+    /*
+     * Let the resolver pick the recipe of every placement, and tell it about the placements which were not kept
+     * because an earlier recipe has the same cells. Must be called before the table is shared with other threads.
+     *
+     * The recipes with tags which may lie anywhere match a recipe wherever it lies on a level, so the resolver
+     * is asked once for the placements of a recipe on a level; for every placement if a recipe with tags
+     * must fill the grid or has wildcards.
+     */
+    public void resolve(Resolver<V> resolver) {
+        for (int i = 0; i < shadowedValues.size(); i++) {
+            resolver.shadowed(shadowedValues.get(i), shadowingValues.get(i));
+        }
+
+        shadowedValues = Lists.newArrayList();
+        shadowingValues = Lists.newArrayList();
+
+        Map<Integer, V> resolved = Maps.newHashMap();
+
+        for (Placement<V> chain : placements) {
+            for (Placement<V> placement = chain; placement != null; placement = placement.next) {
+                if (!hasFixedPatterns && resolved.containsKey(placement.group)) {
+                    placement.value = resolved.get(placement.group);
+                    continue;
+                }
+
+                RecipeMatchState grid = new RecipeMatchState(levels, width, height);
+
+                for (int k = 0; k < placement.indexes.length; k++) {
+                    grid.set(placement.indexes[k], placement.ids[k]);
+                }
+
+                placement.value = resolver.resolve(placement.value, grid);
+                resolved.put(placement.group, placement.value);
+            }
+        }
+    }
+
+    /*
+     * Search among the recipes with tags, the grid must have the size of the table
+     */
+    public V findPattern(RecipeMatrix grid, IngredientDictionary ingredients) {
+        return findPattern(grid, ingredients, null);
+    }
+
+    /*
+     * The ingredients held by the variables of a template recipe are put in the bindings, see RecipeTrie
+     */
+    public V findPattern(RecipeMatrix grid, IngredientDictionary ingredients, Map<Integer, Integer> bindings) {
+        if (patterns.size() == 0) {
+            return null;
+        }
+
+        return patterns.find(grid, ingredients, bindings);
+    }
+
+    /*
+     * Same as findPattern without bindings, by the compiled checks of the placements, see RecipePatternMatcher
+     */
+    public V findCompiledPattern(RecipeMatchState state, IngredientDictionary ingredients) {
+        if (compiledPatterns.size() == 0) {
+            return null;
+        }
+
+        return compiledPatterns.find(state, ingredients);
+    }
+
+    public boolean hasPatterns() {
+        return patterns.size() > 0;
+    }
+
+    public boolean hasSize(int gridLevels, int gridWidth, int gridHeight) {
+        return levels == gridLevels && width == gridWidth && height == gridHeight;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /*
+     * Estimate of the bytes held by the table: the probe arrays, the placements with their cells,
+     * and the trie and the compiled checks of the recipes with tags. The ids shared by the placements of a recipe are counted once.
+     */
+    public long getFootprint() {
+        long bytes = 2 * ARRAY_HEADER + 12L * fingerprints.length;
+        Set<int[]> ids = Sets.newIdentityHashSet();
+
+        for (Placement<V> chain : placements) {
+            for (Placement<V> placement = chain; placement != null; placement = placement.next) {
+                bytes += PLACEMENT_BYTES + ARRAY_HEADER + 4L * placement.indexes.length;
+
+                if (ids.add(placement.ids)) {
+                    bytes += ARRAY_HEADER + 4L * placement.ids.length;
+                }
+            }
+        }
+
+        return bytes + patterns.getFootprint() + compiledPatterns.getFootprint();
+    }
+
+    /*
+     * Stamp of the last search, for the owner to drop the tables which are not used any more
+     */
+    public long getLastUse() {
+        return lastUse;
+    }
+
+    public void setLastUse(long lastUse) {
+        this.lastUse = lastUse;
+    }
+
+    private void add(Placement<V> placement) {
+        if (size * 2 >= fingerprints.length) {
+            resize();
+        }
+
+        for (int i = getIndex(placement.fingerprint, fingerprints.length); ; i = (i + 1) & (fingerprints.length - 1)) {
+            if (placements[i] == null) {
+                fingerprints[i] = placement.fingerprint;
+                placements[i] = placement;
+                size++;
+                return;
+            }
+
+            if (fingerprints[i] == placement.fingerprint) {
+                Placement<V> last = placements[i];
+
+                while (true) {
+                    if (last.hasSameCells(placement)) {
+                        if (last.value != placement.value) {
+                            shadowedValues.add(placement.value);
+                            shadowingValues.add(last.value);
+                        }
+                        return;
+                    }
+
+                    if (last.next == null) {
+                        break;
+                    }
+
+                    last = last.next;
+                }
+
+                last.next = placement;
+                return;
+            }
+        }
+    }
+
+    private void resize() {
+        long[] oldFingerprints = fingerprints;
+        Placement<V>[] oldPlacements = placements;
+
+        fingerprints = new long[oldFingerprints.length * 2];
+        placements = newPlacements(oldFingerprints.length * 2);
+
+        for (int j = 0; j < oldPlacements.length; j++) {
+            if (oldPlacements[j] == null) {
+                continue;
+            }
+
+            int i = getIndex(oldFingerprints[j], fingerprints.length);
+
+            while (placements[i] != null) {
+                i = (i + 1) & (fingerprints.length - 1);
+            }
+
+            fingerprints[i] = oldFingerprints[j];
+            placements[i] = oldPlacements[j];
+        }
+    }
+
+    /*
+     * Ids of the occupied cells, level by level, row by row
+     */
+    private static int[] getIds(RecipeMatrix recipe) {
+        int countItems = 0;
+
+        for (int i = 0; i < recipe.size(); i++) {
+            if (recipe.get(i) != IngredientDictionary.EMPTY) {
+                countItems++;
+            }
+        }
+
+        int[] ids = new int[countItems];
+        int k = 0;
+
+        for (int i = 0; i < recipe.size(); i++) {
+            if (recipe.get(i) != IngredientDictionary.EMPTY) {
+                ids[k++] = recipe.get(i);
+            }
+        }
+
+        return ids;
+    }
+
+    /*
+     * A wildcard may stand for an empty cell, so a recipe with wildcards may not fit the grid
+     * wherever the items it matches lie
+     */
+    private static boolean hasWildcards(RecipeMatrix recipe) {
+        for (int i = 0; i < recipe.size(); i++) {
+            if (recipe.get(i) == IngredientDictionary.ANY) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static int getIndex(long fingerprint, int length) {
+        return (int) (fingerprint ^ (fingerprint >>> 32)) & (length - 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> Placement<V>[] newPlacements(int length) {
+        return (Placement<V>[]) new Placement<?>[length];
+    }
+
+    /**
+     * Decides between the recipes of different kinds which match the same grid
+     */
+    public interface Resolver<V> {
+        /*
+         * The recipe a grid with exactly the cells of the placement gives, the value of the placement or another
+         */
+        V resolve(V value, RecipeMatchState grid);
+
+        /*
+         * The placement of the value was not kept, the earlier value has the same cells
+         */
+        void shadowed(V value, V earlier);
+    }
+
+    private static final class Placement<T> {
+        private final int[] indexes;
+        private final int[] ids;
+        private T value;
+        private final long fingerprint;
+        private final int group;
+        private Placement<T> next;
+
+        /*
+         * The ids of the occupied cells are the same wherever the recipe is placed, so all placements share them
+         */
+        private Placement(RecipeMatrix recipe, int[] ids, int gridWidth, int gridHeight, int line, int column, int group, T value) {
+            this.indexes = new int[ids.length];
+            this.ids = ids;
+            this.group = group;
+            this.value = value;
+
+            long recipeFingerprint = 0;
+            int k = 0;
+
+            for (int level = 0; level < recipe.getLevels(); level++) {
+                for (int i = 0; i < recipe.getHeight(); i++) {
+                    for (int j = 0; j < recipe.getWidth(); j++) {
+                        int id = recipe.get(level, i, j);
+
+                        if (id != IngredientDictionary.EMPTY) {
+                            indexes[k] = (level * gridHeight + line + i) * gridWidth + column + j;
+                            recipeFingerprint ^= RecipeMatchState.getFingerprint(indexes[k], id);
+                            k++;
+                        }
+                    }
+                }
+            }
+
+            this.fingerprint = recipeFingerprint;
+        }
+
+        /*
+         * Same count of items and same occupied cells, so all other cells of the grid are empty
+         */
+        private boolean matches(RecipeMatchState state) {
+            if (state.getCountItems() != ids.length) {
+                return false;
+            }
+
+            for (int k = 0; k < ids.length; k++) {
+                if (state.get(indexes[k]) != ids[k]) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private boolean hasSameCells(Placement<T> placement) {
+            return Arrays.equals(indexes, placement.indexes) && Arrays.equals(ids, placement.ids);
+        }
+    }
+
+    private static final class PlacementComparator<T> implements Comparator<Placement<T>> {
+        private final Comparator<? super T> comparator;
+
+        private PlacementComparator(Comparator<? super T> comparator) {
+            this.comparator = comparator;
+        }
+
+        @Override
+        public int compare(Placement<T> first, Placement<T> second) {
+            return comparator.compare(first.value, second.value);
+        }
+    }
+}
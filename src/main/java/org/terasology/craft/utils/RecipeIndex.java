@@ -0,0 +1,750 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Index of the recipes by the cells of the grids they match.
+ * <p/>
+ * Every distinct orientation of a recipe (the rotations and the symmetries it declares, trimmed unless it is
+ * a full match recipe) is added once, with its matrices shared in a RecipeMatrixPool; shapeless recipes are kept
+ * by their ingredients. A RecipeMatrix is searched by its pattern in the pool, in a RecipeOrientationTable.
+ * A RecipeMatchState is searched by its fingerprint in the RecipeFingerprintTable of its grid size, which holds
+ * every placement of every recipe in the grid, already resolved against the shapeless recipes and the recipes
+ * with tags, variables or wildcards; only the last MAX_FINGERPRINT_TABLES sizes are kept, and the results
+ * are cached in a RecipeMatchCache.
+ * The earlier recipe wins where several match, and the recipes it hides are reported by getConflicts().
+ * <p/>
+ * Searches only read the index, so grids may be searched on many threads, e.g. by findAll(), as long as no recipe
+ * is added meanwhile. Every recipe found counts a hit, and tables built after reorderByHits() try the recipes
+ * found most often first. Grids which match nothing get the closest recipes from a RecipeSuggestionIndex.
+ */
+public class RecipeIndex<T> {
+    public static final int MAX_FINGERPRINT_TABLES = 8;
+
+    private static final int BATCH_THRESHOLD = 64;
+    // estimates with compressed references: an entry, a hit counter with its map entry and slot
+    private static final int ENTRY_BYTES = 24;
+    private static final int HIT_BYTES = 64;
+
+    private RecipeOrientationTable<Entry<T>> orientations = new RecipeOrientationTable<Entry<T>>();
+    private volatile List<RecipeFingerprintTable<Entry<T>>> fingerprintTables = Lists.newArrayList();
+    private ShapelessRecipeTable<Entry<T>> shapelessRecipes = new ShapelessRecipeTable<Entry<T>>();
+    private RecipeSuggestionIndex<T> suggestions;
+    private AtomicLong tableUses = new AtomicLong();
+    private ConcurrentMap<T, AtomicLong> hits = Maps.newConcurrentMap();
+    private Set<RecipeConflict<T>> conflicts = Sets.newLinkedHashSet();
+    private RecipeMatchCache<T> cache;
+    private RecipeMatrixPool pool = new RecipeMatrixPool();
+    private IngredientDictionary ingredients;
+    private int countRecipes = 0;
+    private boolean hasPatterns = false;
+    private volatile boolean compiledPatterns = true;
+
+    public RecipeIndex() {
+        this(new IngredientDictionary());
+    }
+
+    public RecipeIndex(IngredientDictionary ingredients) {
+        this(ingredients, RecipeMatchCache.DEFAULT_CAPACITY);
+    }
+
+    public RecipeIndex(IngredientDictionary ingredients, int cacheCapacity) {
+        this.ingredients = ingredients;
+        this.cache = new RecipeMatchCache<T>(cacheCapacity);
+        this.suggestions = new RecipeSuggestionIndex<T>(ingredients, pool);
+    }
+
+    /*
+     * Returns false if earlier recipes already have all the orientations of this recipe.
+     * The earlier recipe wins, as it did when the recipes were checked one by one.
+     */
+    public boolean add(RecipeMatrix matrix, boolean fullMatch, T value) {
+        return add(matrix, fullMatch, EnumSet.noneOf(RecipeSymmetry.class), value);
+    }
+
+    public boolean add(RecipeMatrix matrix, boolean fullMatch, Set<RecipeSymmetry> symmetries, T value) {
+        return add(normalize(matrix, fullMatch, symmetries, value));
+    }
+
+    /*
+     * Returns false if an earlier shapeless recipe has the same ingredients
+     */
+    public boolean addShapeless(RecipeMatrix matrix, T value) {
+        return add(normalizeShapeless(matrix, value));
+    }
+
+    /*
+     * Add a recipe normalized beforehand, possibly on another thread. Same result as add() or addShapeless().
+     */
+    public boolean add(NormalizedRecipe<T> normalized) {
+        NormalizedRecipe<T> recipe = pool.intern(normalized);
+        int[] patterns = recipe.getPatterns();
+        RecipeMatrix matrix = pool.get(patterns[0]);
+        //a recipe which is not added takes no place in the order
+        Entry<T> entry = new Entry<T>(recipe.value, countRecipes);
+
+        if (recipe.shapeless) {
+            boolean added = shapelessRecipes.add(matrix, entry);
+
+            if (added) {
+                suggestions.addShapeless(recipe.value, patterns[0]);
+                countRecipes++;
+                cache.invalidate();
+            } else {
+                addConflict(RecipeConflict.Kind.DUPLICATE, entry, shapelessRecipes.find(matrix));
+            }
+
+            return added;
+        }
+
+        int[] added = new int[patterns.length - 1];
+        int countAdded = 0;
+        Entry<T> sameOrientation = null;
+
+        for (int k = 1; k < patterns.length; k++) {
+            if (orientations.put(patterns[k], recipe.fullMatch, recipe.anyLevel, entry)) {
+                added[countAdded++] = patterns[k];
+            } else {
+                sameOrientation = orientations.get(patterns[k], recipe.fullMatch, recipe.anyLevel);
+            }
+        }
+
+        entry.shape = countAdded > 0 ? added[0] : -1;
+
+        if (countAdded == 0) {
+            //the first orientation is the recipe as it was given, the same pattern means the same cells
+            boolean sameShape = sameOrientation.shape == patterns[1];
+            addConflict(sameShape ? RecipeConflict.Kind.DUPLICATE : RecipeConflict.Kind.ROTATED_DUPLICATE, entry, sameOrientation);
+            return false;
+        }
+
+        if (sameOrientation != null) {
+            addConflict(RecipeConflict.Kind.SHADOWED, entry, sameOrientation);
+        }
+
+        suggestions.add(recipe.value, Arrays.copyOf(added, countAdded), recipe.fullMatch, recipe.anyLevel);
+        hasPatterns |= matrix.hasTags();
+        countRecipes++;
+        fingerprintTables = Lists.newArrayList();
+        cache.invalidate();
+        return true;
+    }
+
+    /*
+     * Compute the orientations of a recipe, the costly part of add(). It only reads the matrix,
+     * so recipes can be normalized on many threads and then added on one.
+     */
+    public static <T> NormalizedRecipe<T> normalize(RecipeMatrix matrix, boolean fullMatch, Set<RecipeSymmetry> symmetries, T value) {
+        boolean anyLevel = !fullMatch && symmetries.contains(RecipeSymmetry.CUBE);
+        return new NormalizedRecipe<T>(matrix, fullMatch, anyLevel, false, getOrientations(matrix, fullMatch, symmetries), value);
+    }
+
+    public static <T> NormalizedRecipe<T> normalizeShapeless(RecipeMatrix matrix, T value) {
+        if (matrix.hasTags()) {
+            throw new IllegalArgumentException("Shapeless recipes can not use tags");
+        }
+
+        return new NormalizedRecipe<T>(matrix, false, false, true, Collections.<RecipeMatrix>emptySet(), value);
+    }
+
+    /*
+     * Recipes hidden by earlier recipes, found so far; the fingerprint tables built later may find more
+     */
+    public synchronized List<RecipeConflict<T>> getConflicts() {
+        return Lists.newArrayList(conflicts);
+    }
+
+    public T find(RecipeMatrix matrix) {
+        if (matrix.isEmpty()) {
+            return null;
+        }
+
+        RecipeMatrix trimmedMatrix = matrix.trim();
+        Entry<T> fullMatch = findOrientation(matrix, true, false);
+        Entry<T> trimmed = findOrientation(trimmedMatrix.trimTopLevels(), false, false);
+        Entry<T> anyLevel = findOrientation(trimmedMatrix.trimLevels(), false, true);
+        Entry<T> shapeless = shapelessRecipes.size() == 0 ? null : shapelessRecipes.find(matrix);
+        Entry<T> pattern = hasPatterns ? getFingerprintTable(matrix.getLevels(), matrix.getWidth(), matrix.getHeight()).findPattern(matrix, ingredients) : null;
+
+        return countHit(getValue(getFirst(getFirst(fullMatch, getFirst(trimmed, anyLevel)), getFirst(shapeless, pattern))));
+    }
+
+    /*
+     * Search by the fingerprint of the craft block, which is updated when one cell changes
+     */
+    public T find(RecipeMatchState state) {
+        if (state.getCountItems() == 0) {
+            return null;
+        }
+
+        RecipeMatchCache.CachedMatch<T> cachedMatch = cache.get(state);
+
+        if (cachedMatch != null) {
+            return countHit(cachedMatch.getRecipe());
+        }
+
+        T recipe = findUncached(state);
+        cache.put(state, recipe);
+
+        return countHit(recipe);
+    }
+
+    /*
+     * Search many grids on the threads of the pool. The cache is not used, so the threads do not wait for each other.
+     * The results are in the order of the states.
+     */
+    public List<T> findAll(List<RecipeMatchState> states, ForkJoinPool pool) {
+        List<T> recipes = Lists.newArrayListWithCapacity(states.size());
+
+        for (int i = 0; i < states.size(); i++) {
+            recipes.add(null);
+        }
+
+        pool.invoke(new FindAllTask(states, recipes, 0, states.size()));
+
+        return recipes;
+    }
+
+    private T findUncached(RecipeMatchState state) {
+        if (state.getCountItems() == 0) {
+            return null;
+        }
+
+        RecipeFingerprintTable<Entry<T>> table = getFingerprintTable(state.getLevels(), state.getWidth(), state.getHeight());
+        Entry<T> shaped = table.find(state);
+
+        if (shaped != null) {
+            return shaped.value;
+        }
+
+        Entry<T> shapeless = shapelessRecipes.size() == 0 ? null : shapelessRecipes.find(state);
+        Entry<T> pattern = table.hasPatterns() ? findPattern(table, state) : null;
+        return getValue(getFirst(shapeless, pattern));
+    }
+
+    /*
+     * The recipes with tags are searched by their compiled checks, or in their trie if compiled patterns are off
+     */
+    private Entry<T> findPattern(RecipeFingerprintTable<Entry<T>> table, RecipeMatchState state) {
+        return compiledPatterns ? table.findCompiledPattern(state, ingredients) : table.findPattern(state.toMatrix(), ingredients);
+    }
+
+    /*
+     * Ingredients held in the grid by the variables of the template recipe which matches it, by variable id.
+     * Meant for grids for which find() returned a template recipe.
+     */
+    public Map<Integer, Integer> findBindings(RecipeMatchState state) {
+        Map<Integer, Integer> bindings = Maps.newHashMap();
+
+        if (state.getCountItems() > 0 && hasPatterns) {
+            RecipeFingerprintTable<Entry<T>> table = getFingerprintTable(state.getLevels(), state.getWidth(), state.getHeight());
+            table.findPattern(state.toMatrix(), ingredients, bindings);
+        }
+
+        return bindings;
+    }
+
+    public long getHits(T recipe) {
+        AtomicLong count = hits.get(recipe);
+        return count == null ? 0 : count.get();
+    }
+
+    /*
+     * Hits of every recipe which was found at least once
+     */
+    public Map<T, Long> getHits() {
+        Map<T, Long> counts = Maps.newHashMap();
+
+        for (Map.Entry<T, AtomicLong> count : hits.entrySet()) {
+            counts.put(count.getKey(), count.getValue().get());
+        }
+
+        return counts;
+    }
+
+    /*
+     * Restore the hits counted before a restart
+     */
+    public void setHits(T recipe, long count) {
+        getHitCounter(recipe).set(count);
+    }
+
+    /*
+     * The fingerprint tables are built again with the recipes with more hits first.
+     * Waits for a table being built, which would be sorted by the old hits
+     */
+    public synchronized void reorderByHits() {
+        fingerprintTables = Lists.newArrayList();
+    }
+
+    /*
+     * The recipes closest to a grid which matches none, for any number of recipes it looks only
+     * at the recipes which share an ingredient with the grid
+     */
+    public List<RecipeSuggestion<T>> suggest(RecipeMatchState state, int count) {
+        return suggestions.suggest(state, count);
+    }
+
+    /*
+     * Build the fingerprint table for grids of this size now instead of at the first search
+     */
+    public void prepare(int levels, int width, int height) {
+        getFingerprintTable(levels, width, height);
+    }
+
+    /*
+     * Suggestions compare the grid with the recipes by bit masks when it fits, or cell by cell
+     */
+    public void setBitParallelComparison(boolean bitParallel) {
+        suggestions.setBitParallel(bitParallel);
+    }
+
+    /*
+     * Search the recipes with tags by the checks compiled for every placement, or follow their trie if false.
+     * Both give the same recipes, see RecipePatternMatcher
+     */
+    public void setCompiledPatterns(boolean compiled) {
+        this.compiledPatterns = compiled;
+    }
+
+    public boolean isCompiledPatterns() {
+        return compiledPatterns;
+    }
+
+    public RecipeMatchCache<T> getCache() {
+        return cache;
+    }
+
+    /*
+     * Several indexes may share a pool, e.g. the indexes built for the same recipes after a reload.
+     * Must be called before recipes are added.
+     */
+    public void setPool(RecipeMatrixPool pool) {
+        boolean bitParallel = suggestions.isBitParallel();
+        this.pool = pool;
+        suggestions = new RecipeSuggestionIndex<T>(ingredients, pool);
+        suggestions.setBitParallel(bitParallel);
+    }
+
+    public RecipeMatrixPool getPool() {
+        return pool;
+    }
+
+    /*
+     * Estimate of the bytes held by the index: the matrix pool, the orientations and entries of the recipes,
+     * the shapeless recipes, the suggestion index, the hits and the fingerprint tables kept now.
+     * The values and the conflicts are not counted.
+     */
+    public long getFootprint() {
+        long bytes = pool.getFootprint();
+        bytes += orientations.getFootprint() + (long) ENTRY_BYTES * countRecipes;
+        bytes += shapelessRecipes.getFootprint();
+        bytes += suggestions.getFootprint();
+        bytes += (long) HIT_BYTES * hits.size();
+
+        for (RecipeFingerprintTable<Entry<T>> table : fingerprintTables) {
+            bytes += table.getFootprint();
+        }
+
+        return bytes;
+    }
+
+    public int getCountFingerprintTables() {
+        return fingerprintTables.size();
+    }
+
+    public int size() {
+        return countRecipes;
+    }
+
+    public void clear() {
+        orientations = new RecipeOrientationTable<Entry<T>>();
+        fingerprintTables = Lists.newArrayList();
+        hits.clear();
+        synchronized (this) {
+            conflicts.clear();
+        }
+        shapelessRecipes = new ShapelessRecipeTable<Entry<T>>();
+        boolean bitParallel = suggestions.isBitParallel();
+        suggestions = new RecipeSuggestionIndex<T>(ingredients, pool);
+        suggestions.setBitParallel(bitParallel);
+        cache.invalidate();
+        countRecipes = 0;
+        hasPatterns = false;
+    }
+
+    private RecipeFingerprintTable<Entry<T>> getFingerprintTable(int levels, int width, int height) {
+        List<RecipeFingerprintTable<Entry<T>>> tables = fingerprintTables;
+
+        for (int i = 0; i < tables.size(); i++) {
+            RecipeFingerprintTable<Entry<T>> table = tables.get(i);
+
+            if (table.hasSize(levels, width, height)) {
+                //a table searched again and again is only stamped once
+                if (table.getLastUse() != tableUses.get()) {
+                    table.setLastUse(tableUses.incrementAndGet());
+                }
+
+                return table;
+            }
+        }
+
+        return createFingerprintTable(levels, width, height);
+    }
+
+    private synchronized RecipeFingerprintTable<Entry<T>> createFingerprintTable(int levels, int width, int height) {
+        for (RecipeFingerprintTable<Entry<T>> table : fingerprintTables) {
+            if (table.hasSize(levels, width, height)) {
+                return table;
+            }
+        }
+
+        final RecipeFingerprintTable<Entry<T>> table = new RecipeFingerprintTable<Entry<T>>(levels, width, height);
+
+        for (int orientation = 0; orientation < orientations.size(); orientation++) {
+            table.add(pool.get(orientations.getPattern(orientation)), !orientations.isFullMatch(orientation),
+                    orientations.isAnyLevel(orientation), orientations.getValue(orientation));
+        }
+
+        table.resolve(new RecipeFingerprintTable.Resolver<Entry<T>>() {
+            //the shapeless recipe of a grid depends on its ingredients only, which every placement of a recipe has
+            private final Map<Entry<T>, Entry<T>> shapelessMatches = Maps.newHashMap();
+
+            @Override
+            public Entry<T> resolve(Entry<T> shaped, RecipeMatchState grid) {
+                Entry<T> shapeless = shapelessRecipes.size() == 0 ? null : findShapeless(shaped, grid);
+                Entry<T> pattern = table.hasPatterns() ? findPattern(table, grid) : null;
+                Entry<T> winner = getFirst(getFirst(shaped, shapeless), pattern);
+
+                addConflict(RecipeConflict.Kind.SHADOWED, shaped, winner);
+                addConflict(RecipeConflict.Kind.SHADOWED, shapeless, winner);
+                addConflict(RecipeConflict.Kind.SHADOWED, pattern, winner);
+
+                return winner;
+            }
+
+            @Override
+            public void shadowed(Entry<T> value, Entry<T> earlier) {
+                addConflict(RecipeConflict.Kind.SHADOWED, value, earlier);
+            }
+
+            private Entry<T> findShapeless(Entry<T> shaped, RecipeMatchState grid) {
+                if (!shapelessMatches.containsKey(shaped)) {
+                    shapelessMatches.put(shaped, shapelessRecipes.find(grid));
+                }
+
+                return shapelessMatches.get(shaped);
+            }
+        });
+
+        table.sortChains(new Comparator<Entry<T>>() {
+            @Override
+            public int compare(Entry<T> first, Entry<T> second) {
+                long firstHits = getHits(first.value);
+                long secondHits = getHits(second.value);
+
+                return firstHits > secondHits ? -1 : firstHits < secondHits ? 1 : 0;
+            }
+        });
+
+        List<RecipeFingerprintTable<Entry<T>>> tables = Lists.newArrayList(fingerprintTables);
+
+        if (tables.size() >= MAX_FINGERPRINT_TABLES) {
+            RecipeFingerprintTable<Entry<T>> leastUsed = tables.get(0);
+
+            for (RecipeFingerprintTable<Entry<T>> other : tables) {
+                if (other.getLastUse() < leastUsed.getLastUse()) {
+                    leastUsed = other;
+                }
+            }
+
+            tables.remove(leastUsed);
+        }
+
+        table.setLastUse(tableUses.incrementAndGet());
+        tables.add(table);
+        fingerprintTables = tables;
+
+        return table;
+    }
+
+    /*
+     * All distinct matrices the recipe can be turned into, in the order they were found.
+     *
+     * A trimmed recipe stands on the bottom level, so only its empty levels above are trimmed,
+     * and it matches a craft block with as many or more levels. If it may be turned on its side
+     * it is not bound to a level: all its empty levels are trimmed and it may lie on any level.
+     * A full match recipe is only kept in the orientations which have the size of the recipe.
+     */
+    private static Set<RecipeMatrix> getOrientations(RecipeMatrix matrix, boolean fullMatch, Set<RecipeSymmetry> symmetries) {
+        RecipeMatrix recipe = fullMatch ? matrix : matrix.trim();
+        Set<RecipeMatrix> found = Sets.newLinkedHashSet();
+        Deque<RecipeMatrix> queue = new ArrayDeque<RecipeMatrix>();
+
+        found.add(recipe);
+        queue.add(recipe);
+
+        while (!queue.isEmpty()) {
+            RecipeMatrix current = queue.poll();
+            List<RecipeMatrix> next = Lists.newArrayList(current.rotate());
+
+            if (symmetries.contains(RecipeSymmetry.MIRROR)) {
+                next.add(current.mirror());
+            }
+
+            if (symmetries.contains(RecipeSymmetry.FLIP)) {
+                next.add(current.flip());
+            }
+
+            if (symmetries.contains(RecipeSymmetry.CUBE)) {
+                next.add(current.tilt());
+            }
+
+            for (RecipeMatrix orientation : next) {
+                if (found.add(orientation)) {
+                    queue.add(orientation);
+                }
+            }
+        }
+
+        Set<RecipeMatrix> orientations = Sets.newLinkedHashSet();
+
+        for (RecipeMatrix orientation : found) {
+            if (fullMatch) {
+                if (orientation.getLevels() == matrix.getLevels() && orientation.getHeight() == matrix.getHeight()) {
+                    orientations.add(orientation);
+                }
+            } else if (symmetries.contains(RecipeSymmetry.CUBE)) {
+                orientations.add(orientation.trim().trimLevels());
+            } else {
+                orientations.add(orientation.trim().trimTopLevels());
+            }
+        }
+
+        return orientations;
+    }
+
+    /*
+     * Exact search of the orientations of one kind: only a matrix which is in the pool can be one
+     */
+    private Entry<T> findOrientation(RecipeMatrix matrix, boolean fullMatch, boolean anyLevel) {
+        if (orientations.size(fullMatch, anyLevel) == 0) {
+            return null;
+        }
+
+        int pattern = pool.getPattern(matrix);
+        return pattern < 0 ? null : orientations.get(pattern, fullMatch, anyLevel);
+    }
+
+    private synchronized void addConflict(RecipeConflict.Kind kind, Entry<T> recipe, Entry<T> earlier) {
+        if (recipe != null && earlier != null && recipe.value != earlier.value) {
+            conflicts.add(new RecipeConflict<T>(kind, recipe.value, earlier.value));
+        }
+    }
+
+    private T countHit(T recipe) {
+        if (recipe != null) {
+            getHitCounter(recipe).incrementAndGet();
+        }
+
+        return recipe;
+    }
+
+    private AtomicLong getHitCounter(T recipe) {
+        AtomicLong count = hits.get(recipe);
+
+        if (count == null) {
+            AtomicLong newCount = new AtomicLong();
+            count = hits.putIfAbsent(recipe, newCount);
+
+            if (count == null) {
+                count = newCount;
+            }
+        }
+
+        return count;
+    }
+
+    private static <T> Entry<T> getFirst(Entry<T> first, Entry<T> second) {
+        if (first == null) {
+            return second;
+        }
+
+        return second == null || first.order < second.order ? first : second;
+    }
+
+    private static <T> T getValue(Entry<T> entry) {
+        return entry == null ? null : entry.value;
+    }
+
+    /*
+     * Splits the states in halves until there are few enough to search them on one thread
+     */
+    private class FindAllTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<RecipeMatchState> states;
+        private final List<T> recipes;
+        private final int from;
+        private final int to;
+
+        private FindAllTask(List<RecipeMatchState> states, List<T> recipes, int from, int to) {
+            this.states = states;
+            this.recipes = recipes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BATCH_THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    recipes.set(i, findUncached(states.get(i)));
+                }
+
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new FindAllTask(states, recipes, from, middle), new FindAllTask(states, recipes, middle, to));
+        }
+    }
+
+    public static class NormalizedRecipe<T> {
+        private final RecipeMatrix matrix;
+        private final boolean fullMatch;
+        private final boolean anyLevel;
+        private final boolean shapeless;
+        private final List<RecipeMatrix> orientations;
+        private final T value;
+        // when the matrices are kept in a pool: the pattern of the matrix, then those of the orientations
+        private final RecipeMatrixPool pool;
+        private final int[] patterns;
+
+        /*
+         * The orientations must be given as normalize() returned them, e.g. when read back from a RecipeIndexCache
+         */
+        public NormalizedRecipe(RecipeMatrix matrix, boolean fullMatch, boolean anyLevel, boolean shapeless,
+                                Collection<RecipeMatrix> orientations, T value) {
+            this.matrix = matrix;
+            this.fullMatch = fullMatch;
+            this.anyLevel = anyLevel;
+            this.shapeless = shapeless;
+            this.orientations = Lists.newArrayList(orientations);
+            this.value = value;
+            this.pool = null;
+            this.patterns = null;
+        }
+
+        NormalizedRecipe(RecipeMatrixPool pool, int[] patterns, boolean fullMatch, boolean anyLevel, boolean shapeless, T value) {
+            this.matrix = null;
+            this.fullMatch = fullMatch;
+            this.anyLevel = anyLevel;
+            this.shapeless = shapeless;
+            this.orientations = null;
+            this.value = value;
+            this.pool = pool;
+            this.patterns = patterns;
+        }
+
+        public RecipeMatrix getMatrix() {
+            return pool == null ? matrix : pool.get(patterns[0]);
+        }
+
+        public boolean isFullMatch() {
+            return fullMatch;
+        }
+
+        public boolean isAnyLevel() {
+            return anyLevel;
+        }
+
+        public boolean isShapeless() {
+            return shapeless;
+        }
+
+        public List<RecipeMatrix> getOrientations() {
+            if (pool == null) {
+                return Collections.unmodifiableList(orientations);
+            }
+
+            List<RecipeMatrix> matrices = Lists.newArrayListWithCapacity(patterns.length - 1);
+
+            for (int k = 1; k < patterns.length; k++) {
+                matrices.add(pool.get(patterns[k]));
+            }
+
+            return matrices;
+        }
+
+        public T getValue() {
+            return value;
+        }
+
+        /*
+         * The same recipe for another value, e.g. the name of the prefab instead of the prefab
+         */
+        public <V> NormalizedRecipe<V> withValue(V newValue) {
+            if (pool == null) {
+                return new NormalizedRecipe<V>(matrix, fullMatch, anyLevel, shapeless, orientations, newValue);
+            }
+
+            return new NormalizedRecipe<V>(pool, patterns, fullMatch, anyLevel, shapeless, newValue);
+        }
+
+        RecipeMatrixPool getPool() {
+            return pool;
+        }
+
+        /*
+         * The pattern of the matrix, then those of the orientations, if the recipe is kept in a pool
+         */
+        int[] getPatterns() {
+            return patterns;
+        }
+    }
+
+    private static class Entry<T> {
+        private final T value;
+        private final int order;
+        // pattern of the first orientation added, the recipe as it was defined
+        private int shape = -1;
+
+        private Entry(T value, int order) {
+            this.value = value;
+            this.order = order;
+        }
+    }
+}
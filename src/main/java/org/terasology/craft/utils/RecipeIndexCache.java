@@ -0,0 +1,494 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Binary file with the recipes of a RecipeIndex already normalized, so later startups read them back
+ * instead of parsing the prefabs and computing the orientations again.
+ * <p/>
+ * The file is named by a Key: the hash of the ingredients registered before the recipes and of everything
+ * the recipes were built from. Any change of a recipe prefab, an item or a block gives another key,
+ * so the old file is not found and the index is rebuilt and written again. The version of the format is part
+ * of the key and of the header, files of another version are never read.
+ * <p/>
+ * The file holds the ingredients, tags and variables the recipes registered in the IngredientDictionary
+ * (replayed in the same order on reading, so they get the same ids), the normalized recipes by the name of
+ * their value and the refinements. The ingredients are checked against a copy of the dictionary and only
+ * registered in the dictionary itself once the whole file was read, so a file which does not fit changes nothing.
+ * Files are written to a temporary file and moved into place, a reader never sees half a file.
+ */
+public final class RecipeIndexCache {
+    public static final int VERSION = 1;
+
+    private static final int MAGIC = 0x43524654;
+    private static final String PREFIX = "recipes-";
+    private static final String SUFFIX = ".bin";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte TAG = 0;
+    private static final byte VARIABLE = 1;
+    private static final int FULL_MATCH = 1;
+    private static final int ANY_LEVEL = 2;
+    private static final int SHAPELESS = 4;
+    private static final int MAX_LENGTH = 1 << 20;
+
+    private final Path directory;
+
+    public RecipeIndexCache(Path directory) {
+        this.directory = directory;
+    }
+
+    public Path getFile(Key key) {
+        return directory.resolve(PREFIX + key + SUFFIX);
+    }
+
+    /*
+     * Null if there is no file for the key or it does not fit the dictionary, then the index must be built
+     * from the prefabs. The dictionary must hold what it held when the file was written, up to the first ingredient
+     * of the recipes; it is only changed if the whole file could be read.
+     */
+    public Content read(Key key, IngredientDictionary ingredients) throws IOException {
+        Path file = getFile(key);
+
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION || !readString(input).equals(key.toString())) {
+                return null;
+            }
+
+            List<Registration> registrations = readIngredients(input, ingredients.copy());
+
+            if (registrations == null) {
+                return null;
+            }
+
+            Content content = new Content();
+            int countRecipes = readLength(input);
+
+            for (int i = 0; i < countRecipes; i++) {
+                content.recipes.add(readRecipe(input));
+            }
+
+            int countRefinements = readLength(input);
+
+            for (int i = 0; i < countRefinements; i++) {
+                String value = readString(input);
+                int instigator = input.readInt();
+                int target = input.readInt();
+                content.refinements.add(new Refinement(value, instigator, target, input.readByte()));
+            }
+
+            for (Registration registration : registrations) {
+                if (registration.register(ingredients) != registration.id) {
+                    return null;
+                }
+            }
+
+            return content;
+        } catch (RuntimeException exception) {
+            return null;
+        }
+    }
+
+    /*
+     * Write the recipes and the refinements of the index and delete the files of other keys.
+     * The ingredients from firstIngredient and the tags from firstTag on are the ones the recipes registered.
+     */
+    public void write(Key key, IngredientDictionary ingredients, int firstIngredient, int firstTag, Content content) throws IOException {
+        Files.createDirectories(directory);
+        Path temporary = Files.createTempFile(directory, PREFIX, ".tmp");
+
+        try {
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                writeString(output, key.toString());
+                writeIngredients(output, ingredients, firstIngredient, firstTag);
+
+                output.writeInt(content.recipes.size());
+                for (RecipeIndex.NormalizedRecipe<String> recipe : content.recipes) {
+                    writeRecipe(output, recipe);
+                }
+
+                output.writeInt(content.refinements.size());
+                for (Refinement refinement : content.refinements) {
+                    writeString(output, refinement.value);
+                    output.writeInt(refinement.instigator);
+                    output.writeInt(refinement.target);
+                    output.writeByte(refinement.resultCount);
+                }
+            }
+
+            Files.move(temporary, getFile(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+
+        deleteOthers(key);
+    }
+
+    private void deleteOthers(Key key) throws IOException {
+        Path current = getFile(key);
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                if (!file.equals(current)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    private static void writeIngredients(DataOutputStream output, IngredientDictionary ingredients, int firstIngredient, int firstTag)
+            throws IOException {
+        output.writeInt(firstIngredient);
+        output.writeInt(ingredients.size() - firstIngredient);
+
+        for (int id = firstIngredient; id < ingredients.size(); id++) {
+            writeString(output, ingredients.getName(id));
+        }
+
+        output.writeInt(firstTag);
+        output.writeInt(ingredients.countTags() - firstTag);
+
+        for (int index = firstTag; index < ingredients.countTags(); index++) {
+            int id = IngredientDictionary.ANY - 1 - index;
+
+            if (ingredients.isVariable(id)) {
+                int boundTag = ingredients.getBoundTag(id);
+                output.writeByte(VARIABLE);
+                writeString(output, ingredients.getName(id).substring(IngredientDictionary.VARIABLE_PREFIX.length()));
+                writeString(output, boundTag == IngredientDictionary.ANY ? "" : ingredients.getName(boundTag));
+            } else {
+                output.writeByte(TAG);
+                writeString(output, ingredients.getName(id).substring(IngredientDictionary.TAG_PREFIX.length()));
+            }
+        }
+    }
+
+    /*
+     * Register the names again in the order they were written in the copy of the dictionary,
+     * null if they do not get the same ids
+     */
+    private static List<Registration> readIngredients(DataInputStream input, IngredientDictionary ingredients) throws IOException {
+        List<Registration> registrations = Lists.newArrayList();
+        int firstIngredient = input.readInt();
+        int countIngredients = readLength(input);
+
+        if (firstIngredient != ingredients.size()) {
+            return null;
+        }
+
+        for (int i = 0; i < countIngredients; i++) {
+            registrations.add(new Registration(firstIngredient + i, readString(input)));
+        }
+
+        int firstTag = input.readInt();
+        int countTags = readLength(input);
+
+        if (firstTag != ingredients.countTags()) {
+            return null;
+        }
+
+        for (int i = 0; i < countTags; i++) {
+            int id = IngredientDictionary.ANY - 1 - (firstTag + i);
+
+            if (input.readByte() == VARIABLE) {
+                String name = readString(input);
+                String tag = readString(input);
+                registrations.add(new Registration(id, name, tag.isEmpty() ? null : tag));
+            } else {
+                registrations.add(new Registration(id, IngredientDictionary.TAG_PREFIX + readString(input)));
+            }
+        }
+
+        for (Registration registration : registrations) {
+            if (registration.register(ingredients) != registration.id) {
+                return null;
+            }
+        }
+
+        return registrations;
+    }
+
+    private static void writeRecipe(DataOutputStream output, RecipeIndex.NormalizedRecipe<String> recipe) throws IOException {
+        writeString(output, recipe.getValue());
+        output.writeByte((recipe.isFullMatch() ? FULL_MATCH : 0) | (recipe.isAnyLevel() ? ANY_LEVEL : 0) | (recipe.isShapeless() ? SHAPELESS : 0));
+        writeMatrix(output, recipe.getMatrix());
+
+        output.writeInt(recipe.getOrientations().size());
+        for (RecipeMatrix orientation : recipe.getOrientations()) {
+            writeMatrix(output, orientation);
+        }
+    }
+
+    private static RecipeIndex.NormalizedRecipe<String> readRecipe(DataInputStream input) throws IOException {
+        String value = readString(input);
+        int flags = input.readByte();
+        RecipeMatrix matrix = readMatrix(input);
+        int countOrientations = readLength(input);
+        Set<RecipeMatrix> orientations = Sets.newLinkedHashSet();
+
+        for (int i = 0; i < countOrientations; i++) {
+            orientations.add(readMatrix(input));
+        }
+
+        return new RecipeIndex.NormalizedRecipe<String>(matrix, (flags & FULL_MATCH) != 0, (flags & ANY_LEVEL) != 0,
+                (flags & SHAPELESS) != 0, orientations, value);
+    }
+
+    private static void writeMatrix(DataOutputStream output, RecipeMatrix matrix) throws IOException {
+        output.writeInt(matrix.getLevels());
+        output.writeInt(matrix.getWidth());
+        output.writeInt(matrix.getHeight());
+
+        for (int i = 0; i < matrix.size(); i++) {
+            output.writeInt(matrix.get(i));
+        }
+    }
+
+    private static RecipeMatrix readMatrix(DataInputStream input) throws IOException {
+        int levels = readLength(input);
+        int width = readLength(input);
+        int height = readLength(input);
+        int[] cells = new int[checkLength((long) levels * width * height)];
+
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = input.readInt();
+        }
+
+        return new RecipeMatrix(levels, width, height, cells);
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        byte[] bytes = new byte[readLength(input)];
+        input.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /*
+     * A count or a size, which a damaged file must not turn into a huge allocation
+     */
+    private static int readLength(DataInputStream input) throws IOException {
+        return checkLength(input.readInt());
+    }
+
+    private static int checkLength(long length) throws IOException {
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new IOException("Invalid length " + length + " in the recipe cache");
+        }
+
+        return (int) length;
+    }
+
+    /**
+     * What the index was built from: the ingredients known before the recipes and the fields of every recipe, in order.
+     */
+    public static final class Key {
+        private final MessageDigest digest;
+        private String hash;
+
+        public Key() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException exception) {
+                throw new IllegalStateException("SHA-256 is not available", exception);
+            }
+
+            update(VERSION);
+        }
+
+        public Key update(int value) {
+            digest.update(new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value});
+            return this;
+        }
+
+        public Key update(boolean value) {
+            return update(value ? 1 : 0);
+        }
+
+        /*
+         * Null is hashed apart from the empty string
+         */
+        public Key update(String value) {
+            if (value == null) {
+                return update(-1);
+            }
+
+            byte[] bytes = value.getBytes(UTF_8);
+            update(bytes.length);
+            digest.update(bytes);
+            return this;
+        }
+
+        /*
+         * Names, tags and aliases of the ingredients, as the recipes are translated with them
+         */
+        public Key update(IngredientDictionary ingredients) {
+            update(ingredients.size());
+            for (int id = 0; id < ingredients.size(); id++) {
+                update(ingredients.getName(id));
+                BitSet tags = ingredients.getTags(id);
+
+                for (int index = tags.nextSetBit(0); index >= 0; index = tags.nextSetBit(index + 1)) {
+                    update(index);
+                }
+                update(-1);
+            }
+
+            update(ingredients.countTags());
+            for (int index = 0; index < ingredients.countTags(); index++) {
+                update(ingredients.getName(IngredientDictionary.ANY - 1 - index));
+            }
+
+            Map<String, Integer> aliases = ingredients.getAliases();
+            update(aliases.size());
+            for (Map.Entry<String, Integer> alias : aliases.entrySet()) {
+                update(alias.getKey());
+                update(alias.getValue());
+            }
+
+            return this;
+        }
+
+        /*
+         * Hex of the hash; nothing can be added after it is asked for
+         */
+        @Override
+        public String toString() {
+            if (hash == null) {
+                StringBuilder builder = new StringBuilder();
+
+                for (byte value : digest.digest()) {
+                    builder.append(Character.forDigit((value >> 4) & 0xF, 16)).append(Character.forDigit(value & 0xF, 16));
+                }
+                hash = builder.toString();
+            }
+
+            return hash;
+        }
+    }
+
+    /**
+     * Normalized recipes and refinements by the names of their values, in the order they were added to the index
+     */
+    public static final class Content {
+        private final List<RecipeIndex.NormalizedRecipe<String>> recipes = Lists.newArrayList();
+        private final List<Refinement> refinements = Lists.newArrayList();
+
+        public void addRecipe(RecipeIndex.NormalizedRecipe<String> recipe) {
+            recipes.add(recipe);
+        }
+
+        public void addRefinement(Refinement refinement) {
+            refinements.add(refinement);
+        }
+
+        public List<RecipeIndex.NormalizedRecipe<String>> getRecipes() {
+            return recipes;
+        }
+
+        public List<Refinement> getRefinements() {
+            return refinements;
+        }
+    }
+
+    /**
+     * One ingredient, tag or variable as it was written, with the id it must get
+     */
+    private static final class Registration {
+        private final int id;
+        private final String name;
+        private final String tag;
+        private final boolean variable;
+
+        private Registration(int id, String name) {
+            this.id = id;
+            this.name = name;
+            this.tag = null;
+            this.variable = false;
+        }
+
+        private Registration(int id, String name, String tag) {
+            this.id = id;
+            this.name = name;
+            this.tag = tag;
+            this.variable = true;
+        }
+
+        private int register(IngredientDictionary ingredients) {
+            return variable ? ingredients.registerVariable(name, tag) : ingredients.register(name);
+        }
+    }
+
+    public static final class Refinement {
+        private final String value;
+        private final int instigator;
+        private final int target;
+        private final byte resultCount;
+
+        public Refinement(String value, int instigator, int target, byte resultCount) {
+            this.value = value;
+            this.instigator = instigator;
+            this.target = target;
+            this.resultCount = resultCount;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public int getInstigator() {
+            return instigator;
+        }
+
+        public int getTarget() {
+            return target;
+        }
+
+        public byte getResultCount() {
+            return resultCount;
+        }
+    }
+}
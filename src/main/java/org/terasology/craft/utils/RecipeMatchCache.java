@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of the results of RecipeIndex by the fingerprint of the craft grid.
+ * <p/>
+ * Grids which match nothing are cached too, as most grids are half-built layouts.
+ * A match keeps a copy of the cells of its grid, so two grids with the same fingerprint are never confused.
+ * The owner must call invalidate() whenever its recipes change.
+ */
+public class RecipeMatchCache<T> {
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final Map<Long, CachedMatch<T>> matches;
+    private long hits = 0;
+    private long misses = 0;
+
+    public RecipeMatchCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public RecipeMatchCache(final int capacity) {
+        this.matches = new LinkedHashMap<Long, CachedMatch<T>>(capacity * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, CachedMatch<T>> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /*
+     * Returns null if the grid is not cached, a match with a null recipe if the grid is known to match nothing
+     */
+    public synchronized CachedMatch<T> get(RecipeMatchState state) {
+        CachedMatch<T> match = matches.get(state.getFingerprint());
+
+        if (match != null && match.isFor(state)) {
+            hits++;
+            return match;
+        }
+
+        misses++;
+        return null;
+    }
+
+    public synchronized void put(RecipeMatchState state, T recipe) {
+        matches.put(state.getFingerprint(), new CachedMatch<T>(state, recipe));
+    }
+
+    public synchronized void invalidate() {
+        matches.clear();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized int size() {
+        return matches.size();
+    }
+
+    public static final class CachedMatch<T> {
+        private final int levels;
+        private final int width;
+        private final int height;
+        private final int countItems;
+        private final int[] cells;
+        private final T recipe;
+
+        private CachedMatch(RecipeMatchState state, T recipe) {
+            this.levels = state.getLevels();
+            this.width = state.getWidth();
+            this.height = state.getHeight();
+            this.countItems = state.getCountItems();
+            this.cells = state.getCells();
+            this.recipe = recipe;
+        }
+
+        public T getRecipe() {
+            return recipe;
+        }
+
+        private boolean isFor(RecipeMatchState state) {
+            return levels == state.getLevels() && width == state.getWidth() && height == state.getHeight()
+                    && countItems == state.getCountItems() && state.hasCells(cells);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+import java.util.Arrays;
+
+/**
+ * Ingredient ids of the cells of one craft block with a fingerprint which is updated cell by cell.
+ * <p/>
+ * The fingerprint is the xor of a hash of (cell, ingredient) for every non-empty cell,
+ * so putting or taking one item changes it in constant time, and RecipeIndex finds the recipe
+ * by the fingerprint without walking the grid.
+ * <p/>
+ * A second fingerprint, the sum of a hash of every ingredient, does not depend on the cells
+ * and is used for shapeless recipes.
+ */
+public class RecipeMatchState {
+    private final int levels;
+    private final int width;
+    private final int height;
+    private final int[] cells;
+    private long fingerprint = 0;
+    private long ingredientsFingerprint = 0;
+    private int countItems = 0;
+    private int version = 0;
+
+    public RecipeMatchState(int levels, int width, int height) {
+        this.levels = levels;
+        this.width = width;
+        this.height = height;
+        this.cells = new int[levels * width * height];
+    }
+
+    private RecipeMatchState(RecipeMatchState state) {
+        this.levels = state.levels;
+        this.width = state.width;
+        this.height = state.height;
+        this.cells = state.cells.clone();
+        this.fingerprint = state.fingerprint;
+        this.ingredientsFingerprint = state.ingredientsFingerprint;
+        this.countItems = state.countItems;
+        this.version = state.version;
+    }
+
+    public void set(int level, int slot, int id) {
+        set(level * width * height + slot, id);
+    }
+
+    public void set(int index, int id) {
+        int oldId = cells[index];
+
+        if (oldId == id) {
+            return;
+        }
+
+        if (oldId != IngredientDictionary.EMPTY) {
+            fingerprint ^= getFingerprint(index, oldId);
+            ingredientsFingerprint -= getIngredientFingerprint(oldId);
+            countItems--;
+        }
+
+        if (id != IngredientDictionary.EMPTY) {
+            fingerprint ^= getFingerprint(index, id);
+            ingredientsFingerprint += getIngredientFingerprint(id);
+            countItems++;
+        }
+
+        cells[index] = id;
+        version++;
+    }
+
+    public int get(int index) {
+        return cells[index];
+    }
+
+    public void clear() {
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = IngredientDictionary.EMPTY;
+        }
+
+        fingerprint = 0;
+        ingredientsFingerprint = 0;
+        countItems = 0;
+        version++;
+    }
+
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    public long getIngredientsFingerprint() {
+        return ingredientsFingerprint;
+    }
+
+    /*
+     * Changes whenever a cell changes, so a result searched for an older copy can be recognised
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    public int getCountItems() {
+        return countItems;
+    }
+
+    public int getLevels() {
+        return levels;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int size() {
+        return cells.length;
+    }
+
+    /*
+     * Snapshot which can be searched on another thread while this state keeps changing
+     */
+    public RecipeMatchState copy() {
+        return new RecipeMatchState(this);
+    }
+
+    /*
+     * Copy of the cells
+     */
+    int[] getCells() {
+        return cells.clone();
+    }
+
+    boolean hasCells(int[] otherCells) {
+        return Arrays.equals(cells, otherCells);
+    }
+
+    /*
+     * Copy of the cells as a matrix
+     */
+    public RecipeMatrix toMatrix() {
+        return new RecipeMatrix(levels, width, height, cells.clone());
+    }
+
+    /*
+     * Hash of one ingredient in any cell
+     */
+    public static long getIngredientFingerprint(int id) {
+        return getFingerprint(-1, id);
+    }
+
+    /*
+     * Hash of one ingredient in one cell (mixing function of SplitMix64)
+     */
+    public static long getFingerprint(int index, int id) {
+        long z = (((long) index << 32) | (id & 0xffffffffL)) + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -15,28 +15,122 @@
  */
 package org.terasology.craft.utils;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import com.google.common.collect.Maps;
+import org.terasology.craft.components.actions.CraftingActionComponent;
+
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 /**
  * Created by adeon on 02.06.14.
+ * <p/>
+ * The cells are packed in one array: level by level, row by row.
+ * Rotations read the cells through precomputed permutation tables, so comparing and hashing
+ * a rotated matrix does not create new matrices.
  */
-public class RecipeMatrix {
-    public int width = 3;
-    public int height = 3;
-    public Map<String, List<String>> recipe = null;
-    public static final String EMPTY_ROW = " ";
+public final class RecipeMatrix {
+    public static final int EMPTY = IngredientDictionary.EMPTY;
 
-    public RecipeMatrix(Map<String, List<String>> recipe) {
-        this(recipe, 3, 3);
-    }
+    /*
+     * Permutation tables by the size of the matrix: for every count of quarter turns,
+     * the index of the source cell for every cell of the rotated level
+     */
+    private static final Map<Integer, int[][]> ROTATIONS = Maps.newConcurrentMap();
+
+    private final int levels;
+    private final int width;
+    private final int height;
+    private final int[] cells;
+    private final int[][] rotations;
+
+    public RecipeMatrix(int levels, int width, int height, int[] cells) {
+        if (cells.length != levels * width * height) {
+            throw new IllegalArgumentException("The matrix must have " + levels * width * height + " cells");
+        }
 
-    public RecipeMatrix(Map<String, List<String>> recipe, int width, int height) {
-        this.recipe = recipe;
+        this.levels = levels;
         this.width = width;
         this.height = height;
+        this.cells = cells;
+        this.rotations = getRotations(width, height);
+    }
+
+    /*
+     * Translate the recipe from the prefab to the ingredient ids
+     */
+    public RecipeMatrix(Map<String, List<String>> recipe, int levels, int width, int height, IngredientDictionary ingredients) {
+        this(recipe, levels, width, height, ingredients, Collections.<String, String>emptyMap());
+    }
+
+    /*
+     * Cells "$name" of a template recipe are variables bound to the tag given for the name,
+     * or to any ingredient if there is none
+     */
+    public RecipeMatrix(Map<String, List<String>> recipe, int levels, int width, int height, IngredientDictionary ingredients,
+                        Map<String, String> variables) {
+        this(levels, width, height, new int[levels * width * height]);
+
+        for (Map.Entry<String, List<String>> level : recipe.entrySet()) {
+            int levelIndex = getLevelIndex(level.getKey());
+
+            if (levelIndex < 0 || levelIndex >= levels) {
+                throw new IllegalArgumentException("Unknown level " + level.getKey());
+            }
+
+            if (level.getValue().size() != width * height) {
+                throw new IllegalArgumentException("The level " + level.getKey() + " must have " + width * height + " cells");
+            }
+
+            for (int i = 0; i < width * height; i++) {
+                cells[levelIndex * width * height + i] = getId(level.getValue().get(i), ingredients, variables);
+            }
+        }
+    }
+
+    /*
+     * Id of a cell of a recipe, ingredients unknown so far are registered
+     */
+    static int getId(String name, IngredientDictionary ingredients, Map<String, String> variables) {
+        if (name.startsWith(IngredientDictionary.VARIABLE_PREFIX)) {
+            String variable = name.substring(IngredientDictionary.VARIABLE_PREFIX.length());
+            return ingredients.registerVariable(variable, variables.get(variable));
+        }
+
+        int id = ingredients.getId(name);
+
+        if (id == IngredientDictionary.UNKNOWN) {
+            id = ingredients.register(name);
+        }
+
+        return id;
+    }
+
+    public int getLevels() {
+        return levels;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int get(int level, int line, int column) {
+        return cells[(level * height + line) * width + column];
+    }
+
+    /*
+     * Cell by its index in the packed array
+     */
+    public int get(int index) {
+        return cells[index];
+    }
+
+    public int size() {
+        return cells.length;
     }
 
     /*
@@ -48,208 +142,405 @@ public class RecipeMatrix {
      * 1 0 1
      * 0 0 0
      *
+     * Only the bounding box of the non-empty cells is kept,
+     * so an empty line between two non-empty lines stays:
+     *
+     * 1 0 1
+     * 1 0 1
+     *
      */
     public RecipeMatrix trim() {
-        HashMap<String, List<String>> matrix = new HashMap<String, List<String>>();
-
-        ArrayList<Integer> counterLines = new ArrayList<Integer>(width);
-        ArrayList<Integer> counterColumns = new ArrayList<Integer>(height);
-        int countLevels = recipe.size();
-
-        //calculate count for empty rows
-        for (int i = 0; i < height; i++) {
-            if (counterLines.size() < (i + 1)) {
-                counterLines.add(0);
-            }
-            for (int j = 0; j < width; j++) {
-                for (List<String> currentLevel : recipe.values()) {
-                    if (currentLevel.get(i * width + j).equals(EMPTY_ROW)) {
-                        counterLines.set(i, counterLines.get(i) + 1);
-                    }
-                }
+        int firstLine = height;
+        int lastLine = -1;
+        int firstColumn = width;
+        int lastColumn = -1;
+
+        for (int i = 0; i < cells.length; i++) {
+            if (cells[i] != EMPTY) {
+                int line = (i / width) % height;
+                int column = i % width;
+
+                firstLine = Math.min(firstLine, line);
+                lastLine = Math.max(lastLine, line);
+                firstColumn = Math.min(firstColumn, column);
+                lastColumn = Math.max(lastColumn, column);
             }
         }
 
-            /*
-             * Now we know that our matrix has one line
-             * But we cant delete the line if it is between two non-empty lines
-             */
-        if (counterLines.size() == 3 &&
-                counterLines.get(1) == countLevels * width &&
-                counterLines.get(0) < countLevels * width &&
-                counterLines.get(2) < countLevels * width) {
-            counterLines.set(1, 0);
+        if (lastLine < 0) {
+            return new RecipeMatrix(levels, 0, 0, new int[0]);
         }
 
-        //calculate count for empty columns
-        for (int i = 0; i < width; i++) {
-            if (counterColumns.size() < (i + 1)) {
-                counterColumns.add(0);
-            }
-            for (int j = 0; j < height; j++) {
-                for (List<String> currentLevel : recipe.values()) {
-                    if (currentLevel.get(j * width + i).equals(EMPTY_ROW)) {
-                        counterColumns.set(i, counterColumns.get(i) + 1);
-                    }
-                }
-            }
+        int countLines = lastLine - firstLine + 1;
+        int countColumns = lastColumn - firstColumn + 1;
+
+        if (countLines == height && countColumns == width) {
+            return this;
         }
 
+        int[] matrix = new int[levels * countLines * countColumns];
 
-        if (counterColumns.size() == 3 &&
-                counterColumns.get(1) == countLevels * height &&
-                counterColumns.get(0) < countLevels * height &&
-                counterColumns.get(2) < countLevels * height) {
-            counterColumns.set(1, 0);
+        for (int level = 0; level < levels; level++) {
+            for (int i = 0; i < countLines; i++) {
+                System.arraycopy(cells, (level * height + firstLine + i) * width + firstColumn,
+                        matrix, (level * countLines + i) * countColumns, countColumns);
+            }
         }
 
+        return new RecipeMatrix(levels, countColumns, countLines, matrix);
+    }
+
+        /*
+         * Rotate matrix
+         *
+         * input:     output:
+         *
+         * 1 0 2      1 3 1
+         * 3 4 8      8 4 0
+         * 1 8 7      7 8 2
+         *
+         */
+
+    public RecipeMatrix rotate() {
+        return rotate(1);
+    }
 
-        int countLines = 0;
+    public RecipeMatrix rotate(int turns) {
+        turns &= 3;
 
-        if (counterLines.isEmpty() && counterColumns.isEmpty()) {
+        if (turns == 0) {
             return this;
         }
 
-        //create new matrix without empty lines
-        for (int i = 0; i < height; i++) {
-            if (counterLines.get(i) < countLevels * width) {
-                for (String key : recipe.keySet()) {
-                    if (!matrix.containsKey(key)) {
-                        matrix.put(key, new ArrayList<String>());
-                    }
+        int[] rotation = rotations[turns];
+        int area = width * height;
+        int[] rotated = new int[cells.length];
 
-                    for (int j = 0; j < height; j++) {
-                        matrix.get(key).add(recipe.get(key).get(i * width + j));
-                    }
-                }
-                countLines++;
+        for (int level = 0; level < levels; level++) {
+            for (int i = 0; i < area; i++) {
+                rotated[level * area + i] = cells[level * area + rotation[i]];
             }
         }
 
-            /*
-             * Now we have this result:
-             *
-             * 1 0 1
-             * 1 0 1
-             *
-             */
+        return (turns & 1) == 0 ?
+                new RecipeMatrix(levels, width, height, rotated) :
+                new RecipeMatrix(levels, height, width, rotated);
+    }
 
-        int countColumns = width;
+    /*
+     * Swap left and right
+     */
+    public RecipeMatrix mirror() {
+        int[] mirrored = new int[cells.length];
 
+        for (int line = 0; line < levels * height; line++) {
+            for (int column = 0; column < width; column++) {
+                mirrored[line * width + column] = cells[line * width + width - column - 1];
+            }
+        }
 
-        //delete from the new matrix empty columns
-        for (int i = 0, tCounter = 0; i < countColumns; i++, tCounter++) {
-            if (counterColumns.get(tCounter) == countLevels * height) {
-                for (String key : recipe.keySet()) {
-                    if (!matrix.containsKey(key)) {
-                        matrix.put(key, new ArrayList<String>());
-                    }
+        return new RecipeMatrix(levels, width, height, mirrored);
+    }
 
-                    for (int j = 0; j < countLines; j++) {
-                        int t = j * (countColumns - 1) + i;
-                        matrix.get(key).remove(t);
-                    }
-                }
-                countColumns--;
-                //counterColumns.set( i, counterColumns.get(i) - 1 );
-                i--;
+    /*
+     * Turn the levels upside down
+     */
+    public RecipeMatrix flip() {
+        int area = width * height;
+        int[] flipped = new int[cells.length];
+
+        for (int level = 0; level < levels; level++) {
+            System.arraycopy(cells, (levels - level - 1) * area, flipped, level * area, area);
+        }
+
+        return new RecipeMatrix(levels, width, height, flipped);
+    }
+
+    /*
+     * Rotate a quarter turn around the horizontal axis along the rows,
+     * so the lines become levels and the levels become lines
+     */
+    public RecipeMatrix tilt() {
+        int[] tilted = new int[cells.length];
+
+        for (int level = 0; level < height; level++) {
+            for (int line = 0; line < levels; line++) {
+                System.arraycopy(cells, ((levels - line - 1) * height + level) * width,
+                        tilted, (level * levels + line) * width, width);
             }
         }
 
+        return new RecipeMatrix(height, width, levels, tilted);
+    }
 
-        return new RecipeMatrix(matrix, countColumns, countLines);
+    /*
+     * Delete empty levels below and above the non-empty ones
+     */
+    public RecipeMatrix trimLevels() {
+        return trimLevels(false);
     }
 
-        /*
-         * Rotate matrix
-         *
-         * input:     output:
-         *
-         * 1 0 2      1 3 1
-         * 3 4 8      8 4 0
-         * 1 8 7      7 8 2
-         *
-         */
+    /*
+     * Delete empty levels above the non-empty ones, the matrix stays on its bottom level
+     */
+    public RecipeMatrix trimTopLevels() {
+        return trimLevels(true);
+    }
 
-    public RecipeMatrix rotate() {
+    private RecipeMatrix trimLevels(boolean keepBottom) {
+        int area = width * height;
+        int firstLevel = levels;
+        int lastLevel = -1;
+
+        for (int i = 0; i < cells.length; i++) {
+            if (cells[i] != EMPTY) {
+                firstLevel = Math.min(firstLevel, i / area);
+                lastLevel = Math.max(lastLevel, i / area);
+            }
+        }
+
+        if (lastLevel < 0) {
+            return new RecipeMatrix(0, width, height, new int[0]);
+        }
+
+        if (keepBottom) {
+            firstLevel = 0;
+        }
+
+        if (firstLevel == 0 && lastLevel == levels - 1) {
+            return this;
+        }
 
-        RecipeMatrix rotatedMatrix = new RecipeMatrix(new HashMap<String, List<String>>());
+        int[] matrix = new int[(lastLevel - firstLevel + 1) * area];
+        System.arraycopy(cells, firstLevel * area, matrix, 0, matrix.length);
 
-        for (String key : recipe.keySet()) {
-            ArrayList<String> buff = new ArrayList<String>();
+        return new RecipeMatrix(lastLevel - firstLevel + 1, width, height, matrix);
+    }
 
-            rotatedMatrix.recipe.put(key, buff);
+    /*
+     * Put the matrix into a matrix with more levels, starting from the given level
+     */
+    public RecipeMatrix placeOnLevel(int countLevels, int level) {
+        int[] placed = new int[countLevels * width * height];
+        System.arraycopy(cells, 0, placed, level * width * height, cells.length);
 
+        return new RecipeMatrix(countLevels, width, height, placed);
+    }
+
+    /*
+     * The same matrix in a grid of the given size, with its first cell in the given line and column
+     */
+    public RecipeMatrix place(int gridWidth, int gridHeight, int line, int column) {
+        int[] placed = new int[levels * gridWidth * gridHeight];
+
+        for (int level = 0; level < levels; level++) {
             for (int i = 0; i < height; i++) {
-                for (int j = 0; j < width; j++) {
-                    int index = height * (width - j - 1) + i;
-                    buff.add(recipe.get(key).get(index < 0 ? 0 : index));
-                }
+                System.arraycopy(cells, (level * height + i) * width, placed, (level * gridHeight + line + i) * gridWidth + column, width);
             }
+        }
 
+        return new RecipeMatrix(levels, gridWidth, gridHeight, placed);
+    }
 
+    /*
+     * Compare with the matrix in all four orientations
+     */
+    public boolean equals(RecipeMatrix matrix) {
+        for (int turns = 0; turns < 4; turns++) {
+            if (matrix.equals(this, turns)) {
+                return true;
+            }
         }
 
-        rotatedMatrix.width = height;
-        rotatedMatrix.height = width;
-
-        return rotatedMatrix;
+        return false;
     }
 
-    public boolean equals(RecipeMatrix matrix) {
+    /*
+     * Compare with the given matrix rotated by the count of quarter turns
+     */
+    public boolean equals(RecipeMatrix matrix, int turns) {
+        turns &= 3;
 
-        if (recipe.size() != matrix.recipe.size()) {
+        if (levels != matrix.levels || width != matrix.getWidth(turns) || height != matrix.getHeight(turns)) {
             return false;
         }
 
-        for (int i = 0; i < 4; i++) {
-            if (matrix.width != width && matrix.height != height) {
-                matrix = matrix.rotate();
-                continue;
+        int[] rotation = matrix.rotations[turns];
+        int area = width * height;
+
+        for (int level = 0, offset = 0; level < levels; level++, offset += area) {
+            for (int i = 0; i < area; i++) {
+                if (cells[offset + i] != matrix.cells[offset + rotation[i]]) {
+                    return false;
+                }
             }
+        }
 
-            boolean found = true;
+        return true;
+    }
 
-            for (String key : recipe.keySet()) {
-                int trace1 = getTrace(key);
-                int trace2 = matrix.getTrace(key);
+    /*
+     * Hash code of the matrix rotated by the count of quarter turns
+     */
+    public int hashCode(int turns) {
+        turns &= 3;
 
-                if (getTrace(key) != matrix.getTrace(key) || !recipe.get(key).equals(matrix.recipe.get(key))) {
-                    found = false;
-                    break;
-                }
-            }
+        int[] rotation = rotations[turns];
+        int area = width * height;
+        int hash = 31 * (31 * levels + getWidth(turns)) + getHeight(turns);
 
-            if (found) {
-                return true;
+        for (int level = 0, offset = 0; level < levels; level++, offset += area) {
+            for (int i = 0; i < area; i++) {
+                hash = 31 * hash + cells[offset + rotation[i]];
             }
+        }
+
+        return hash;
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode(0);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof RecipeMatrix && equals((RecipeMatrix) obj, 0);
+    }
 
-            matrix = matrix.rotate();
+    /*
+     * Count of quarter turns to the canonical orientation.
+     *
+     * The canonical orientation is the smallest of the four rotations (size first, then cells),
+     * so two matrices which can be rotated into each other have the same canonical form.
+     */
+    public int getCanonicalRotation() {
+        int canonical = 0;
+
+        for (int turns = 1; turns < 4; turns++) {
+            if (compareRotations(turns, canonical) < 0) {
+                canonical = turns;
+            }
         }
 
-        for (String key : recipe.keySet()) {
-            if (!matrix.recipe.containsKey(key)) {
+        return canonical;
+    }
+
+    public RecipeMatrix getCanonicalForm() {
+        return rotate(getCanonicalRotation());
+    }
+
+    public boolean isEmpty() {
+        for (int element : cells) {
+            if (element != EMPTY) {
                 return false;
             }
+        }
 
+        return true;
+    }
+
+    /*
+     * Whether some cell is a tag or the wildcard instead of one ingredient
+     */
+    public boolean hasTags() {
+        for (int element : cells) {
+            if (IngredientDictionary.isTag(element)) {
+                return true;
+            }
         }
 
         return false;
     }
 
-    public int getTrace(String level) {
-        String trace = "";
+    public RecipeMatrix clone() {
+        return new RecipeMatrix(levels, width, height, cells.clone());
+    }
 
-        int min = Math.min(width, height);
+    private int getWidth(int turns) {
+        return (turns & 1) == 0 ? width : height;
+    }
 
-        for (int i = 0; i < min; i++) {
-            trace += recipe.get(level).get(i * min + i);
+    private int getHeight(int turns) {
+        return (turns & 1) == 0 ? height : width;
+    }
+
+    private int compareRotations(int first, int second) {
+        if (getWidth(first) != getWidth(second)) {
+            return getWidth(first) - getWidth(second);
         }
 
-        return trace.hashCode();
+        int[] firstRotation = rotations[first];
+        int[] secondRotation = rotations[second];
+        int area = width * height;
+
+        for (int level = 0, offset = 0; level < levels; level++, offset += area) {
+            for (int i = 0; i < area; i++) {
+                int firstCell = cells[offset + firstRotation[i]];
+                int secondCell = cells[offset + secondRotation[i]];
+
+                if (firstCell != secondCell) {
+                    return firstCell < secondCell ? -1 : 1;
+                }
+            }
+        }
+
+        return 0;
     }
 
-    public RecipeMatrix clone() {
-        return new RecipeMatrix(this.recipe, this.width, this.height);
+    /*
+     * Permutation tables of a level with the given size rotated clockwise by 0, 1, 2 and 3 quarter turns
+     */
+    private static int[][] getRotations(int width, int height) {
+        Integer size = (width << 16) | height;
+        int[][] rotations = ROTATIONS.get(size);
+
+        if (rotations == null) {
+            rotations = createRotations(width, height);
+            ROTATIONS.put(size, rotations);
+        }
+
+        return rotations;
+    }
+
+    private static int[][] createRotations(int width, int height) {
+        int area = width * height;
+        int[][] rotations = new int[4][area];
+
+        for (int i = 0; i < area; i++) {
+            rotations[0][i] = i;
+        }
+
+        //every rotation is one more quarter turn of the previous one
+        for (int turns = 1; turns < 4; turns++) {
+            int previousWidth = (turns & 1) == 0 ? height : width;
+            int previousHeight = (turns & 1) == 0 ? width : height;
+            int k = 0;
+
+            for (int i = 0; i < previousWidth; i++) {
+                for (int j = 0; j < previousHeight; j++) {
+                    rotations[turns][k++] = rotations[turns - 1][(previousHeight - j - 1) * previousWidth + i];
+                }
+            }
+        }
+
+        return rotations;
+    }
+
+    /*
+     * Levels are named as in CraftingActionComponent or by their index
+     */
+    static int getLevelIndex(String level) {
+        for (int i = 0; i < CraftingActionComponent.levels.length; i++) {
+            if (CraftingActionComponent.levels[i].equals(level)) {
+                return i;
+            }
+        }
+
+        try {
+            return Integer.parseInt(level);
+        } catch (NumberFormatException exception) {
+            return -1;
+        }
     }
 }
@@ -0,0 +1,376 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps recipe matrices packed in shared arrays.
+ * <p/>
+ * A matrix is kept once as a pattern: its size followed by one reference per level.
+ * A level is kept once as its ingredient ids, one after another in a shared array of shorts,
+ * widened to ints if some id does not fit in a short.
+ * Recipes which have levels in common (an empty level, a row of planks) share them, and recipes or orientations
+ * with the same cells, e.g. the orientations of a symmetric recipe or one shape for two results, share the pattern.
+ * <p/>
+ * Indexes keep the number of the pattern instead of the matrix and ask the pool for the matrix when they need it.
+ * getFootprint() gives the bytes held by the arrays of the pool.
+ */
+public final class RecipeMatrixPool {
+    private static final int ARRAY_HEADER = 16;
+    // levels, width and height of a pattern in one int, ten bits each, before the offsets of its levels
+    private static final int HEADER = 1;
+    private static final int MAX_SIZE = 0x3FF;
+    // offset + 1 and area of a level
+    private static final int LEVEL_SLOT = 2;
+
+    // read without the lock: the cells of a level and the record of a pattern never change once they are added,
+    // and the arrays are only replaced by larger copies
+    private volatile short[] cells = new short[256];
+    private volatile int[] wideCells;
+    private volatile int[] patterns = new int[256];
+    private int countCells = 0;
+    private int countPatternInts = 0;
+    private int[] levelTable = new int[LEVEL_SLOT * 64];
+    private int[] patternTable = new int[64];
+    private int countLevels = 0;
+    private int countPatterns = 0;
+    private long countRequests = 0;
+
+    /*
+     * Number of the pattern with the size and the cells of the matrix
+     */
+    public synchronized int intern(RecipeMatrix matrix) {
+        countRequests++;
+
+        int slot = find(matrix);
+
+        if (patternTable[slot] != 0) {
+            return patternTable[slot] - 1;
+        }
+
+        if (matrix.getLevels() > MAX_SIZE || matrix.getWidth() > MAX_SIZE || matrix.getHeight() > MAX_SIZE) {
+            throw new IllegalArgumentException("A pattern has at most " + MAX_SIZE + " levels, lines and columns");
+        }
+
+        int area = matrix.getWidth() * matrix.getHeight();
+        int[] levels = new int[matrix.getLevels()];
+
+        for (int level = 0; level < levels.length; level++) {
+            levels[level] = internLevel(matrix, level * area, area);
+        }
+
+        int pattern = countPatternInts;
+        int[] records = patterns;
+
+        if (countPatternInts + HEADER + levels.length > records.length) {
+            records = Arrays.copyOf(records, Math.max(records.length * 2, countPatternInts + HEADER + levels.length));
+        }
+
+        records[countPatternInts++] = matrix.getLevels() << 20 | matrix.getWidth() << 10 | matrix.getHeight();
+
+        for (int level : levels) {
+            records[countPatternInts++] = level;
+        }
+
+        patterns = records;
+
+        patternTable[slot] = pattern + 1;
+
+        if (++countPatterns * 2 > patternTable.length) {
+            resizePatterns();
+        }
+
+        return pattern;
+    }
+
+    /*
+     * Number of the pattern with the size and the cells of the matrix, -1 if the pool has none
+     */
+    public synchronized int getPattern(RecipeMatrix matrix) {
+        return patternTable[find(matrix)] - 1;
+    }
+
+    /*
+     * The same recipe with its matrices kept in the pool
+     */
+    public <T> RecipeIndex.NormalizedRecipe<T> intern(RecipeIndex.NormalizedRecipe<T> recipe) {
+        if (recipe.getPool() == this) {
+            return recipe;
+        }
+
+        List<RecipeMatrix> orientations = recipe.getOrientations();
+        int[] recipePatterns = new int[orientations.size() + 1];
+        recipePatterns[0] = intern(recipe.getMatrix());
+
+        for (int k = 1; k < recipePatterns.length; k++) {
+            recipePatterns[k] = intern(orientations.get(k - 1));
+        }
+
+        return new RecipeIndex.NormalizedRecipe<T>(this, recipePatterns, recipe.isFullMatch(), recipe.isAnyLevel(),
+                recipe.isShapeless(), recipe.getValue());
+    }
+
+    public RecipeMatrix get(int pattern) {
+        int[] records = patterns;
+        int levels = records[pattern] >>> 20;
+        int width = records[pattern] >>> 10 & MAX_SIZE;
+        int height = records[pattern] & MAX_SIZE;
+        int area = width * height;
+        int[] matrix = new int[levels * area];
+
+        for (int level = 0; level < levels; level++) {
+            int offset = records[pattern + HEADER + level];
+
+            for (int i = 0; i < area; i++) {
+                matrix[level * area + i] = getCell(offset + i);
+            }
+        }
+
+        return new RecipeMatrix(levels, width, height, matrix);
+    }
+
+    /*
+     * One cell of the pattern by its index in the matrix, without building the matrix
+     */
+    public int get(int pattern, int index) {
+        int[] records = patterns;
+        int area = (records[pattern] >>> 10 & MAX_SIZE) * (records[pattern] & MAX_SIZE);
+        return getCell(records[pattern + HEADER + index / area] + index % area);
+    }
+
+    public int getLevels(int pattern) {
+        return patterns[pattern] >>> 20;
+    }
+
+    public int getWidth(int pattern) {
+        return patterns[pattern] >>> 10 & MAX_SIZE;
+    }
+
+    public int getHeight(int pattern) {
+        return patterns[pattern] & MAX_SIZE;
+    }
+
+    public synchronized int getCountPatterns() {
+        return countPatterns;
+    }
+
+    public synchronized int getCountLevels() {
+        return countLevels;
+    }
+
+    /*
+     * Bytes of the arrays of the pool, including the room left for more patterns
+     */
+    public synchronized long getFootprint() {
+        long cellBytes = 2L * cells.length + (wideCells != null ? 4L * wideCells.length : 0);
+        return cellBytes + 4L * (patterns.length + levelTable.length + patternTable.length) + 4 * ARRAY_HEADER;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return countPatterns + " patterns and " + countLevels + " levels for " + countRequests + " matrices, "
+                + getFootprint() / 1024 + " KB";
+    }
+
+    /*
+     * Slot of the pattern in the table, or the free slot where it goes
+     */
+    private int find(RecipeMatrix matrix) {
+        int hash = 31 * (31 * matrix.getLevels() + matrix.getWidth()) + matrix.getHeight();
+
+        for (int i = 0; i < matrix.size(); i++) {
+            hash = 31 * hash + matrix.get(i);
+        }
+
+        int mask = patternTable.length - 1;
+
+        for (int slot = getIndex(hash, mask); ; slot = (slot + 1) & mask) {
+            int pattern = patternTable[slot] - 1;
+
+            if (pattern < 0 || hasCells(pattern, matrix)) {
+                return slot;
+            }
+        }
+    }
+
+    /*
+     * The same hash as find() gives for the matrix of the pattern
+     */
+    private int getPatternHash(int pattern) {
+        int levels = getLevels(pattern);
+        int area = getWidth(pattern) * getHeight(pattern);
+        int hash = 31 * (31 * levels + getWidth(pattern)) + getHeight(pattern);
+
+        for (int level = 0; level < levels; level++) {
+            hash = getLevelHash(hash, patterns[pattern + HEADER + level], area);
+        }
+
+        return hash;
+    }
+
+    private int getLevelHash(int hash, int offset, int area) {
+        int levelHash = hash;
+
+        for (int i = 0; i < area; i++) {
+            levelHash = 31 * levelHash + getCell(offset + i);
+        }
+
+        return levelHash;
+    }
+
+    private boolean hasCells(int pattern, RecipeMatrix matrix) {
+        if (getLevels(pattern) != matrix.getLevels() || getWidth(pattern) != matrix.getWidth()
+                || getHeight(pattern) != matrix.getHeight()) {
+            return false;
+        }
+
+        int area = matrix.getWidth() * matrix.getHeight();
+
+        for (int level = 0; level < matrix.getLevels(); level++) {
+            if (!hasCells(patterns[pattern + HEADER + level], matrix, level * area, area)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean hasCells(int offset, RecipeMatrix matrix, int start, int area) {
+        for (int i = 0; i < area; i++) {
+            if (getCell(offset + i) != matrix.get(start + i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /*
+     * Offset of the level in the array of cells
+     */
+    private int internLevel(RecipeMatrix matrix, int start, int area) {
+        int hash = area;
+
+        for (int i = 0; i < area; i++) {
+            hash = 31 * hash + matrix.get(start + i);
+        }
+
+        int mask = levelTable.length / LEVEL_SLOT - 1;
+        int slot = getIndex(hash, mask);
+
+        for (; levelTable[slot * LEVEL_SLOT] != 0; slot = (slot + 1) & mask) {
+            int offset = levelTable[slot * LEVEL_SLOT] - 1;
+
+            if (levelTable[slot * LEVEL_SLOT + 1] == area && hasCells(offset, matrix, start, area)) {
+                return offset;
+            }
+        }
+
+        int offset = countCells;
+
+        for (int i = 0; i < area; i++) {
+            addCell(matrix.get(start + i));
+        }
+
+        levelTable[slot * LEVEL_SLOT] = offset + 1;
+        levelTable[slot * LEVEL_SLOT + 1] = area;
+
+        if (++countLevels * 2 > levelTable.length / LEVEL_SLOT) {
+            resizeLevels();
+        }
+
+        return offset;
+    }
+
+    private int getCell(int offset) {
+        int[] wide = wideCells;
+        return wide != null ? wide[offset] : cells[offset];
+    }
+
+    private void addCell(int id) {
+        if (wideCells == null && (id < Short.MIN_VALUE || id > Short.MAX_VALUE)) {
+            int[] wide = new int[cells.length];
+
+            for (int i = 0; i < countCells; i++) {
+                wide[i] = cells[i];
+            }
+
+            //the shorts stay for the readers which have not seen the ints yet
+            wideCells = wide;
+        }
+
+        if (wideCells != null) {
+            if (countCells == wideCells.length) {
+                wideCells = Arrays.copyOf(wideCells, wideCells.length * 2);
+            }
+
+            wideCells[countCells++] = id;
+        } else {
+            if (countCells == cells.length) {
+                cells = Arrays.copyOf(cells, cells.length * 2);
+            }
+
+            cells[countCells++] = (short) id;
+        }
+    }
+
+    private void resizePatterns() {
+        int[] resized = new int[patternTable.length * 2];
+        int mask = resized.length - 1;
+
+        for (int entry : patternTable) {
+            if (entry != 0) {
+                int slot = getIndex(getPatternHash(entry - 1), mask);
+
+                while (resized[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+
+                resized[slot] = entry;
+            }
+        }
+
+        patternTable = resized;
+    }
+
+    private void resizeLevels() {
+        int[] resized = new int[levelTable.length * 2];
+        int mask = resized.length / LEVEL_SLOT - 1;
+
+        for (int i = 0; i < levelTable.length; i += LEVEL_SLOT) {
+            if (levelTable[i] != 0) {
+                int area = levelTable[i + 1];
+                int slot = getIndex(getLevelHash(area, levelTable[i] - 1, area), mask);
+
+                while (resized[slot * LEVEL_SLOT] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+
+                resized[slot * LEVEL_SLOT] = levelTable[i];
+                resized[slot * LEVEL_SLOT + 1] = area;
+            }
+        }
+
+        levelTable = resized;
+    }
+
+    private static int getIndex(int hash, int mask) {
+        int mixed = hash * 0x9E3779B9;
+        return (mixed ^ (mixed >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+import java.util.Arrays;
+
+/**
+ * The orientations of the shaped recipes by the patterns of their matrices in a RecipeMatrixPool.
+ * <p/>
+ * The pool keeps every distinct matrix once, so an orientation is known by the number of its pattern and whether
+ * it is a full match, trimmed or any level orientation, and the search of a matrix is a search of the pool followed
+ * by one probe here. The orientations are kept in the order they were added, in arrays, with an open addressing
+ * table over them; nothing is kept per orientation but its key, its value and its slot.
+ */
+public class RecipeOrientationTable<V> {
+    private static final int TRIMMED = 0;
+    private static final int FULL_MATCH = 1;
+    private static final int ANY_LEVEL = 2;
+    private static final int ARRAY_HEADER = 16;
+
+    // pattern and kind of every orientation, the pattern shifted left by two bits
+    private int[] keys = new int[16];
+    private Object[] values = new Object[16];
+    // number of the orientation + 1, or 0 for a free slot
+    private int[] table = new int[32];
+    private int[] countByKind = new int[3];
+    private int size = 0;
+
+    /*
+     * Returns false if the table already has a value for the pattern
+     */
+    public boolean put(int pattern, boolean fullMatch, boolean anyLevel, V value) {
+        int key = getKey(pattern, fullMatch, anyLevel);
+        int slot = find(key);
+
+        if (table[slot] != 0) {
+            return false;
+        }
+
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+
+        keys[size] = key;
+        values[size] = value;
+        table[slot] = ++size;
+        countByKind[key & 3]++;
+
+        if (size * 2 > table.length) {
+            resize();
+        }
+
+        return true;
+    }
+
+    public V get(int pattern, boolean fullMatch, boolean anyLevel) {
+        int orientation = table[find(getKey(pattern, fullMatch, anyLevel))] - 1;
+        return orientation < 0 ? null : getValue(orientation);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /*
+     * Count of the orientations of one kind
+     */
+    public int size(boolean fullMatch, boolean anyLevel) {
+        return countByKind[getKey(0, fullMatch, anyLevel)];
+    }
+
+    /*
+     * The orientations by their number, in the order they were added
+     */
+    public int getPattern(int orientation) {
+        return keys[orientation] >>> 2;
+    }
+
+    public boolean isFullMatch(int orientation) {
+        return (keys[orientation] & 3) == FULL_MATCH;
+    }
+
+    public boolean isAnyLevel(int orientation) {
+        return (keys[orientation] & 3) == ANY_LEVEL;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V getValue(int orientation) {
+        return (V) values[orientation];
+    }
+
+    /*
+     * Bytes of the arrays, including the room left for more orientations, but not of the values
+     */
+    public long getFootprint() {
+        return 3 * ARRAY_HEADER + 8L * keys.length + 4L * table.length;
+    }
+
+    private static int getKey(int pattern, boolean fullMatch, boolean anyLevel) {
+        return pattern << 2 | (fullMatch ? FULL_MATCH : anyLevel ? ANY_LEVEL : TRIMMED);
+    }
+
+    /*
+     * Slot of the orientation with the key, or the free slot where it goes
+     */
+    private int find(int key) {
+        int mask = table.length - 1;
+
+        for (int slot = getIndex(key, mask); ; slot = (slot + 1) & mask) {
+            if (table[slot] == 0 || keys[table[slot] - 1] == key) {
+                return slot;
+            }
+        }
+    }
+
+    private void resize() {
+        int[] resized = new int[table.length * 2];
+        int mask = resized.length - 1;
+
+        for (int orientation = 0; orientation < size; orientation++) {
+            int slot = getIndex(keys[orientation], mask);
+
+            while (resized[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+
+            resized[slot] = orientation + 1;
+        }
+
+        table = resized;
+    }
+
+    private static int getIndex(int key, int mask) {
+        int mixed = key * 0x9E3779B9;
+        return (mixed ^ (mixed >>> 16)) & mask;
+    }
+}
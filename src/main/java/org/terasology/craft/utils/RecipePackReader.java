@@ -0,0 +1,321 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+import com.google.common.collect.Maps;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.terasology.craft.components.utility.CraftRecipeComponent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads a recipe pack one recipe at a time, so a pack of any size is never held in memory as a whole.
+ * <p/>
+ * A pack is a JSON array of recipes with the fields of CraftRecipeComponent and a name:
+ * <pre>
+ * [
+ *   {"name": "stairs", "type": "EXTERNAL", "result": "engine:$Mstair", "resultCount": 4,
+ *    "width": 2, "depth": 2, "countLevels": 1, "fullMatch": false, "variables": {"M": "#stairMaterial"},
+ *    "recipe": {"bottom": ["$M", " ", "$M", "$M"]}},
+ *   ...
+ * ]
+ * </pre>
+ * The cells of the levels are translated to ingredient ids as they are read and written straight into the
+ * matrix, the lists of names are never built. So the size of the grid and the variables must come before
+ * "recipe" in every recipe of the pack. The definition of a recipe read from a pack has no cells.
+ * <p/>
+ * The ids are those of the dictionary given to the reader, which should be a dictionary of its own:
+ * the names of the pack are registered in it as they are written, "stone" as well as "engine:stone".
+ * Definition.getMatrix(IngredientDictionary) translates the cells to the dictionary of the index,
+ * where the short names resolve to the ingredients they stand for.
+ * <p/>
+ * A recipe which cannot be read has an error and no matrix, the pack is read on. A pack which is not valid JSON
+ * fails with an IOException.
+ */
+public final class RecipePackReader implements Closeable {
+    private final JsonReader reader;
+    private final IngredientDictionary ingredients;
+    private final String owner;
+    private boolean started;
+    private boolean finished;
+
+    public RecipePackReader(Reader reader, IngredientDictionary ingredients, String owner) {
+        this.reader = new JsonReader(reader);
+        this.ingredients = ingredients;
+        this.owner = owner;
+    }
+
+    /*
+     * The next recipe of the pack, null at the end
+     */
+    public Definition next() throws IOException {
+        if (finished) {
+            return null;
+        }
+
+        try {
+            if (!started) {
+                reader.beginArray();
+                started = true;
+            }
+
+            if (!reader.hasNext()) {
+                reader.endArray();
+                finished = true;
+                return null;
+            }
+
+            return readDefinition();
+        } catch (IllegalStateException exception) {
+            throw new IOException("Malformed recipe pack: " + exception.getMessage(), exception);
+        } catch (NumberFormatException exception) {
+            throw new IOException("Malformed recipe pack: " + exception.getMessage(), exception);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private Definition readDefinition() throws IOException {
+        CraftRecipeComponent definition = new CraftRecipeComponent();
+        definition.recipe = Collections.emptyMap();
+
+        String name = null;
+        RecipeMatrix matrix = null;
+        boolean hasCells = false;
+        String error = null;
+
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+
+            if (hasCells && ("width".equals(field) || "depth".equals(field) || "countLevels".equals(field) || "variables".equals(field))) {
+                error = getFirst(error, "The " + field + " must come before the recipe");
+            }
+
+            if ("name".equals(field)) {
+                name = reader.nextString();
+            } else if ("type".equals(field)) {
+                String type = reader.nextString();
+
+                try {
+                    definition.type = CraftRecipeComponent.CraftRecipeType.valueOf(type.toUpperCase(Locale.ENGLISH));
+                } catch (IllegalArgumentException exception) {
+                    error = getFirst(error, "Unknown type " + type);
+                }
+            } else if ("result".equals(field)) {
+                definition.result = reader.nextString();
+            } else if ("resultCount".equals(field)) {
+                int resultCount = reader.nextInt();
+
+                if (resultCount < 1 || resultCount > Byte.MAX_VALUE) {
+                    error = getFirst(error, "The resultCount must be a byte");
+                } else {
+                    definition.resultCount = (byte) resultCount;
+                }
+            } else if ("fullMatch".equals(field)) {
+                definition.fullMatch = reader.nextBoolean();
+            } else if ("shapeless".equals(field)) {
+                definition.shapeless = reader.nextBoolean();
+            } else if ("width".equals(field)) {
+                definition.width = reader.nextInt();
+            } else if ("depth".equals(field)) {
+                definition.depth = reader.nextInt();
+            } else if ("countLevels".equals(field)) {
+                definition.countLevels = reader.nextInt();
+            } else if ("symmetry".equals(field)) {
+                error = getFirst(error, readSymmetries(definition.symmetry));
+            } else if ("variables".equals(field)) {
+                readStrings(definition.variables);
+            } else if ("refinement".equals(field)) {
+                reader.beginObject();
+
+                while (reader.hasNext()) {
+                    Map<String, String> refinement = Maps.newHashMap();
+                    definition.refinement.put(reader.nextName(), refinement);
+                    readStrings(refinement);
+                }
+
+                reader.endObject();
+            } else if ("recipe".equals(field) && reader.peek() != JsonToken.NULL) {
+                try {
+                    matrix = readCells(definition);
+                } catch (IllegalArgumentException exception) {
+                    error = getFirst(error, exception.getMessage());
+                }
+                hasCells = true;
+            } else {
+                reader.skipValue();
+            }
+        }
+
+        reader.endObject();
+
+        if (name == null) {
+            error = getFirst(error, "A recipe of the pack has no name");
+        }
+
+        return new Definition(new CraftRecipe(name, owner, definition), error == null ? matrix : null, ingredients, error);
+    }
+
+    /*
+     * Read the levels into a new matrix of the size of the definition. The whole value is read even if it is not valid,
+     * so the next field is read from the right place
+     */
+    private RecipeMatrix readCells(CraftRecipeComponent definition) throws IOException {
+        if (definition.countLevels < 0 || definition.width < 0 || definition.depth < 0) {
+            reader.skipValue();
+            throw new IllegalArgumentException("The size of the recipe must not be negative");
+        }
+
+        int area = definition.width * definition.depth;
+        int[] cells = new int[definition.countLevels * area];
+        String error = null;
+
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+            String level = reader.nextName();
+            int levelIndex = RecipeMatrix.getLevelIndex(level);
+            boolean known = levelIndex >= 0 && levelIndex < definition.countLevels;
+            int countCells = 0;
+
+            reader.beginArray();
+
+            while (reader.hasNext()) {
+                String cell = reader.nextString();
+
+                if (known && error == null && countCells < area) {
+                    cells[levelIndex * area + countCells] = RecipeMatrix.getId(cell, ingredients, definition.variables);
+                }
+                countCells++;
+            }
+
+            reader.endArray();
+
+            if (!known) {
+                error = getFirst(error, "Unknown level " + level);
+            } else if (countCells != area) {
+                error = getFirst(error, "The level " + level + " must have " + area + " cells");
+            }
+        }
+
+        reader.endObject();
+
+        if (error != null) {
+            throw new IllegalArgumentException(error);
+        }
+
+        return new RecipeMatrix(definition.countLevels, definition.width, definition.depth, cells);
+    }
+
+    private String readSymmetries(List<RecipeSymmetry> symmetries) throws IOException {
+        String error = null;
+
+        reader.beginArray();
+
+        while (reader.hasNext()) {
+            String symmetry = reader.nextString();
+
+            try {
+                symmetries.add(RecipeSymmetry.valueOf(symmetry.toUpperCase(Locale.ENGLISH)));
+            } catch (IllegalArgumentException exception) {
+                error = getFirst(error, "Unknown symmetry " + symmetry);
+            }
+        }
+
+        reader.endArray();
+        return error;
+    }
+
+    private void readStrings(Map<String, String> values) throws IOException {
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+            values.put(reader.nextName(), reader.nextString());
+        }
+
+        reader.endObject();
+    }
+
+    private static String getFirst(String error, String next) {
+        return error != null ? error : next;
+    }
+
+    /*
+     * A recipe of the pack: its definition without the cells, and its cells as a matrix if it has any
+     */
+    public static final class Definition {
+        private final CraftRecipe recipe;
+        private final RecipeMatrix matrix;
+        private final IngredientDictionary ingredients;
+        private final String error;
+
+        private Definition(CraftRecipe recipe, RecipeMatrix matrix, IngredientDictionary ingredients, String error) {
+            this.recipe = recipe;
+            this.matrix = matrix;
+            this.ingredients = ingredients;
+            this.error = error;
+        }
+
+        public CraftRecipe getRecipe() {
+            return recipe;
+        }
+
+        /*
+         * Null if the recipe has no cells or cannot be read. The ids are those of the dictionary of the reader.
+         */
+        public RecipeMatrix getMatrix() {
+            return matrix;
+        }
+
+        /*
+         * The matrix with the ids of another dictionary, where every cell is looked up by its name
+         * as if the recipe was defined with lists of names. Names the dictionary does not know are registered.
+         */
+        public RecipeMatrix getMatrix(IngredientDictionary to) {
+            if (matrix == null || to == ingredients) {
+                return matrix;
+            }
+
+            int[] cells = new int[matrix.size()];
+
+            for (int i = 0; i < cells.length; i++) {
+                int id = matrix.get(i);
+                cells[i] = id == IngredientDictionary.EMPTY ? id : RecipeMatrix.getId(ingredients.getName(id), to, recipe.getDefinition().variables);
+            }
+
+            return new RecipeMatrix(matrix.getLevels(), matrix.getWidth(), matrix.getHeight(), cells);
+        }
+
+        /*
+         * Why the recipe cannot be read, null if it can
+         */
+        public String getError() {
+            return error;
+        }
+    }
+}
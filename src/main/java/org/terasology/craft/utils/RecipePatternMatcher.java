@@ -0,0 +1,321 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+import java.util.Arrays;
+
+/**
+ * The placements of the recipes with tags in a craft grid of one size, compiled into flat lists of cell checks
+ * instead of the paths of a RecipeTrie.
+ * <p/>
+ * Every placement becomes a program over its occupied cells: the cells with one ingredient are compared first,
+ * then the tags, then the wildcards, which are only counted as they may be empty. A cell of a variable
+ * is linked to the first cell of the variable, and must hold the same ingredient. The empty cells are not checked:
+ * the count of items of the grid must be the count of the other cells plus the wildcards which are not empty.
+ * <p/>
+ * The programs are kept by the count of items of the grids they match, a range if they have wildcards,
+ * and by their first cell with one ingredient and that ingredient if they have one.
+ * A search runs the programs of every occupied cell of the grid with its ingredient, and those with only tags
+ * and wildcards, for its count of items; each list only up to the earliest placement found so far,
+ * so the placement added first wins.
+ * It gives the same recipe as searching the RecipeTrie with the same placements.
+ */
+public class RecipePatternMatcher<V> {
+    // estimates with compressed references: a program with its header and fields, the header of an array
+    private static final int PROGRAM_BYTES = 40;
+    private static final int ARRAY_HEADER = 16;
+
+    private final int size;
+    // lists of programs by a key, see getFixedKey and getTagKey
+    private long[] keys = new long[64];
+    private Program<V>[][] programs = newLists(64);
+    private int[] countPrograms = new int[64];
+    private int countKeys = 0;
+    private int countPlacements = 0;
+
+    public RecipePatternMatcher(int levels, int width, int height) {
+        this.size = levels * width * height;
+    }
+
+    /*
+     * The matrix has the size of the grid. A grid matching several placements gives the one added first.
+     */
+    public void add(RecipeMatrix placed, V value) {
+        Program<V> program = new Program<V>(placed, countPlacements++, value);
+
+        for (int countItems = program.countFixed + program.countTags; countItems <= program.indexes.length; countItems++) {
+            if (program.countFixed > 0) {
+                addProgram(getFixedKey(program.indexes[0], program.cells[0], countItems), program);
+            } else {
+                addProgram(getTagKey(countItems), program);
+            }
+        }
+    }
+
+    public V find(RecipeMatchState state, IngredientDictionary ingredients) {
+        if (state.size() != size) {
+            return null;
+        }
+
+        int countItems = state.getCountItems();
+        Program<V> found = find(getTagKey(countItems), null, state, ingredients);
+
+        for (int i = 0, countLeft = countItems; countLeft > 0; i++) {
+            int id = state.get(i);
+
+            if (id != IngredientDictionary.EMPTY) {
+                found = find(getFixedKey(i, id, countItems), found, state, ingredients);
+                countLeft--;
+            }
+        }
+
+        return found == null ? null : found.value;
+    }
+
+    public int size() {
+        return countPlacements;
+    }
+
+    /*
+     * Estimate of the bytes held by the lists and the programs; a program in several lists is counted in each
+     */
+    public long getFootprint() {
+        long bytes = 3 * ARRAY_HEADER + 16L * keys.length;
+
+        for (int i = 0; i < keys.length; i++) {
+            if (programs[i] != null) {
+                bytes += ARRAY_HEADER + 4L * programs[i].length;
+
+                for (int j = 0; j < countPrograms[i]; j++) {
+                    bytes += PROGRAM_BYTES + 3 * ARRAY_HEADER + 12L * programs[i][j].indexes.length;
+                }
+            }
+        }
+
+        return bytes;
+    }
+
+    /*
+     * The first program of the list of the key which the grid matches, if it was added before the one found so far
+     */
+    private Program<V> find(long key, Program<V> found, RecipeMatchState state, IngredientDictionary ingredients) {
+        int order = found == null ? Integer.MAX_VALUE : found.order;
+
+        for (int i = getIndex(key, keys.length); programs[i] != null; i = (i + 1) & (keys.length - 1)) {
+            if (keys[i] == key) {
+                Program<V>[] list = programs[i];
+
+                for (int j = 0; j < countPrograms[i] && list[j].order < order; j++) {
+                    if (list[j].matches(state, ingredients)) {
+                        return list[j];
+                    }
+                }
+
+                return found;
+            }
+        }
+
+        return found;
+    }
+
+    private void addProgram(long key, Program<V> program) {
+        if (countKeys * 2 >= keys.length) {
+            resize();
+        }
+
+        int i = getIndex(key, keys.length);
+
+        while (programs[i] != null && keys[i] != key) {
+            i = (i + 1) & (keys.length - 1);
+        }
+
+        if (programs[i] == null) {
+            keys[i] = key;
+            countKeys++;
+        }
+
+        programs[i] = append(programs[i], countPrograms[i]++, program);
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        Program<V>[][] oldPrograms = programs;
+        int[] oldCounts = countPrograms;
+
+        keys = new long[oldKeys.length * 2];
+        programs = newLists(oldKeys.length * 2);
+        countPrograms = new int[oldKeys.length * 2];
+
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldPrograms[j] == null) {
+                continue;
+            }
+
+            int i = getIndex(oldKeys[j], keys.length);
+
+            while (programs[i] != null) {
+                i = (i + 1) & (keys.length - 1);
+            }
+
+            keys[i] = oldKeys[j];
+            programs[i] = oldPrograms[j];
+            countPrograms[i] = oldCounts[j];
+        }
+    }
+
+    private static <V> Program<V>[] append(Program<V>[] list, int count, Program<V> program) {
+        Program<V>[] programs = list;
+
+        if (programs == null) {
+            programs = newPrograms(4);
+        } else if (count == programs.length) {
+            programs = Arrays.copyOf(programs, 2 * count);
+        }
+
+        programs[count] = program;
+        return programs;
+    }
+
+    /*
+     * The programs whose first cell with one ingredient is that cell, for a count of items of the grid
+     */
+    private long getFixedKey(int index, int id, int countItems) {
+        return RecipeMatchState.getFingerprint(index * (size + 1) + countItems, id);
+    }
+
+    /*
+     * The programs with only tags and wildcards for a count of items of the grid;
+     * the cell after the grid keeps the keys apart from those of the ingredients
+     */
+    private long getTagKey(int countItems) {
+        return RecipeMatchState.getFingerprint(size * (size + 1) + countItems, IngredientDictionary.EMPTY);
+    }
+
+    private static int getIndex(long key, int length) {
+        return (int) (key ^ (key >>> 32)) & (length - 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> Program<V>[][] newLists(int length) {
+        return (Program<V>[][]) new Program<?>[length][];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> Program<V>[] newPrograms(int length) {
+        return (Program<V>[]) new Program<?>[length];
+    }
+
+    private static final class Program<T> {
+        private static final int NO_LINK = -1;
+
+        private final int[] indexes;
+        private final int[] cells;
+        private final int[] links;
+        private final int countFixed;
+        private final int countTags;
+        private final int order;
+        private final T value;
+
+        /*
+         * The cells with one ingredient, then the tags, then the wildcards, each by index
+         */
+        private Program(RecipeMatrix placed, int order, T value) {
+            int countCells = 0;
+            int fixed = 0;
+            int tags = 0;
+
+            for (int i = 0; i < placed.size(); i++) {
+                int cell = placed.get(i);
+
+                if (cell != IngredientDictionary.EMPTY) {
+                    countCells++;
+                    fixed += IngredientDictionary.isTag(cell) ? 0 : 1;
+                    tags += IngredientDictionary.isTag(cell) && cell != IngredientDictionary.ANY ? 1 : 0;
+                }
+            }
+
+            this.indexes = new int[countCells];
+            this.cells = new int[countCells];
+            this.links = new int[countCells];
+            this.countFixed = fixed;
+            this.countTags = tags;
+            this.order = order;
+            this.value = value;
+
+            int nextFixed = 0;
+            int nextTag = fixed;
+            int nextAny = fixed + tags;
+
+            for (int i = 0; i < placed.size(); i++) {
+                int cell = placed.get(i);
+
+                if (cell == IngredientDictionary.EMPTY) {
+                    continue;
+                }
+
+                int k = !IngredientDictionary.isTag(cell) ? nextFixed++ : cell != IngredientDictionary.ANY ? nextTag++ : nextAny++;
+                indexes[k] = i;
+                cells[k] = cell;
+                links[k] = NO_LINK;
+
+                //only variables need the same ingredient in all their cells, which the dictionary tells when searching
+                for (int j = fixed; j < k && IngredientDictionary.isTag(cell) && cell != IngredientDictionary.ANY; j++) {
+                    if (cells[j] == cell) {
+                        links[k] = indexes[j];
+                        break;
+                    }
+                }
+            }
+        }
+
+        private boolean matches(RecipeMatchState state, IngredientDictionary ingredients) {
+            int countItems = state.getCountItems();
+            int countChecked = countFixed + countTags;
+
+            if (countItems < countChecked || countItems > indexes.length) {
+                return false;
+            }
+
+            for (int k = 0; k < countFixed; k++) {
+                if (state.get(indexes[k]) != cells[k]) {
+                    return false;
+                }
+            }
+
+            for (int k = countFixed; k < countChecked; k++) {
+                int id = state.get(indexes[k]);
+
+                if (!ingredients.matches(cells[k], id)) {
+                    return false;
+                }
+
+                if (links[k] != NO_LINK && ingredients.isVariable(cells[k]) && state.get(links[k]) != id) {
+                    return false;
+                }
+            }
+
+            int countFilled = countChecked;
+
+            for (int k = countChecked; k < indexes.length; k++) {
+                if (state.get(indexes[k]) != IngredientDictionary.EMPTY) {
+                    countFilled++;
+                }
+            }
+
+            return countFilled == countItems;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+/**
+ * A recipe close to the content of a craft grid, with the cells which must change to craft it.
+ * <p/>
+ * For every differing cell there is the ingredient id the recipe expects there: EMPTY if the item must be taken away,
+ * a tag or the wildcard if the recipe accepts several ingredients. Shapeless recipes do not care where a missing
+ * ingredient is put, its cell is ANYWHERE.
+ */
+public class RecipeSuggestion<T> {
+    public static final int ANYWHERE = -1;
+
+    private final T recipe;
+    private final int[] cells;
+    private final int[] ingredients;
+
+    public RecipeSuggestion(T recipe, int[] cells, int[] ingredients) {
+        this.recipe = recipe;
+        this.cells = cells;
+        this.ingredients = ingredients;
+    }
+
+    public T getRecipe() {
+        return recipe;
+    }
+
+    /*
+     * Count of cells which differ from the recipe
+     */
+    public int getDistance() {
+        return cells.length;
+    }
+
+    /*
+     * Index of the differing cell in the grid, as in RecipeMatchState
+     */
+    public int getCell(int difference) {
+        return cells[difference];
+    }
+
+    public int getIngredient(int difference) {
+        return ingredients[difference];
+    }
+}
@@ -0,0 +1,1119 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Finds the recipes closest to a craft grid which matches no recipe.
+ * <p/>
+ * Every recipe is listed under each of its ingredients, so only the recipes which share an ingredient
+ * with the grid are looked at. The items they share give the fewest cells in which each recipe can differ
+ * from the grid, whatever the cells. Recipes are laid over the grid in all their orientations and positions
+ * in the order of this bound, and the search stops as soon as no remaining recipe can be closer than the ones found.
+ * <p/>
+ * Cells with tags or the wildcard are not listed under any ingredient, the bound assumes they match.
+ * <p/>
+ * Laying a recipe compares its cells with the grid at every position. When a line of the grid has at most 64 cells,
+ * the grid and the recipes are turned into bit masks per level and ingredient, and a position is compared
+ * with a few and/bitCount operations per level instead of cell by cell. A level of more than 64 cells takes several
+ * words of whole lines, and a recipe laid across two of them is compared with both. Recipes with tags, recipes
+ * higher than the lines of a word, grids wider than 64 cells, or an index with setBitParallel(false) compare
+ * cell by cell.
+ * <p/>
+ * The orientations of the recipes are kept as patterns of a RecipeMatrixPool, shared with the RecipeIndex.
+ */
+public class RecipeSuggestionIndex<T> {
+    // estimates with compressed references: a recipe with its header and fields, a list, a map entry with its boxed
+    // key and its slot, postings, the header of an array
+    private static final int RECIPE_BYTES = 56;
+    private static final int LIST_BYTES = 24;
+    private static final int ENTRY_BYTES = 56;
+    private static final int POSTINGS_BYTES = 24;
+    private static final int ARRAY_HEADER = 16;
+
+    private final IngredientDictionary ingredients;
+    private final RecipeMatrixPool pool;
+    private List<Recipe<T>> recipes = Lists.newArrayList();
+    private Map<Integer, Postings> recipesByIngredient = Maps.newHashMap();
+    // items and tags of every recipe by number, read for every candidate without touching the recipe
+    private int[] countItems = new int[16];
+    private int[] countTags = new int[16];
+    private volatile boolean bitParallel = true;
+    private static final int MIN_POSITIONS_TO_SKIP = 4;
+
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>();
+
+    public RecipeSuggestionIndex(IngredientDictionary ingredients) {
+        this(ingredients, new RecipeMatrixPool());
+    }
+
+    public RecipeSuggestionIndex(IngredientDictionary ingredients, RecipeMatrixPool pool) {
+        this.ingredients = ingredients;
+        this.pool = pool;
+    }
+
+    /*
+     * The orientations are trimmed as in RecipeIndex
+     */
+    public void add(T value, Collection<RecipeMatrix> orientations, boolean fullMatch, boolean anyLevel) {
+        int[] patterns = new int[orientations.size()];
+        int k = 0;
+
+        for (RecipeMatrix orientation : orientations) {
+            patterns[k++] = pool.intern(orientation);
+        }
+
+        add(value, patterns, fullMatch, anyLevel);
+    }
+
+    /*
+     * The orientations given by their patterns in the pool of this index
+     */
+    public void add(T value, int[] patterns, boolean fullMatch, boolean anyLevel) {
+        add(new Recipe<T>(value, patterns, pool, fullMatch, anyLevel, false));
+    }
+
+    public void addShapeless(T value, RecipeMatrix matrix) {
+        addShapeless(value, pool.intern(matrix));
+    }
+
+    public void addShapeless(T value, int pattern) {
+        add(new Recipe<T>(value, new int[]{pattern}, pool, false, false, true));
+    }
+
+    /*
+     * The closest recipes, the closest first. Recipes which share no ingredient with the grid are not suggested.
+     */
+    public List<RecipeSuggestion<T>> suggest(RecipeMatchState state, int count) {
+        List<RecipeSuggestion<T>> suggestions = Lists.newArrayList();
+
+        if (state.getCountItems() == 0 || count <= 0) {
+            return suggestions;
+        }
+
+        int[] gridIngredients = new int[state.getCountItems()];
+
+        for (int i = 0, k = 0; i < state.size(); i++) {
+            if (state.get(i) != IngredientDictionary.EMPTY) {
+                gridIngredients[k++] = state.get(i);
+            }
+        }
+
+        Arrays.sort(gridIngredients);
+
+        Scratch current = getScratch();
+        int[] shared = current.shared;
+        int[] candidates = current.candidates;
+        int countCandidates = 0;
+
+        for (int i = 0; i < gridIngredients.length; ) {
+            int id = gridIngredients[i];
+            int j = i;
+
+            while (j < gridIngredients.length && gridIngredients[j] == id) {
+                j++;
+            }
+
+            Postings postings = recipesByIngredient.get(id);
+
+            if (postings != null) {
+                for (int p = 0; p < postings.size; p++) {
+                    int number = postings.numbers[p];
+
+                    if (shared[number] == 0) {
+                        candidates[countCandidates++] = number;
+                    }
+
+                    shared[number] += Math.min(j - i, postings.counts[p]);
+                }
+            }
+
+            i = j;
+        }
+
+        int[] bounds = new int[countCandidates];
+        int[] sharedByCandidate = new int[countCandidates];
+        int maxBound = 0;
+
+        for (int i = 0; i < countCandidates; i++) {
+            sharedByCandidate[i] = shared[candidates[i]];
+            //the scratch array is left zeroed for the next search
+            shared[candidates[i]] = 0;
+            bounds[i] = getBound(candidates[i], state.getCountItems(), sharedByCandidate[i]);
+            maxBound = Math.max(maxBound, bounds[i]);
+        }
+
+        int[] order = sortByBound(countCandidates, bounds, maxBound);
+        GridPlanes planes = bitParallel ? GridPlanes.create(state) : null;
+        GridLevels levels = new GridLevels(state);
+        PriorityQueue<Layout> best = new PriorityQueue<Layout>(count + 1, Collections.reverseOrder());
+
+        for (int i = 0; i < countCandidates; i++) {
+            int bound = bounds[order[i]];
+
+            if (best.size() == count && best.peek().distance <= bound) {
+                break;
+            }
+
+            int limit = best.size() == count ? best.peek().distance : Integer.MAX_VALUE;
+            Layout layout = lay(candidates[order[i]], state, planes, levels, current, sharedByCandidate[order[i]], bound, limit);
+
+            if (layout == null) {
+                continue;
+            }
+
+            best.add(layout);
+
+            if (best.size() > count) {
+                best.poll();
+            }
+        }
+
+        List<Layout> layouts = Lists.newArrayList(best);
+        Collections.sort(layouts);
+
+        for (Layout layout : layouts) {
+            suggestions.add(createSuggestion(layout, state));
+        }
+
+        return suggestions;
+    }
+
+    public int size() {
+        return recipes.size();
+    }
+
+    /*
+     * Estimate of the bytes held by the recipes with their occupied cells and the bit masks built so far,
+     * and by the postings; not by the values, the patterns in the pool, or the arrays each searching thread keeps
+     */
+    public long getFootprint() {
+        long bytes = LIST_BYTES + ARRAY_HEADER + 4L * recipes.size() + 2 * ARRAY_HEADER + 8L * countItems.length;
+
+        for (Recipe<T> recipe : recipes) {
+            bytes += RECIPE_BYTES + 4 * ARRAY_HEADER + 4L * (2 * recipe.patterns.length + 2 * recipe.ids.length);
+            int[][] occupiedCells = recipe.occupiedCells;
+
+            if (occupiedCells != null) {
+                bytes += ARRAY_HEADER + 4L * occupiedCells.length;
+
+                for (int[] cells : occupiedCells) {
+                    bytes += ARRAY_HEADER + 4L * cells.length;
+                }
+            }
+
+            long[][] planes = recipe.planes;
+            bytes += planes.length == 0 ? 0 : ARRAY_HEADER + 4L * planes.length;
+
+            for (long[] byWidth : planes) {
+                bytes += ARRAY_HEADER + 8L * byWidth.length;
+            }
+        }
+
+        for (Postings postings : recipesByIngredient.values()) {
+            bytes += ENTRY_BYTES + POSTINGS_BYTES + 2 * ARRAY_HEADER + 8L * postings.numbers.length;
+        }
+
+        return bytes;
+    }
+
+    public void setBitParallel(boolean bitParallel) {
+        this.bitParallel = bitParallel;
+    }
+
+    public boolean isBitParallel() {
+        return bitParallel;
+    }
+
+    private void add(Recipe<T> recipe) {
+        int number = recipes.size();
+        recipes.add(recipe);
+
+        if (number == countItems.length) {
+            countItems = Arrays.copyOf(countItems, number * 2);
+            countTags = Arrays.copyOf(countTags, number * 2);
+        }
+
+        countItems[number] = recipe.countItems;
+        countTags[number] = recipe.countTags;
+
+        for (int i = 0; i < recipe.ids.length; i++) {
+            Postings postings = recipesByIngredient.get(recipe.ids[i]);
+
+            if (postings == null) {
+                postings = new Postings();
+                recipesByIngredient.put(recipe.ids[i], postings);
+            }
+
+            postings.add(number, recipe.counts[i]);
+        }
+    }
+
+    /*
+     * The arrays of this thread, replaced when recipes were added since its last search
+     */
+    private Scratch getScratch() {
+        Scratch current = scratch.get();
+
+        if (current == null || current.shared.length < recipes.size()) {
+            current = new Scratch(recipes.size());
+            scratch.set(current);
+        }
+
+        return current;
+    }
+
+    /*
+     * Fewest cells in which the recipe can differ from the grid: every item of the recipe which the grid lacks,
+     * and every item of the grid which the recipe lacks, is in a differing cell unless a tag cell takes it
+     */
+    private int getBound(int number, int gridItems, int shared) {
+        int missing = countItems[number] - shared;
+        int extra = gridItems - shared;
+        return Math.max(0, Math.max(missing, extra) - countTags[number]);
+    }
+
+    /*
+     * Counting sort: the bounds are never larger than the count of cells of the grid and the recipe
+     */
+    private int[] sortByBound(int countCandidates, int[] bounds, int maxBound) {
+        int[] starts = new int[maxBound + 2];
+
+        for (int i = 0; i < countCandidates; i++) {
+            starts[bounds[i] + 1]++;
+        }
+
+        for (int bound = 0; bound <= maxBound; bound++) {
+            starts[bound + 1] += starts[bound];
+        }
+
+        int[] order = new int[countCandidates];
+
+        for (int i = 0; i < countCandidates; i++) {
+            order[starts[bounds[i]]++] = i;
+        }
+
+        return order;
+    }
+
+    /*
+     * Put the recipe over the grid where it differs in the fewest cells. Levels of an orientation where the counts
+     * of the items already give more than the limit, or no less than the best layout so far, are skipped,
+     * and the search stops at the first layout as close as the bound of the recipe. Null if every layout is further
+     * than the limit.
+     */
+    private Layout lay(int number, RecipeMatchState state, GridPlanes planes, GridLevels levels, Scratch current,
+                       int shared, int bound, int limit) {
+        Recipe<T> recipe = recipes.get(number);
+
+        if (recipe.shapeless) {
+            return new Layout(number, -1, 0, 0, 0, recipe.countItems + state.getCountItems() - 2 * shared);
+        }
+
+        Layout best = null;
+        long[] recipePlanes = null;
+        int[] gridIngredients = null;
+
+        if (planes != null && recipe.countTags == 0 && recipe.maxHeight <= planes.linesPerWord) {
+            recipePlanes = recipe.getPlanes(state.getWidth(), pool);
+            gridIngredients = planes.getIngredients(recipe.ids);
+        }
+
+        for (int k = 0; k < recipe.patterns.length; k++) {
+            int pattern = recipe.patterns[k];
+
+            if (!fits(recipe, k, state)) {
+                continue;
+            }
+
+            int lastLevel = recipe.anyLevel ? state.getLevels() - recipe.getLevels(k) : 0;
+            int lastLine = state.getHeight() - recipe.getHeight(k);
+            int lastColumn = state.getWidth() - recipe.getWidth(k);
+
+            boolean skipLevels = (lastLine + 1) * (lastColumn + 1) >= MIN_POSITIONS_TO_SKIP;
+            int countMasks = 0;
+
+            if (recipePlanes != null) {
+                countMasks = planes.overlay(recipePlanes, RecipePlanes.getOffset(recipePlanes, k), gridIngredients, current);
+            }
+
+            for (int level = 0; level <= lastLevel; level++) {
+                if (skipLevels) {
+                    int levelBound = recipePlanes != null
+                            ? getLevelBound(recipe.getLevels(k), planes, current, countMasks, level)
+                            : getLevelBound(recipe, k, levels, level);
+
+                    if (levelBound > limit || best != null && levelBound >= best.distance) {
+                        continue;
+                    }
+                }
+
+                for (int line = 0; line <= lastLine; line++) {
+                    for (int column = 0; column <= lastColumn; column++) {
+                        int cost = recipePlanes != null
+                                ? getCost(recipe, k, planes, current, countMasks, level, line, column)
+                                : getCost(recipe, k, state, level, line, column);
+
+                        if (best == null || cost < best.distance) {
+                            best = new Layout(number, pattern, level, line, column, cost);
+
+                            if (cost <= bound) {
+                                return best;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        return best;
+    }
+
+    private RecipeSuggestion<T> createSuggestion(Layout layout, RecipeMatchState state) {
+        Recipe<T> recipe = recipes.get(layout.number);
+
+        if (recipe.shapeless) {
+            return createShapelessSuggestion(recipe, state);
+        }
+
+        int levels = pool.getLevels(layout.pattern);
+        int width = pool.getWidth(layout.pattern);
+        int height = pool.getHeight(layout.pattern);
+        int[] cells = new int[layout.distance];
+        int[] expected = new int[layout.distance];
+        int k = 0;
+
+        for (int i = 0; i < state.size(); i++) {
+            int level = i / (state.getWidth() * state.getHeight()) - layout.level;
+            int line = (i / state.getWidth()) % state.getHeight() - layout.line;
+            int column = i % state.getWidth() - layout.column;
+            int cell = IngredientDictionary.EMPTY;
+
+            if (level >= 0 && level < levels && line >= 0 && line < height && column >= 0 && column < width) {
+                cell = pool.get(layout.pattern, (level * height + line) * width + column);
+            }
+
+            if (!ingredients.matches(cell, state.get(i))) {
+                cells[k] = i;
+                expected[k] = cell;
+                k++;
+            }
+        }
+
+        return new RecipeSuggestion<T>(recipe.value, cells, expected);
+    }
+
+    private boolean fits(Recipe<T> recipe, int k, RecipeMatchState state) {
+        if (recipe.fullMatch) {
+            return recipe.getLevels(k) == state.getLevels() && recipe.getWidth(k) == state.getWidth()
+                    && recipe.getHeight(k) == state.getHeight();
+        }
+
+        return recipe.getLevels(k) <= state.getLevels() && recipe.getWidth(k) <= state.getWidth()
+                && recipe.getHeight(k) <= state.getHeight();
+    }
+
+    /*
+     * Fewest cells in which the orientation put on the level can differ from the grid, whatever the line and column:
+     * the bound of getBound() taken level by level, plus the items of the levels it does not cover.
+     * Only the occupied cells are read; they are in the order of the levels.
+     */
+    private int getLevelBound(Recipe<T> recipe, int k, GridLevels grid, int level) {
+        int[] cells = recipe.getOccupiedCells(pool)[k];
+        int pattern = recipe.patterns[k];
+        int area = recipe.getWidth(k) * recipe.getHeight(k);
+        int bound = grid.countItems;
+        int c = 0;
+
+        for (int l = 0; l < recipe.getLevels(k); l++) {
+            int first = c;
+            int tags = 0;
+            int shared = 0;
+
+            for (; c < cells.length && cells[c] / area == l; c++) {
+                int id = pool.get(pattern, cells[c]);
+
+                if (IngredientDictionary.isTag(id)) {
+                    tags++;
+                    continue;
+                }
+
+                //the cell is shared if the grid has more of the ingredient than the earlier cells of the level use
+                int used = 0;
+
+                for (int e = first; e < c; e++) {
+                    if (pool.get(pattern, cells[e]) == id) {
+                        used++;
+                    }
+                }
+
+                if (used < grid.count(level + l, id)) {
+                    shared++;
+                }
+            }
+
+            int gridItems = grid.levelItems[level + l];
+            bound += Math.max(0, Math.max(c - first - shared, gridItems - shared) - tags) - gridItems;
+        }
+
+        return bound;
+    }
+
+    /*
+     * The same bound from the masks of the orientation laid over the grid by GridPlanes.overlay(),
+     * the count of an ingredient on a level is the count of bits of its mask
+     */
+    private int getLevelBound(int levels, GridPlanes grid, Scratch overlay, int countMasks, int level) {
+        int[] shared = overlay.sharedByLevel;
+        int bound = grid.countItems;
+
+        for (int l = 0; l < levels; l++) {
+            shared[l] = 0;
+        }
+
+        for (int m = 0; m < countMasks; m++) {
+            int l = overlay.maskLevels[m];
+            shared[l] += Math.min(Long.bitCount(overlay.masks[m]), grid.counts[overlay.gridMasks[m] + level]);
+        }
+
+        for (int l = 0; l < levels; l++) {
+            int gridItems = grid.levelItems[level + l];
+            bound += Math.max(overlay.levelItems[l] - shared[l], gridItems - shared[l]) - gridItems;
+        }
+
+        return bound;
+    }
+
+    /*
+     * Differing cells under the recipe, and all items of the grid which are not under it.
+     * Only the occupied cells of the recipe are read, straight from the pool;
+     * the empty cells under it are counted from the items.
+     */
+    private int getCost(Recipe<T> recipe, int k, RecipeMatchState state, int level, int line, int column) {
+        int pattern = recipe.patterns[k];
+        int width = recipe.getWidth(k);
+        int height = recipe.getHeight(k);
+        int cost = 0;
+        int covered = 0;
+
+        for (int cell : recipe.getOccupiedCells(pool)[k]) {
+            int l = cell / (width * height);
+            int i = cell / width % height;
+            int j = cell % width;
+            int id = state.get(((level + l) * state.getHeight() + line + i) * state.getWidth() + column + j);
+
+            if (id != IngredientDictionary.EMPTY) {
+                covered++;
+            }
+
+            if (!ingredients.matches(pool.get(pattern, cell), id)) {
+                cost++;
+            }
+        }
+
+        return cost + state.getCountItems() - covered;
+    }
+
+    /*
+     * The same cost from the bit masks, the masks of the recipe are shifted to the line and column of the layout.
+     * A recipe across two words of a level is shifted up into the first and down into the second.
+     */
+    private int getCost(Recipe<T> recipe, int k, GridPlanes grid, Scratch overlay, int countMasks, int level, int line, int column) {
+        int levels = recipe.getLevels(k);
+        int firstWord = line / grid.linesPerWord;
+        int lastWord = (line + recipe.getHeight(k) - 1) / grid.linesPerWord;
+        int covered = 0;
+        int matched = 0;
+
+        for (int word = firstWord; word <= lastWord; word++) {
+            int shift = (line - word * grid.linesPerWord) * grid.width + column;
+
+            for (int l = 0; l < levels; l++) {
+                long mask = shift >= 0 ? overlay.occupied[l] << shift : overlay.occupied[l] >>> -shift;
+                covered += Long.bitCount(grid.occupied[(level + l) * grid.wordsPerLevel + word] & mask);
+            }
+
+            for (int m = 0; m < countMasks; m++) {
+                long mask = shift >= 0 ? overlay.masks[m] << shift : overlay.masks[m] >>> -shift;
+                matched += Long.bitCount(grid.masks[(overlay.gridMasks[m] + level) * grid.wordsPerLevel + word] & mask);
+            }
+        }
+
+        return recipe.countItems - matched + grid.countItems - covered;
+    }
+
+    private RecipeSuggestion<T> createShapelessSuggestion(Recipe<T> recipe, RecipeMatchState state) {
+        int[] missing = recipe.counts.clone();
+        List<Integer> cells = Lists.newArrayList();
+        List<Integer> expected = Lists.newArrayList();
+
+        for (int i = 0; i < state.size(); i++) {
+            int id = state.get(i);
+
+            if (id == IngredientDictionary.EMPTY) {
+                continue;
+            }
+
+            int index = Arrays.binarySearch(recipe.ids, id);
+
+            if (index >= 0 && missing[index] > 0) {
+                missing[index]--;
+            } else {
+                cells.add(i);
+                expected.add(IngredientDictionary.EMPTY);
+            }
+        }
+
+        for (int index = 0; index < missing.length; index++) {
+            for (int j = 0; j < missing[index]; j++) {
+                cells.add(RecipeSuggestion.ANYWHERE);
+                expected.add(recipe.ids[index]);
+            }
+        }
+
+        int[] cellArray = new int[cells.size()];
+        int[] expectedArray = new int[expected.size()];
+
+        for (int i = 0; i < cellArray.length; i++) {
+            cellArray[i] = cells.get(i);
+            expectedArray[i] = expected.get(i);
+        }
+
+        return new RecipeSuggestion<T>(recipe.value, cellArray, expectedArray);
+    }
+
+    private static final class Recipe<T> {
+        private static final long[][] NO_PLANES = new long[0][];
+
+        private final T value;
+        private final int[] patterns;
+        // levels, width and height of every orientation, ten bits each
+        private final int[] sizes;
+        // built when first needed, like the planes
+        private volatile int[][] occupiedCells;
+        private final boolean fullMatch;
+        private final boolean anyLevel;
+        private final boolean shapeless;
+        private final int[] ids;
+        private final int[] counts;
+        private final int countItems;
+        private final int countTags;
+        private final int maxHeight;
+        private volatile long[][] planes = NO_PLANES;
+
+        /*
+         * Distinct ingredients of the recipe, sorted, with how many times each is used
+         */
+        private Recipe(T value, int[] patterns, RecipeMatrixPool pool, boolean fullMatch, boolean anyLevel, boolean shapeless) {
+            this.value = value;
+            this.patterns = patterns;
+            this.sizes = new int[patterns.length];
+            this.fullMatch = fullMatch;
+            this.anyLevel = anyLevel;
+            this.shapeless = shapeless;
+
+            int highest = 0;
+
+            for (int k = 0; k < patterns.length; k++) {
+                sizes[k] = pool.getLevels(patterns[k]) << 20 | pool.getWidth(patterns[k]) << 10 | pool.getHeight(patterns[k]);
+                highest = Math.max(highest, pool.getHeight(patterns[k]));
+            }
+
+            RecipeMatrix matrix = pool.get(patterns[0]);
+            int[] sorted = new int[matrix.size()];
+            int countCells = 0;
+            int countIds = 0;
+            int tags = 0;
+
+            for (int i = 0; i < matrix.size(); i++) {
+                if (matrix.get(i) != IngredientDictionary.EMPTY) {
+                    sorted[countCells++] = matrix.get(i);
+                }
+            }
+
+            Arrays.sort(sorted, 0, countCells);
+
+            int[] distinct = new int[countCells];
+            int[] distinctCounts = new int[countCells];
+
+            for (int i = 0; i < countCells; i++) {
+                if (IngredientDictionary.isTag(sorted[i])) {
+                    tags++;
+                    continue;
+                }
+
+                if (countIds > 0 && distinct[countIds - 1] == sorted[i]) {
+                    distinctCounts[countIds - 1]++;
+                } else {
+                    distinct[countIds] = sorted[i];
+                    distinctCounts[countIds] = 1;
+                    countIds++;
+                }
+            }
+
+            this.ids = Arrays.copyOf(distinct, countIds);
+            this.counts = Arrays.copyOf(distinctCounts, countIds);
+            this.countItems = countCells;
+            this.countTags = tags;
+            this.maxHeight = highest;
+        }
+
+        private int getLevels(int k) {
+            return sizes[k] >>> 20;
+        }
+
+        private int getWidth(int k) {
+            return sizes[k] >>> 10 & 0x3FF;
+        }
+
+        private int getHeight(int k) {
+            return sizes[k] & 0x3FF;
+        }
+
+        /*
+         * Indexes of the cells of every orientation which are not empty, in the order of the cells.
+         * Only the recipes laid cell by cell need them, so they are built when first needed.
+         */
+        private int[][] getOccupiedCells(RecipeMatrixPool pool) {
+            int[][] current = occupiedCells;
+
+            if (current != null) {
+                return current;
+            }
+
+            current = new int[patterns.length][];
+
+            for (int k = 0; k < patterns.length; k++) {
+                RecipeMatrix orientation = pool.get(patterns[k]);
+                int[] cells = new int[orientation.size()];
+                int countOccupied = 0;
+
+                for (int i = 0; i < orientation.size(); i++) {
+                    if (orientation.get(i) != IngredientDictionary.EMPTY) {
+                        cells[countOccupied++] = i;
+                    }
+                }
+
+                current[k] = Arrays.copyOf(cells, countOccupied);
+            }
+
+            occupiedCells = current;
+            return current;
+        }
+
+        /*
+         * Bit masks of the orientations for a grid of this width, built when first needed.
+         * Threads which build them at the same time build the same masks.
+         */
+        private long[] getPlanes(int gridWidth, RecipeMatrixPool pool) {
+            long[][] current = planes;
+
+            for (long[] byWidth : current) {
+                if (RecipePlanes.getWidth(byWidth) == gridWidth) {
+                    return byWidth;
+                }
+            }
+
+            long[] byWidth = RecipePlanes.create(pool, patterns, gridWidth, ids);
+            long[][] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = byWidth;
+            planes = updated;
+            return byWidth;
+        }
+    }
+
+    /*
+     * The bit masks of all orientations of a recipe packed in one array, read together when the recipe is laid.
+     * The cell of line i and column j of a level is the bit i * width + j, as in the first word of a grid level;
+     * they are only built for recipes no higher than the lines of a word.
+     * <p/>
+     * The array starts with the width of the grid and the offset of every orientation. An orientation is its count
+     * of levels and the end of its masks, one mask per level of its occupied cells, then one mask per level and
+     * ingredient with a bit set, each followed by the index of the ingredient in the recipe and the level.
+     */
+    private static final class RecipePlanes {
+        private RecipePlanes() {
+        }
+
+        private static long[] create(RecipeMatrixPool pool, int[] patterns, int width, int[] ids) {
+            long[][] orientations = new long[patterns.length][];
+            int length = 1 + patterns.length;
+
+            for (int k = 0; k < patterns.length; k++) {
+                orientations[k] = create(pool.get(patterns[k]), width, ids);
+                length += orientations[k].length;
+            }
+
+            long[] packed = new long[length];
+            packed[0] = width;
+
+            for (int k = 0, offset = 1 + patterns.length; k < patterns.length; offset += orientations[k].length, k++) {
+                packed[1 + k] = offset;
+                System.arraycopy(orientations[k], 0, packed, offset, orientations[k].length);
+
+                //the end is stored relative to the orientation
+                packed[offset] += (long) offset << 32;
+            }
+
+            return packed;
+        }
+
+        /*
+         * Only the masks with a bit set are kept
+         */
+        private static long[] create(RecipeMatrix orientation, int width, int[] ids) {
+            int levels = orientation.getLevels();
+            long[][] masksByIngredient = new long[ids.length][levels];
+            long[] occupied = new long[levels];
+            int countMasks = 0;
+
+            for (int level = 0; level < levels; level++) {
+                for (int i = 0; i < orientation.getHeight(); i++) {
+                    for (int j = 0; j < orientation.getWidth(); j++) {
+                        int id = orientation.get(level, i, j);
+
+                        if (id == IngredientDictionary.EMPTY) {
+                            continue;
+                        }
+
+                        long bit = 1L << (i * width + j);
+                        occupied[level] |= bit;
+
+                        int d = Arrays.binarySearch(ids, id);
+
+                        if (d >= 0) {
+                            if (masksByIngredient[d][level] == 0) {
+                                countMasks++;
+                            }
+
+                            masksByIngredient[d][level] |= bit;
+                        }
+                    }
+                }
+            }
+
+            long[] packed = new long[1 + levels + 2 * countMasks];
+            packed[0] = (long) packed.length << 32 | levels;
+            System.arraycopy(occupied, 0, packed, 1, levels);
+
+            for (int d = 0, m = 1 + levels; d < ids.length; d++) {
+                for (int level = 0; level < levels; level++) {
+                    if (masksByIngredient[d][level] != 0) {
+                        packed[m++] = masksByIngredient[d][level];
+                        packed[m++] = (long) d << 32 | level;
+                    }
+                }
+            }
+
+            return packed;
+        }
+
+        private static int getWidth(long[] planes) {
+            return (int) planes[0];
+        }
+
+        private static int getOffset(long[] planes, int k) {
+            return (int) planes[1 + k];
+        }
+
+        private static int getLevels(long[] planes, int offset) {
+            return (int) planes[offset];
+        }
+
+        private static int getEnd(long[] planes, int offset) {
+            return (int) (planes[offset] >>> 32);
+        }
+
+        private static int getIngredient(long[] planes, int mask) {
+            return (int) (planes[mask + 1] >>> 32);
+        }
+
+        private static int getLevel(long[] planes, int mask) {
+            return (int) planes[mask + 1];
+        }
+    }
+
+    /*
+     * The same masks for the grid, by its distinct ingredients. A level is split in words of as many whole lines
+     * as fit in a long; the cell of line i and column j of a level is the bit (i % linesPerWord) * width + j
+     * of its word i / linesPerWord.
+     */
+    private static final class GridPlanes {
+        private final int[] ids;
+        private final int width;
+        private final int linesPerWord;
+        private final int wordsPerLevel;
+        // the words of an ingredient are one after another, level by level
+        private final long[] masks;
+        private final long[] occupied;
+        // count of every ingredient on each level, in the same order as the masks
+        private final int[] counts;
+        private final int[] levelItems;
+        private final int countItems;
+
+        private GridPlanes(RecipeMatchState state, int[] ids, int linesPerWord) {
+            this.ids = ids;
+            this.width = state.getWidth();
+            this.linesPerWord = linesPerWord;
+            this.wordsPerLevel = (state.getHeight() + linesPerWord - 1) / linesPerWord;
+            this.masks = new long[ids.length * state.getLevels() * wordsPerLevel];
+            this.occupied = new long[state.getLevels() * wordsPerLevel];
+            this.counts = new int[ids.length * state.getLevels()];
+            this.levelItems = new int[state.getLevels()];
+            this.countItems = state.getCountItems();
+
+            for (int i = 0; i < state.size(); i++) {
+                if (state.get(i) == IngredientDictionary.EMPTY) {
+                    continue;
+                }
+
+                int level = i / (width * state.getHeight());
+                int line = i / width % state.getHeight();
+                int word = line / linesPerWord;
+                int ingredient = Arrays.binarySearch(ids, state.get(i)) * state.getLevels() + level;
+                long bit = 1L << (line % linesPerWord * width + i % width);
+
+                occupied[level * wordsPerLevel + word] |= bit;
+                masks[ingredient * wordsPerLevel + word] |= bit;
+                counts[ingredient]++;
+                levelItems[level]++;
+            }
+        }
+
+        /*
+         * Returns null if a line of the grid does not fit in a long
+         */
+        private static GridPlanes create(RecipeMatchState state) {
+            if (state.getWidth() > Long.SIZE) {
+                return null;
+            }
+
+            int[] sorted = new int[state.getCountItems()];
+
+            for (int i = 0, k = 0; i < state.size(); i++) {
+                if (state.get(i) != IngredientDictionary.EMPTY) {
+                    sorted[k++] = state.get(i);
+                }
+            }
+
+            Arrays.sort(sorted);
+
+            int countIds = 0;
+
+            for (int i = 0; i < sorted.length; i++) {
+                if (i == 0 || sorted[i] != sorted[i - 1]) {
+                    sorted[countIds++] = sorted[i];
+                }
+            }
+
+            int linesPerWord = Math.min(state.getHeight(), Long.SIZE / state.getWidth());
+            return new GridPlanes(state, Arrays.copyOf(sorted, countIds), linesPerWord);
+        }
+
+        /*
+         * Index of every ingredient of the recipe in the counts of the grid, -1 for the ingredients the grid does not hold
+         */
+        private int[] getIngredients(int[] recipeIds) {
+            int[] indexes = new int[recipeIds.length];
+
+            for (int d = 0; d < recipeIds.length; d++) {
+                int index = Arrays.binarySearch(ids, recipeIds[d]);
+                indexes[d] = index < 0 ? -1 : index * levelItems.length;
+            }
+
+            return indexes;
+        }
+
+        /*
+         * Copies the occupied cells of the orientation at the offset, and its masks of the ingredients
+         * which the grid holds, to the scratch arrays; returns the count of masks.
+         * Each mask is given with the index in the counts of the grid of its ingredient on the level 0 of the layout.
+         */
+        private int overlay(long[] orientation, int offset, int[] gridIngredients, Scratch overlay) {
+            int levels = RecipePlanes.getLevels(orientation, offset);
+            int end = RecipePlanes.getEnd(orientation, offset);
+            overlay.reserve(levels, (end - offset - 1 - levels) / 2);
+
+            for (int l = 0; l < levels; l++) {
+                overlay.occupied[l] = orientation[offset + 1 + l];
+                overlay.levelItems[l] = Long.bitCount(overlay.occupied[l]);
+            }
+
+            int countMasks = 0;
+
+            for (int m = offset + 1 + levels; m < end; m += 2) {
+                int ingredient = gridIngredients[RecipePlanes.getIngredient(orientation, m)];
+
+                if (ingredient >= 0) {
+                    int level = RecipePlanes.getLevel(orientation, m);
+                    overlay.masks[countMasks] = orientation[m];
+                    overlay.maskLevels[countMasks] = level;
+                    overlay.gridMasks[countMasks] = ingredient + level;
+                    countMasks++;
+                }
+            }
+
+            return countMasks;
+        }
+    }
+
+    /*
+     * Count of every ingredient on each level of the grid
+     */
+    private static final class GridLevels {
+        private final int[][] ids;
+        private final int[][] counts;
+        private final int[] levelItems;
+        private final int countItems;
+
+        private GridLevels(RecipeMatchState state) {
+            int area = state.getWidth() * state.getHeight();
+            int[] sorted = new int[area];
+
+            this.ids = new int[state.getLevels()][];
+            this.counts = new int[state.getLevels()][];
+            this.levelItems = new int[state.getLevels()];
+            this.countItems = state.getCountItems();
+
+            for (int level = 0; level < state.getLevels(); level++) {
+                int countCells = 0;
+
+                for (int i = level * area; i < (level + 1) * area; i++) {
+                    if (state.get(i) != IngredientDictionary.EMPTY) {
+                        sorted[countCells++] = state.get(i);
+                    }
+                }
+
+                Arrays.sort(sorted, 0, countCells);
+
+                int[] levelIds = new int[countCells];
+                int[] levelCounts = new int[countCells];
+                int countIds = 0;
+
+                for (int i = 0; i < countCells; i++) {
+                    if (countIds > 0 && levelIds[countIds - 1] == sorted[i]) {
+                        levelCounts[countIds - 1]++;
+                    } else {
+                        levelIds[countIds] = sorted[i];
+                        levelCounts[countIds++] = 1;
+                    }
+                }
+
+                ids[level] = Arrays.copyOf(levelIds, countIds);
+                counts[level] = levelCounts;
+                levelItems[level] = countCells;
+            }
+        }
+
+        private int count(int level, int id) {
+            int index = Arrays.binarySearch(ids[level], id);
+            return index < 0 ? 0 : counts[level][index];
+        }
+    }
+
+    /*
+     * Arrays by recipe number for one search, kept per thread. The counts are zeroed again after every search.
+     * The other arrays hold the orientation being laid, see GridPlanes.overlay().
+     */
+    private static final class Scratch {
+        private final int[] shared;
+        private final int[] candidates;
+        private long[] occupied = new long[4];
+        private int[] levelItems = new int[4];
+        private int[] sharedByLevel = new int[4];
+        private long[] masks = new long[16];
+        private int[] maskLevels = new int[16];
+        private int[] gridMasks = new int[16];
+
+        private Scratch(int size) {
+            this.shared = new int[size];
+            this.candidates = new int[size];
+        }
+
+        private void reserve(int levels, int countMasks) {
+            if (occupied.length < levels) {
+                occupied = new long[levels];
+                levelItems = new int[levels];
+                sharedByLevel = new int[levels];
+            }
+
+            if (masks.length < countMasks) {
+                masks = new long[countMasks];
+                maskLevels = new int[countMasks];
+                gridMasks = new int[countMasks];
+            }
+        }
+    }
+
+    /*
+     * Where a recipe is put over the grid; the closer layout, then the earlier recipe, comes first
+     */
+    private static final class Layout implements Comparable<Layout> {
+        private final int number;
+        private final int pattern;
+        private final int level;
+        private final int line;
+        private final int column;
+        private final int distance;
+
+        private Layout(int number, int pattern, int level, int line, int column, int distance) {
+            this.number = number;
+            this.pattern = pattern;
+            this.level = level;
+            this.line = line;
+            this.column = column;
+            this.distance = distance;
+        }
+
+        @Override
+        public int compareTo(Layout layout) {
+            if (distance != layout.distance) {
+                return distance - layout.distance;
+            }
+
+            return number - layout.number;
+        }
+    }
+
+    /*
+     * Numbers of the recipes which use one ingredient, with how many times they use it
+     */
+    private static final class Postings {
+        private int[] numbers = new int[4];
+        private int[] counts = new int[4];
+        private int size = 0;
+
+        private void add(int number, int count) {
+            if (size == numbers.length) {
+                numbers = Arrays.copyOf(numbers, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+
+            numbers[size] = number;
+            counts[size] = count;
+            size++;
+        }
+    }
+}
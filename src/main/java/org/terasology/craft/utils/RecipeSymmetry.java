@@ -0,0 +1,34 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+/**
+ * Symmetries a recipe may declare in addition to the four rotations around the vertical axis.
+ */
+public enum RecipeSymmetry {
+    /*
+     * Left and right may be swapped
+     */
+    MIRROR,
+    /*
+     * The levels may be turned upside down
+     */
+    FLIP,
+    /*
+     * Any of the 24 rotations of the cube, so the recipe may also lie on its side
+     */
+    CUBE
+}
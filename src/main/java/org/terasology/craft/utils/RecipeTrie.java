@@ -0,0 +1,356 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+
+/**
+ * Decision tree over the cells of recipe matrices.
+ * <p/>
+ * The path of a matrix is its size (levels, width, height) followed by its cells, level by level, row by row.
+ * Every node branches on the next cell, and chains of nodes with one child are merged into one node with a label,
+ * so the tree only has as many nodes as there are places where recipes differ.
+ * A search stops at the first cell which no recipe has at that place.
+ * <p/>
+ * Cells of recipes may hold tags. Tag keys are negative, so they come first in every node,
+ * and a search with an IngredientDictionary follows every tag which the cell matches
+ * as well as the exact ingredient, keeping the value which was put first.
+ * <p/>
+ * A variable of a template recipe is bound to the ingredient of the first of its cells on the path,
+ * and the other cells of the variable must hold the same ingredient.
+ */
+public class RecipeTrie<T> {
+    private static final int HEADER = 3;
+    // estimates with compressed references: a node with its header and fields, the header of an array
+    private static final int NODE_BYTES = 40;
+    private static final int ARRAY_HEADER = 16;
+    private static final int[] NO_KEYS = new int[0];
+
+    private Node<T> root = new Node<T>(NO_KEYS);
+    private int size = 0;
+
+    /*
+     * Returns false if the trie already has a value for the matrix
+     */
+    public boolean put(RecipeMatrix matrix, T value) {
+        int length = HEADER + matrix.size();
+        Node<T> node = root;
+        int position = 0;
+
+        while (true) {
+            int[] label = node.label;
+            int i = 0;
+
+            while (i < label.length && getKey(matrix, position + i) == label[i]) {
+                i++;
+            }
+
+            if (i < label.length) {
+                node.split(i);
+            }
+
+            position += i;
+
+            if (position == length) {
+                if (node.value != null) {
+                    return false;
+                }
+
+                node.value = value;
+                node.order = size++;
+                return true;
+            }
+
+            int key = getKey(matrix, position);
+            int index = Arrays.binarySearch(node.keys, key);
+
+            if (index < 0) {
+                int[] childLabel = new int[length - position - 1];
+
+                for (int j = 0; j < childLabel.length; j++) {
+                    childLabel[j] = getKey(matrix, position + 1 + j);
+                }
+
+                Node<T> child = new Node<T>(childLabel);
+                child.value = value;
+                child.order = size++;
+                node.addChild(-index - 1, key, child);
+                return true;
+            }
+
+            node = node.children[index];
+            position++;
+        }
+    }
+
+    public T find(RecipeMatrix matrix) {
+        int length = HEADER + matrix.size();
+        Node<T> node = root;
+        int position = 0;
+
+        while (true) {
+            int[] label = node.label;
+
+            for (int i = 0; i < label.length; i++) {
+                if (getKey(matrix, position + i) != label[i]) {
+                    return null;
+                }
+            }
+
+            position += label.length;
+
+            if (position == length) {
+                return node.value;
+            }
+
+            int index = Arrays.binarySearch(node.keys, getKey(matrix, position));
+
+            if (index < 0) {
+                return null;
+            }
+
+            node = node.children[index];
+            position++;
+        }
+    }
+
+    /*
+     * Search which follows the tags of the recipes
+     */
+    public T find(RecipeMatrix matrix, IngredientDictionary ingredients) {
+        return find(matrix, ingredients, null);
+    }
+
+    /*
+     * The ingredients held by the variables of the found recipe are put in the bindings, by variable id
+     */
+    public T find(RecipeMatrix matrix, IngredientDictionary ingredients, Map<Integer, Integer> bindings) {
+        Search<T> search = new Search<T>(matrix, ingredients);
+        search.find(root, 0);
+
+        if (search.found == null) {
+            return null;
+        }
+
+        if (bindings != null && search.foundBindings != null) {
+            for (int index = 0; index < search.foundBindings.length; index++) {
+                if (search.foundBindings[index] != IngredientDictionary.EMPTY) {
+                    bindings.put(IngredientDictionary.ANY - 1 - index, search.foundBindings[index]);
+                }
+            }
+        }
+
+        return search.found.value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /*
+     * Estimate of the bytes held by the nodes, their labels, keys and children, but not by the values
+     */
+    public long getFootprint() {
+        long bytes = 0;
+        Deque<Node<T>> nodes = new ArrayDeque<Node<T>>();
+        nodes.push(root);
+
+        while (!nodes.isEmpty()) {
+            Node<T> node = nodes.pop();
+            bytes += NODE_BYTES + 3 * ARRAY_HEADER + 4L * (node.label.length + node.keys.length + node.children.length);
+
+            for (Node<T> child : node.children) {
+                nodes.push(child);
+            }
+        }
+
+        return bytes;
+    }
+
+    private static int getKey(RecipeMatrix matrix, int position) {
+        switch (position) {
+            case 0:
+                return matrix.getLevels();
+            case 1:
+                return matrix.getWidth();
+            case 2:
+                return matrix.getHeight();
+            default:
+                return matrix.get(position - HEADER);
+        }
+    }
+
+    /*
+     * State of one search: the ingredients bound to the variables on the current path,
+     * and the first recipe found with its bindings
+     */
+    private static final class Search<T> {
+        private static final int NO_MATCH = -2;
+        private static final int MATCH = -1;
+
+        private final RecipeMatrix matrix;
+        private final IngredientDictionary ingredients;
+        private final int length;
+        private final int[] bindings;
+        private Node<T> found;
+        private int[] foundBindings;
+
+        private Search(RecipeMatrix matrix, IngredientDictionary ingredients) {
+            this.matrix = matrix;
+            this.ingredients = ingredients;
+            this.length = HEADER + matrix.size();
+            this.bindings = ingredients.hasVariables() ? new int[ingredients.countTags()] : null;
+        }
+
+        private void find(Node<T> node, int position) {
+            int[] label = node.label;
+            int[] bound = NO_KEYS;
+            int countBound = 0;
+            int i = 0;
+
+            while (i < label.length) {
+                int result = bind(label[i], getKey(matrix, position + i));
+
+                if (result == NO_MATCH) {
+                    break;
+                }
+
+                if (result != MATCH) {
+                    if (countBound == bound.length) {
+                        bound = Arrays.copyOf(bound, label.length);
+                    }
+
+                    bound[countBound++] = result;
+                }
+
+                i++;
+            }
+
+            if (i == label.length) {
+                findChildren(node, position + label.length);
+            }
+
+            for (int j = 0; j < countBound; j++) {
+                bindings[bound[j]] = IngredientDictionary.EMPTY;
+            }
+        }
+
+        private void findChildren(Node<T> node, int position) {
+            if (position == length) {
+                if (node.value != null && (found == null || node.order < found.order)) {
+                    found = node;
+                    foundBindings = bindings == null ? null : bindings.clone();
+                }
+
+                return;
+            }
+
+            int key = getKey(matrix, position);
+
+            for (int i = 0; i < node.keys.length && IngredientDictionary.isTag(node.keys[i]); i++) {
+                int result = bind(node.keys[i], key);
+
+                if (result != NO_MATCH) {
+                    find(node.children[i], position + 1);
+
+                    if (result != MATCH) {
+                        bindings[result] = IngredientDictionary.EMPTY;
+                    }
+                }
+            }
+
+            int index = Arrays.binarySearch(node.keys, key);
+
+            if (index >= 0 && !IngredientDictionary.isTag(key)) {
+                find(node.children[index], position + 1);
+            }
+        }
+
+        /*
+         * NO_MATCH, MATCH, or the index of the variable which the ingredient was bound to
+         */
+        private int bind(int cell, int id) {
+            if (bindings == null || !ingredients.isVariable(cell)) {
+                return ingredients.matches(cell, id) ? MATCH : NO_MATCH;
+            }
+
+            int index = IngredientDictionary.ANY - 1 - cell;
+
+            if (bindings[index] != IngredientDictionary.EMPTY) {
+                return bindings[index] == id ? MATCH : NO_MATCH;
+            }
+
+            if (!ingredients.matches(cell, id)) {
+                return NO_MATCH;
+            }
+
+            bindings[index] = id;
+            return index;
+        }
+    }
+
+    private static final class Node<T> {
+        private int[] label;
+        private int[] keys = NO_KEYS;
+        private Node<T>[] children = newNodes(0);
+        private T value;
+        private int order;
+
+        private Node(int[] label) {
+            this.label = label;
+        }
+
+        /*
+         * Keep the first cells of the label in this node and move the rest to a new child
+         */
+        private void split(int length) {
+            Node<T> child = new Node<T>(Arrays.copyOfRange(label, length + 1, label.length));
+            child.keys = keys;
+            child.children = children;
+            child.value = value;
+            child.order = order;
+
+            keys = new int[]{label[length]};
+            children = newNodes(1);
+            children[0] = child;
+            value = null;
+            label = Arrays.copyOf(label, length);
+        }
+
+        private void addChild(int index, int key, Node<T> child) {
+            int[] newKeys = new int[keys.length + 1];
+            Node<T>[] newChildren = newNodes(children.length + 1);
+
+            System.arraycopy(keys, 0, newKeys, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            newKeys[index] = key;
+            newChildren[index] = child;
+            System.arraycopy(keys, index, newKeys, index + 1, keys.length - index);
+            System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+
+            keys = newKeys;
+            children = newChildren;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> Node<T>[] newNodes(int length) {
+            return (Node<T>[]) new Node<?>[length];
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+import com.google.common.collect.Maps;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Shapeless recipes by the fingerprint of their ingredients, whatever cells they lie in.
+ * <p/>
+ * The fingerprint of a multiset of ingredients is the sum of a hash of every ingredient,
+ * so it does not depend on the order and RecipeMatchState keeps it up to date cell by cell.
+ */
+public class ShapelessRecipeTable<V> {
+    // estimates with compressed references: a map entry with its boxed key and its slot, a recipe, the header of an array
+    private static final int ENTRY_BYTES = 56;
+    private static final int SHAPELESS_BYTES = 24;
+    private static final int ARRAY_HEADER = 16;
+
+    private Map<Long, Shapeless<V>> recipes = Maps.newHashMap();
+    private int size = 0;
+
+    /*
+     * Returns false if an earlier recipe has the same ingredients
+     */
+    public boolean add(RecipeMatrix recipe, V value) {
+        int[] ingredients = getIngredients(recipe);
+        long fingerprint = getFingerprint(ingredients);
+        Shapeless<V> shapeless = recipes.get(fingerprint);
+
+        if (shapeless == null) {
+            recipes.put(fingerprint, new Shapeless<V>(ingredients, value));
+            size++;
+            return true;
+        }
+
+        while (true) {
+            if (Arrays.equals(shapeless.ingredients, ingredients)) {
+                return false;
+            }
+
+            if (shapeless.next == null) {
+                shapeless.next = new Shapeless<V>(ingredients, value);
+                size++;
+                return true;
+            }
+
+            shapeless = shapeless.next;
+        }
+    }
+
+    public V find(RecipeMatchState state) {
+        Shapeless<V> shapeless = recipes.get(state.getIngredientsFingerprint());
+
+        if (shapeless == null) {
+            return null;
+        }
+
+        return find(shapeless, getIngredients(state.toMatrix()));
+    }
+
+    public V find(RecipeMatrix matrix) {
+        int[] ingredients = getIngredients(matrix);
+        Shapeless<V> shapeless = recipes.get(getFingerprint(ingredients));
+
+        if (shapeless == null) {
+            return null;
+        }
+
+        return find(shapeless, ingredients);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /*
+     * Estimate of the bytes held by the map and the recipes with their ingredients, but not by the values
+     */
+    public long getFootprint() {
+        long bytes = ARRAY_HEADER + (long) ENTRY_BYTES * recipes.size();
+
+        for (Shapeless<V> chain : recipes.values()) {
+            for (Shapeless<V> shapeless = chain; shapeless != null; shapeless = shapeless.next) {
+                bytes += SHAPELESS_BYTES + ARRAY_HEADER + 4L * shapeless.ingredients.length;
+            }
+        }
+
+        return bytes;
+    }
+
+    private V find(Shapeless<V> shapeless, int[] ingredients) {
+        for (; shapeless != null; shapeless = shapeless.next) {
+            if (Arrays.equals(shapeless.ingredients, ingredients)) {
+                return shapeless.value;
+            }
+        }
+
+        return null;
+    }
+
+    /*
+     * Sorted ids of the non-empty cells
+     */
+    private static int[] getIngredients(RecipeMatrix matrix) {
+        int count = 0;
+
+        for (int i = 0; i < matrix.size(); i++) {
+            if (matrix.get(i) != IngredientDictionary.EMPTY) {
+                count++;
+            }
+        }
+
+        int[] ingredients = new int[count];
+
+        for (int i = 0, j = 0; i < matrix.size(); i++) {
+            if (matrix.get(i) != IngredientDictionary.EMPTY) {
+                ingredients[j++] = matrix.get(i);
+            }
+        }
+
+        Arrays.sort(ingredients);
+        return ingredients;
+    }
+
+    private static long getFingerprint(int[] ingredients) {
+        long fingerprint = 0;
+
+        for (int id : ingredients) {
+            fingerprint += RecipeMatchState.getIngredientFingerprint(id);
+        }
+
+        return fingerprint;
+    }
+
+    private static final class Shapeless<V> {
+        private final int[] ingredients;
+        private final V value;
+        private Shapeless<V> next;
+
+        private Shapeless(int[] ingredients, V value) {
+            this.ingredients = ingredients;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+import org.terasology.math.Vector3i;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class CraftStationsTest {
+
+    @Test
+    public void testMergeAndSplit() {
+        CraftStations<String> stations = new CraftStations<String>();
+        stations.add(new Vector3i(0, 0, 0), "west", 3, 3, 3);
+        stations.add(new Vector3i(2, 0, 0), "east", 3, 3, 3);
+        assertEquals(2, stations.size());
+
+        //a block between them joins both, a block above or of another size joins nothing
+        CraftStations.Station<String> station = stations.add(new Vector3i(1, 0, 0), "middle", 3, 3, 3);
+        stations.add(new Vector3i(1, 1, 0), "above", 3, 3, 3);
+        stations.add(new Vector3i(1, 0, 1), "small", 1, 3, 3);
+
+        assertEquals(3, stations.size());
+        assertEquals(3, station.size());
+        assertSame(station, stations.getStation(new Vector3i(0, 0, 0)));
+        assertSame(station, stations.getStation(new Vector3i(2, 0, 0)));
+        assertEquals(0, station.getMinX());
+        assertEquals(3, station.getCountX());
+        assertEquals(1, station.getCountZ());
+        assertEquals(1, stations.getStation(new Vector3i(1, 1, 0)).size());
+        assertEquals(1, stations.getStation(new Vector3i(1, 0, 1)).getLevels());
+
+        //removing the middle block splits the station, the other stations stay as they are
+        CraftStations.Station<String> above = stations.getStation(new Vector3i(1, 1, 0));
+        stations.remove(new Vector3i(1, 0, 0));
+
+        assertEquals(4, stations.size());
+        assertNull(stations.getStation(new Vector3i(1, 0, 0)));
+        assertNotSame(stations.getStation(new Vector3i(0, 0, 0)), stations.getStation(new Vector3i(2, 0, 0)));
+        assertEquals("west", stations.getStation(new Vector3i(0, 0, 0)).getBlocks().get(new Vector3i(0, 0, 0)));
+        assertEquals(1, stations.getStation(new Vector3i(2, 0, 0)).getCountX());
+        assertSame(above, stations.getStation(new Vector3i(1, 1, 0)));
+    }
+
+    @Test
+    public void testMatchStateDroppedOnMerge() {
+        CraftStations<String> stations = new CraftStations<String>();
+        CraftStations.Station<String> station = stations.add(new Vector3i(0, 0, 0), "first", 3, 3, 3);
+        station.setMatchState(new RecipeMatchState(3, 3, 3));
+
+        CraftStations.Station<String> merged = stations.add(new Vector3i(0, 0, 1), "second", 3, 3, 3);
+
+        assertEquals(2, merged.size());
+        assertNull(merged.getMatchState());
+    }
+
+    /*
+     * After random placing and removing, every station is the set of blocks of the same grid size
+     * connected side by side, as found by a flood fill
+     */
+    @Test
+    public void testSameStationsAsFloodFill() {
+        Random random = new Random(1);
+        CraftStations<Integer> stations = new CraftStations<Integer>();
+        Map<Vector3i, Integer> blocks = Maps.newHashMap();
+
+        for (int step = 0; step < 3000; step++) {
+            Vector3i position = new Vector3i(random.nextInt(8), random.nextInt(2), random.nextInt(8));
+
+            if (random.nextDouble() < 0.35) {
+                stations.remove(position);
+                blocks.remove(position);
+            } else {
+                int levels = 2 + random.nextInt(2);
+                stations.add(position, levels, levels, 3, 3);
+                blocks.put(position, levels);
+            }
+
+            if (step % 100 != 0) {
+                continue;
+            }
+
+            Set<Vector3i> visited = Sets.newHashSet();
+            int countStations = 0;
+
+            for (Vector3i block : blocks.keySet()) {
+                if (visited.contains(block)) {
+                    continue;
+                }
+
+                Set<Vector3i> expected = fill(block, blocks);
+                visited.addAll(expected);
+                countStations++;
+
+                assertEquals(expected, stations.getStation(block).getBlocks().keySet());
+                assertEquals((int) blocks.get(block), stations.getStation(block).getLevels());
+            }
+
+            assertEquals(countStations, stations.size());
+        }
+    }
+
+    private static Set<Vector3i> fill(Vector3i start, Map<Vector3i, Integer> blocks) {
+        Set<Vector3i> found = Sets.newHashSet();
+        List<Vector3i> queue = Lists.newArrayList();
+        found.add(start);
+        queue.add(start);
+
+        for (int i = 0; i < queue.size(); i++) {
+            Vector3i block = queue.get(i);
+
+            for (int[] side : new int[][]{{1, 0}, {-1, 0}, {0, 1}, {0, -1}}) {
+                Vector3i neighbour = new Vector3i(block.x + side[0], block.y, block.z + side[1]);
+
+                if (blocks.get(block).equals(blocks.get(neighbour)) && found.add(neighbour)) {
+                    queue.add(neighbour);
+                }
+            }
+        }
+
+        return found;
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class IngredientDictionaryTest {
+
+    @Test
+    public void testBindVariablesWithNamePrefix() {
+        IngredientDictionary ingredients = new IngredientDictionary();
+        int stone = ingredients.register("engine:stone");
+        int oak = ingredients.register("engine:oak");
+        int material = ingredients.registerVariable("M", "#stone");
+        int wood = ingredients.registerVariable("MA", "#wood");
+
+        //the result must not depend on the order of the bindings
+        Map<Integer, Integer> shortFirst = Maps.newLinkedHashMap();
+        shortFirst.put(material, stone);
+        shortFirst.put(wood, oak);
+
+        Map<Integer, Integer> longFirst = Maps.newLinkedHashMap();
+        longFirst.put(wood, oak);
+        longFirst.put(material, stone);
+
+        assertEquals("engine:oakstonestair", ingredients.bindVariables("engine:$MA$Mstair", shortFirst));
+        assertEquals("engine:oakstonestair", ingredients.bindVariables("engine:$MA$Mstair", longFirst));
+    }
+}
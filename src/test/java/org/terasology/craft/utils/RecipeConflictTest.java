@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RecipeConflictTest {
+
+    @Test
+    public void testConflictsOfShapedRecipes() {
+        IngredientDictionary ingredients = createDictionary();
+        RecipeIndex<String> index = new RecipeIndex<String>(ingredients);
+
+        assertTrue(index.add(createMatrix(ingredients, "a", "b", " ", " "), false, "row"));
+        assertFalse(index.add(createMatrix(ingredients, " ", " ", "a", "b"), false, "same row"));
+        assertFalse(index.add(createMatrix(ingredients, "a", " ", "b", " "), false, "column"));
+
+        //the mirrored corner is no turn of the corner, so the mirror recipe is still found in its own grids
+        assertTrue(index.add(createMatrix(ingredients, "a", "b", "a", " "), false, "corner"));
+        assertTrue(index.add(createMatrix(ingredients, "a", "b", "a", " "), false, EnumSet.of(RecipeSymmetry.MIRROR), "any corner"));
+
+        List<RecipeConflict<String>> expected = Lists.newArrayList(
+                new RecipeConflict<String>(RecipeConflict.Kind.DUPLICATE, "same row", "row"),
+                new RecipeConflict<String>(RecipeConflict.Kind.ROTATED_DUPLICATE, "column", "row"),
+                new RecipeConflict<String>(RecipeConflict.Kind.SHADOWED, "any corner", "corner"));
+        assertEquals(expected, index.getConflicts());
+
+        assertEquals("corner", index.find(createMatrix(ingredients, "a", "b", "a", " ")));
+        assertEquals("any corner", index.find(createMatrix(ingredients, "b", "a", " ", "a")));
+    }
+
+    @Test
+    public void testConflictsOfShapelessRecipes() {
+        IngredientDictionary ingredients = createDictionary();
+        RecipeIndex<String> index = new RecipeIndex<String>(ingredients);
+
+        assertTrue(index.addShapeless(createMatrix(ingredients, "a", "c", " ", " "), "mix"));
+        assertFalse(index.addShapeless(createMatrix(ingredients, " ", "c", "a", " "), "other mix"));
+        assertTrue(index.addShapeless(createMatrix(ingredients, "c", "c", " ", " "), "double"));
+
+        assertEquals(Lists.newArrayList(new RecipeConflict<String>(RecipeConflict.Kind.DUPLICATE, "other mix", "mix")),
+                index.getConflicts());
+    }
+
+    /*
+     * A recipe with a tag hides the recipes of its ingredients, which is only known once a grid size is searched
+     */
+    @Test
+    public void testShadowedByTag() {
+        IngredientDictionary ingredients = createDictionary();
+        RecipeIndex<String> index = new RecipeIndex<String>(ingredients);
+
+        assertTrue(index.add(createMatrix(ingredients, "#ab", "c", " ", " "), true, "any"));
+        assertTrue(index.add(createMatrix(ingredients, "b", "c", " ", " "), true, "b only"));
+        assertTrue(index.getConflicts().isEmpty());
+
+        assertEquals("any", index.find(createState(createMatrix(ingredients, "b", "c", " ", " "))));
+        assertEquals(Lists.newArrayList(new RecipeConflict<String>(RecipeConflict.Kind.SHADOWED, "b only", "any")),
+                index.getConflicts());
+    }
+
+    @Test
+    public void testMessages() {
+        assertEquals("b is a duplicate of a", new RecipeConflict<String>(RecipeConflict.Kind.DUPLICATE, "b", "a").toString());
+        assertEquals("b is a turned duplicate of a", new RecipeConflict<String>(RecipeConflict.Kind.ROTATED_DUPLICATE, "b", "a").toString());
+        assertEquals("b is shadowed by a in some grids", new RecipeConflict<String>(RecipeConflict.Kind.SHADOWED, "b", "a").toString());
+    }
+
+    private static IngredientDictionary createDictionary() {
+        IngredientDictionary ingredients = new IngredientDictionary();
+        ingredients.addTag(ingredients.register("a"), "ab");
+        ingredients.addTag(ingredients.register("b"), "ab");
+        ingredients.register("c");
+        return ingredients;
+    }
+
+    private static RecipeMatchState createState(RecipeMatrix matrix) {
+        RecipeMatchState state = new RecipeMatchState(matrix.getLevels(), matrix.getWidth(), matrix.getHeight());
+
+        for (int i = 0; i < matrix.size(); i++) {
+            state.set(i, matrix.get(i));
+        }
+
+        return state;
+    }
+
+    private static RecipeMatrix createMatrix(IngredientDictionary ingredients, String... cells) {
+        Map<String, List<String>> recipe = Maps.newHashMap();
+        recipe.put("bottom", Lists.newArrayList(cells));
+        return new RecipeMatrix(recipe, 1, 2, 2, ingredients);
+    }
+}
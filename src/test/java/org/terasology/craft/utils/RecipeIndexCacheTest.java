@@ -0,0 +1,214 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RecipeIndexCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReadWhatWasWritten() throws IOException {
+        RecipeIndexCache cache = new RecipeIndexCache(folder.getRoot().toPath());
+        IngredientDictionary written = createDictionary();
+        RecipeIndexCache.Content content = createContent(written);
+        write(cache, "recipes", written, content);
+
+        IngredientDictionary read = createDictionary();
+        RecipeIndexCache.Content readContent = cache.read(createKey("recipes"), read);
+
+        assertNotNull(readContent);
+        assertEquals(written.size(), read.size());
+        assertEquals(written.countTags(), read.countTags());
+        assertEquals(written.getId("plank"), read.getId("plank"));
+        assertEquals(written.getId("#wood"), read.getId("#wood"));
+        //the variable is the last tag registered
+        int variable = IngredientDictionary.ANY - written.countTags();
+        assertEquals("$M", read.getName(variable));
+        assertEquals(written.getBoundTag(variable), read.getBoundTag(variable));
+        assertEquals(content.getRecipes().size(), readContent.getRecipes().size());
+
+        for (int i = 0; i < content.getRecipes().size(); i++) {
+            RecipeIndex.NormalizedRecipe<String> expected = content.getRecipes().get(i);
+            RecipeIndex.NormalizedRecipe<String> actual = readContent.getRecipes().get(i);
+
+            assertEquals(expected.getValue(), actual.getValue());
+            assertEquals(expected.isFullMatch(), actual.isFullMatch());
+            assertEquals(expected.isAnyLevel(), actual.isAnyLevel());
+            assertEquals(expected.isShapeless(), actual.isShapeless());
+            assertEquals(expected.getMatrix(), actual.getMatrix());
+            assertEquals(expected.getOrientations(), actual.getOrientations());
+        }
+
+        RecipeIndexCache.Refinement refinement = readContent.getRefinements().get(0);
+        assertEquals("engine:planks", refinement.getValue());
+        assertEquals(read.getId("plank"), refinement.getInstigator());
+        assertEquals(read.getId("stone"), refinement.getTarget());
+        assertEquals(4, refinement.getResultCount());
+    }
+
+    /*
+     * Another key is another file; writing it deletes the file of the old key
+     */
+    @Test
+    public void testOtherKeyIsNotRead() throws IOException {
+        RecipeIndexCache cache = new RecipeIndexCache(folder.getRoot().toPath());
+        IngredientDictionary ingredients = createDictionary();
+        write(cache, "old recipes", ingredients, createContent(ingredients));
+
+        IngredientDictionary read = createDictionary();
+        assertNull(cache.read(createKey("new recipes"), read));
+        assertEquals(createDictionary().size(), read.size());
+
+        ingredients = createDictionary();
+        write(cache, "new recipes", ingredients, createContent(ingredients));
+        assertFalse(Files.exists(cache.getFile(createKey("old recipes"))));
+        assertNotNull(cache.read(createKey("new recipes"), createDictionary()));
+    }
+
+    /*
+     * A file written after other ingredients were known does not fit and changes nothing
+     */
+    @Test
+    public void testOtherDictionaryIsNotChanged() throws IOException {
+        RecipeIndexCache cache = new RecipeIndexCache(folder.getRoot().toPath());
+        IngredientDictionary ingredients = createDictionary();
+        write(cache, "recipes", ingredients, createContent(ingredients));
+
+        IngredientDictionary read = createDictionary();
+        read.register("iron");
+        int size = read.size();
+
+        assertNull(cache.read(createKey("recipes"), read));
+        assertEquals(size, read.size());
+        assertEquals(IngredientDictionary.UNKNOWN, read.getId("plank"));
+    }
+
+    @Test
+    public void testDamagedFile() throws IOException {
+        RecipeIndexCache cache = new RecipeIndexCache(folder.getRoot().toPath());
+        IngredientDictionary ingredients = createDictionary();
+        write(cache, "recipes", ingredients, createContent(ingredients));
+
+        Path file = cache.getFile(createKey("recipes"));
+        byte[] bytes = Files.readAllBytes(file);
+
+        //a file cut off is an error for the caller to log, before the dictionary is changed
+        Files.write(file, Arrays.copyOf(bytes, bytes.length / 2));
+        IngredientDictionary read = createDictionary();
+
+        try {
+            cache.read(createKey("recipes"), read);
+            fail("a truncated file was read");
+        } catch (IOException expected) {
+            assertEquals(createDictionary().size(), read.size());
+        }
+
+        //a file which is not a recipe cache is ignored
+        bytes[0] ^= 1;
+        Files.write(file, bytes);
+        assertNull(cache.read(createKey("recipes"), read));
+
+        //a damaged length must not be allocated
+        bytes[0] ^= 1;
+        int recipeCount = indexOf(bytes, "engine:stairs".getBytes("UTF-8")) - 8;
+        Arrays.fill(bytes, recipeCount, recipeCount + 4, (byte) 0x7F);
+        Files.write(file, bytes);
+
+        try {
+            cache.read(createKey("recipes"), read);
+            fail("a damaged length was read");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("length"));
+            assertEquals(createDictionary().size(), read.size());
+        }
+    }
+
+    private static void write(RecipeIndexCache cache, String name, IngredientDictionary ingredients, RecipeIndexCache.Content content)
+            throws IOException {
+        cache.write(createKey(name), ingredients, createDictionary().size(), createDictionary().countTags(), content);
+    }
+
+    private static RecipeIndexCache.Key createKey(String name) {
+        return new RecipeIndexCache.Key().update(createDictionary()).update(name);
+    }
+
+    /*
+     * What is known before the recipes are parsed
+     */
+    private static IngredientDictionary createDictionary() {
+        IngredientDictionary ingredients = new IngredientDictionary();
+        ingredients.register("stone");
+        ingredients.register("stick");
+        return ingredients;
+    }
+
+    /*
+     * Recipes which register an ingredient, a tag and a variable
+     */
+    private static RecipeIndexCache.Content createContent(IngredientDictionary ingredients) {
+        Map<String, String> variables = Maps.newHashMap();
+        variables.put("M", "#wood");
+        ingredients.addTag(ingredients.register("plank"), "wood");
+
+        RecipeIndexCache.Content content = new RecipeIndexCache.Content();
+        content.addRecipe(RecipeIndex.normalize(createMatrix(ingredients, variables, "$M", "$M", " ", "$M"),
+                false, EnumSet.of(RecipeSymmetry.MIRROR), "engine:stairs"));
+        content.addRecipe(RecipeIndex.normalize(createMatrix(ingredients, variables, "#wood", "stick", " ", " "),
+                true, EnumSet.noneOf(RecipeSymmetry.class), "engine:torch"));
+        content.addRecipe(RecipeIndex.normalizeShapeless(createMatrix(ingredients, variables, "stone", "plank", " ", " "),
+                "engine:bench"));
+        content.addRefinement(new RecipeIndexCache.Refinement("engine:planks", ingredients.getId("plank"), ingredients.getId("stone"), (byte) 4));
+        return content;
+    }
+
+    private static RecipeMatrix createMatrix(IngredientDictionary ingredients, Map<String, String> variables, String... cells) {
+        Map<String, List<String>> recipe = Maps.newHashMap();
+        recipe.put("bottom", Lists.newArrayList(cells));
+        return new RecipeMatrix(recipe, 1, 2, 2, ingredients, variables);
+    }
+
+    private static int indexOf(byte[] bytes, byte[] part) {
+        for (int i = 0; i + part.length <= bytes.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(bytes, i, i + part.length), part)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,599 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The index must give the same recipe as comparing the grid with every recipe in turn, as the crafting action did before
+ */
+public class RecipeIndexTest {
+    private static final String[] ITEMS = {" ", " ", " ", "a", "b"};
+    private static final String[] LEVELS = {"bottom", "middle", "top"};
+    private static final String[] INGREDIENTS = {" ", " ", " ", " ", "a", "b", "c"};
+    private static final String[] PATTERN_CELLS = {"#ab", "*"};
+    private static final int SIZE = 3;
+
+    private static final int FULL_MATCH = 0;
+    private static final int TRIMMED = 1;
+    private static final int ANY_LEVEL = 2;
+    private static final int SHAPELESS = 3;
+
+    @Test
+    public void testSameRecipesAsLinearSearch() {
+        Random random = new Random(1);
+        IngredientDictionary ingredients = new IngredientDictionary();
+        ingredients.register("a");
+        ingredients.register("b");
+
+        RecipeIndex<Integer> index = new RecipeIndex<Integer>();
+        List<Map<String, List<String>>> recipes = Lists.newArrayList();
+        List<Boolean> fullMatches = Lists.newArrayList();
+
+        for (int i = 0; i < 3000; i++) {
+            Map<String, List<String>> recipe = createGrid(random, ITEMS);
+
+            if (recipe.isEmpty()) {
+                continue;
+            }
+
+            boolean fullMatch = random.nextBoolean();
+            recipes.add(recipe);
+            fullMatches.add(fullMatch);
+            index.add(new RecipeMatrix(recipe, 3, 3, 3, ingredients), fullMatch, recipes.size() - 1);
+        }
+
+        int countHits = 0;
+
+        for (int query = 0; query < 20000; query++) {
+            Map<String, List<String>> grid = query % 2 == 0 ? createGrid(random, ITEMS) : recipes.get(random.nextInt(recipes.size()));
+
+            if (query % 4 == 1) {
+                grid = new ReferenceRecipeMatrix(grid, 3, 3).rotate().getRecipe();
+            }
+
+            if (grid.isEmpty()) {
+                continue;
+            }
+
+            Integer expected = findLinear(grid, recipes, fullMatches);
+            RecipeMatrix matrix = new RecipeMatrix(grid, 3, 3, 3, ingredients);
+
+            assertEquals(grid.toString(), expected, index.find(matrix));
+            assertEquals(grid.toString(), expected, index.find(createMatchState(matrix, random)));
+
+            if (expected != null) {
+                countHits++;
+            }
+        }
+
+        assertTrue("too few grids matched a recipe to compare the searches: " + countHits, countHits > 5000);
+    }
+
+    /*
+     * Recipes with symmetries, tags, wildcards, or without a shape. The linear search lists every grid a recipe
+     * matches: each orientation its symmetries allow, at each place the orientation fits in the grid,
+     * with each ingredient a tag or a wildcard stands for. A wildcard may be empty but takes its place.
+     */
+    @Test
+    public void testSymmetriesTagsAndShapelessAsLinearSearch() {
+        Random random = new Random(2);
+        IngredientDictionary ingredients = new IngredientDictionary();
+        ingredients.register("a");
+        ingredients.register("b");
+        ingredients.register("c");
+        ingredients.addTag(ingredients.getId("a"), "ab");
+        ingredients.addTag(ingredients.getId("b"), "ab");
+
+        RecipeIndex<Integer> index = new RecipeIndex<Integer>(ingredients);
+        List<String[]> recipes = Lists.newArrayList();
+        List<Integer> kinds = Lists.newArrayList();
+        List<Set<String>> forms = Lists.newArrayList();
+        Set<RecipeSymmetry> allSymmetries = EnumSet.allOf(RecipeSymmetry.class);
+
+        while (recipes.size() < 600) {
+            String[] recipe = toCube(createGrid(random, INGREDIENTS));
+
+            if (isEmpty(recipe)) {
+                continue;
+            }
+
+            RecipeMatrix matrix;
+            int kind;
+            Set<RecipeSymmetry> symmetries = EnumSet.noneOf(RecipeSymmetry.class);
+
+            if (random.nextDouble() < 0.2) {
+                kind = SHAPELESS;
+                matrix = new RecipeMatrix(toGrid(recipe), SIZE, SIZE, SIZE, ingredients);
+                index.addShapeless(matrix, recipes.size());
+            } else {
+                for (RecipeSymmetry symmetry : allSymmetries) {
+                    if (random.nextDouble() < 0.3) {
+                        symmetries.add(symmetry);
+                    }
+                }
+
+                if (random.nextDouble() < 0.4) {
+                    addPatternCells(recipe, random);
+                }
+
+                boolean fullMatch = random.nextBoolean();
+                kind = fullMatch ? FULL_MATCH : symmetries.contains(RecipeSymmetry.CUBE) ? ANY_LEVEL : TRIMMED;
+                matrix = new RecipeMatrix(toGrid(recipe), SIZE, SIZE, SIZE, ingredients);
+                index.add(matrix, fullMatch, symmetries, recipes.size());
+            }
+
+            Set<String> recipeForms = Sets.newHashSet();
+
+            if (kind == SHAPELESS) {
+                recipeForms.add(getKey(recipe, kind));
+            } else {
+                for (String[] orientation : getOrientations(recipe, symmetries)) {
+                    for (String[] placed : place(orientation, kind)) {
+                        for (String[] cells : expand(placed)) {
+                            recipeForms.add(getKey(cells, kind));
+                        }
+                    }
+                }
+            }
+
+            recipes.add(recipe);
+            kinds.add(kind);
+            forms.add(recipeForms);
+        }
+
+        int countHits = 0;
+
+        for (int query = 0; query < 10000; query++) {
+            String[] grid = query % 2 == 0 ? toCube(createGrid(random, INGREDIENTS)) : createQuery(recipes.get(random.nextInt(recipes.size())), random);
+
+            if (isEmpty(grid)) {
+                continue;
+            }
+
+            Integer expected = null;
+
+            for (int i = 0; i < recipes.size() && expected == null; i++) {
+                if (forms.get(i).contains(getKey(grid, kinds.get(i)))) {
+                    expected = i;
+                }
+            }
+
+            RecipeMatrix matrix = new RecipeMatrix(toGrid(grid), SIZE, SIZE, SIZE, ingredients);
+
+            assertEquals(toGrid(grid).toString(), expected, index.find(matrix));
+            assertEquals(toGrid(grid).toString(), expected, index.find(createMatchState(matrix, random)));
+
+            if (expected != null) {
+                countHits++;
+            }
+        }
+
+        assertTrue("too few grids matched a recipe to compare the searches: " + countHits, countHits > 2500);
+    }
+
+    /*
+     * The first recipe with the same levels which matches the grid, trimmed unless it is a full match recipe
+     */
+    private static Integer findLinear(Map<String, List<String>> grid, List<Map<String, List<String>>> recipes, List<Boolean> fullMatches) {
+        ReferenceRecipeMatrix gridMatrix = new ReferenceRecipeMatrix(grid, 3, 3);
+
+        for (int i = 0; i < recipes.size(); i++) {
+            if (!grid.keySet().equals(recipes.get(i).keySet())) {
+                continue;
+            }
+
+            ReferenceRecipeMatrix recipeMatrix = new ReferenceRecipeMatrix(recipes.get(i), 3, 3);
+            boolean matches = fullMatches.get(i) ? gridMatrix.matches(recipeMatrix) : gridMatrix.trim().matches(recipeMatrix.trim());
+
+            if (matches) {
+                return i;
+            }
+        }
+
+        return null;
+    }
+
+    /*
+     * A state which held other items before, so the cells and the fingerprint have been updated rather than built
+     */
+    private static RecipeMatchState createMatchState(RecipeMatrix matrix, Random random) {
+        RecipeMatchState state = new RecipeMatchState(3, 3, 3);
+
+        for (int i = 0; i < matrix.size(); i++) {
+            state.set(random.nextInt(matrix.size()), 1 + random.nextInt(2));
+        }
+
+        for (int i = 0; i < matrix.size(); i++) {
+            state.set(i, matrix.get(i));
+        }
+
+        return state;
+    }
+
+    private static Map<String, List<String>> createGrid(Random random, String[] items) {
+        Map<String, List<String>> grid = Maps.newHashMap();
+
+        for (String level : LEVELS) {
+            if (random.nextDouble() < 0.7) {
+                continue;
+            }
+
+            List<String> cells = Lists.newArrayList();
+            boolean occupied = false;
+
+            for (int i = 0; i < 9; i++) {
+                String item = items[random.nextInt(items.length)];
+                cells.add(item);
+                occupied |= !item.equals(ReferenceRecipeMatrix.EMPTY_ROW);
+            }
+
+            if (occupied) {
+                grid.put(level, cells);
+            }
+        }
+
+        return grid;
+    }
+
+    /*
+     * One or two cells of occupied levels become a tag or a wildcard
+     */
+    private static void addPatternCells(String[] recipe, Random random) {
+        int count = 1 + random.nextInt(2);
+
+        for (int i = 0; i < 100 && count > 0; i++) {
+            int cell = random.nextInt(recipe.length);
+
+            if (!isLevelEmpty(recipe, cell / (SIZE * SIZE)) && !recipe[cell].startsWith("#") && !recipe[cell].equals("*")) {
+                recipe[cell] = PATTERN_CELLS[random.nextInt(PATTERN_CELLS.length)];
+                count--;
+            }
+        }
+
+        if (isEmpty(expand(recipe).get(0))) {
+            recipe[0] = "a";
+        }
+    }
+
+    /*
+     * A grid the recipe may match: each tag and wildcard replaced by one ingredient it stands for,
+     * then turned a few times or shuffled
+     */
+    private static String[] createQuery(String[] recipe, Random random) {
+        List<String[]> expanded = expand(recipe);
+        String[] grid = expanded.get(random.nextInt(expanded.size())).clone();
+
+        if (random.nextDouble() < 0.2) {
+            List<String> cells = Arrays.asList(grid);
+            Collections.shuffle(cells, random);
+            return grid;
+        }
+
+        for (int i = random.nextInt(4); i > 0; i--) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    grid = rotate(grid);
+                    break;
+                case 1:
+                    grid = mirror(grid);
+                    break;
+                case 2:
+                    grid = flip(grid);
+                    break;
+                default:
+                    grid = tilt(grid);
+                    break;
+            }
+        }
+
+        return grid;
+    }
+
+    /*
+     * The recipe with every ingredient each of its tags and wildcards stands for
+     */
+    private static List<String[]> expand(String[] recipe) {
+        List<String[]> expanded = Lists.newArrayList();
+        expanded.add(recipe.clone());
+
+        for (int cell = 0; cell < recipe.length; cell++) {
+            List<String> choices;
+
+            if (recipe[cell].equals("#ab")) {
+                choices = Arrays.asList("a", "b");
+            } else if (recipe[cell].equals("*")) {
+                choices = Arrays.asList(" ", "a", "b", "c");
+            } else {
+                continue;
+            }
+
+            List<String[]> next = Lists.newArrayList();
+
+            for (String[] cells : expanded) {
+                for (String choice : choices) {
+                    String[] copy = cells.clone();
+                    copy[cell] = choice;
+                    next.add(copy);
+                }
+            }
+
+            expanded = next;
+        }
+
+        return expanded;
+    }
+
+    private static Set<String[]> getOrientations(String[] cells, Set<RecipeSymmetry> symmetries) {
+        Map<List<String>, String[]> found = Maps.newLinkedHashMap();
+        List<String[]> queue = Lists.newArrayList();
+        found.put(Arrays.asList(cells), cells);
+        queue.add(cells);
+
+        for (int i = 0; i < queue.size(); i++) {
+            String[] current = queue.get(i);
+            List<String[]> next = Lists.newArrayList();
+            next.add(rotate(current));
+
+            if (symmetries.contains(RecipeSymmetry.MIRROR)) {
+                next.add(mirror(current));
+            }
+
+            if (symmetries.contains(RecipeSymmetry.FLIP)) {
+                next.add(flip(current));
+            }
+
+            if (symmetries.contains(RecipeSymmetry.CUBE)) {
+                next.add(tilt(current));
+            }
+
+            for (String[] orientation : next) {
+                if (!found.containsKey(Arrays.asList(orientation))) {
+                    found.put(Arrays.asList(orientation), orientation);
+                    queue.add(orientation);
+                }
+            }
+        }
+
+        return Sets.newHashSet(found.values());
+    }
+
+    /*
+     * The cells of the grid, or only its ingredients for a shapeless recipe
+     */
+    private static String getKey(String[] cells, int kind) {
+        if (kind != SHAPELESS) {
+            return Arrays.asList(cells).toString();
+        }
+
+        List<String> items = Lists.newArrayList();
+
+        for (String cell : cells) {
+            if (!cell.equals(ReferenceRecipeMatrix.EMPTY_ROW)) {
+                items.add(cell);
+            }
+        }
+
+        Collections.sort(items);
+        return items.toString();
+    }
+
+    /*
+     * The grids with the box around the occupied cells of the recipe moved to each place it fits.
+     * A trimmed recipe keeps its levels, one which may lie on its side may be on any level.
+     */
+    private static List<String[]> place(String[] recipe, int kind) {
+        List<String[]> placed = Lists.newArrayList();
+
+        if (kind == FULL_MATCH) {
+            placed.add(recipe);
+            return placed;
+        }
+
+        int[] min = {SIZE, SIZE, SIZE};
+        int[] max = {-1, -1, -1};
+
+        for (int level = 0; level < SIZE; level++) {
+            for (int line = 0; line < SIZE; line++) {
+                for (int column = 0; column < SIZE; column++) {
+                    if (!recipe[getIndex(level, line, column)].equals(ReferenceRecipeMatrix.EMPTY_ROW)) {
+                        int[] position = {level, line, column};
+
+                        for (int axis = 0; axis < 3; axis++) {
+                            min[axis] = Math.min(min[axis], position[axis]);
+                            max[axis] = Math.max(max[axis], position[axis]);
+                        }
+                    }
+                }
+            }
+        }
+
+        if (kind == TRIMMED) {
+            min[0] = 0;
+        }
+
+        int maxLevel = kind == TRIMMED ? 0 : SIZE - 1 - max[0] + min[0];
+
+        for (int level = 0; level <= maxLevel; level++) {
+            for (int line = 0; line <= SIZE - 1 - max[1] + min[1]; line++) {
+                for (int column = 0; column <= SIZE - 1 - max[2] + min[2]; column++) {
+                    String[] cells = new String[recipe.length];
+                    Arrays.fill(cells, ReferenceRecipeMatrix.EMPTY_ROW);
+
+                    for (int l = min[0]; l <= max[0]; l++) {
+                        for (int i = min[1]; i <= max[1]; i++) {
+                            for (int j = min[2]; j <= max[2]; j++) {
+                                cells[getIndex(level + l - min[0], line + i - min[1], column + j - min[2])] = recipe[getIndex(l, i, j)];
+                            }
+                        }
+                    }
+
+                    placed.add(cells);
+                }
+            }
+        }
+
+        return placed;
+    }
+
+    private static String[] toCube(Map<String, List<String>> grid) {
+        String[] cells = new String[SIZE * SIZE * SIZE];
+        Arrays.fill(cells, ReferenceRecipeMatrix.EMPTY_ROW);
+
+        for (int level = 0; level < SIZE; level++) {
+            List<String> levelCells = grid.get(LEVELS[level]);
+
+            for (int i = 0; levelCells != null && i < SIZE * SIZE; i++) {
+                cells[level * SIZE * SIZE + i] = levelCells.get(i);
+            }
+        }
+
+        return cells;
+    }
+
+    /*
+     * The occupied levels, as the crafting action sends them
+     */
+    private static Map<String, List<String>> toGrid(String[] cells) {
+        Map<String, List<String>> grid = Maps.newHashMap();
+
+        for (int level = 0; level < SIZE; level++) {
+            if (!isLevelEmpty(cells, level)) {
+                grid.put(LEVELS[level], Lists.newArrayList(Arrays.asList(cells).subList(level * SIZE * SIZE, (level + 1) * SIZE * SIZE)));
+            }
+        }
+
+        return grid;
+    }
+
+    /*
+     * The occupied levels moved down, so the lowest one is the bottom level
+     */
+    private static String[] lower(String[] cells) {
+        String[] lowered = new String[cells.length];
+        Arrays.fill(lowered, ReferenceRecipeMatrix.EMPTY_ROW);
+        int next = 0;
+
+        for (int level = 0; level < SIZE; level++) {
+            if (!isLevelEmpty(cells, level)) {
+                System.arraycopy(cells, level * SIZE * SIZE, lowered, next * SIZE * SIZE, SIZE * SIZE);
+                next++;
+            }
+        }
+
+        return lowered;
+    }
+
+    private static boolean isEmpty(String[] cells) {
+        for (int level = 0; level < SIZE; level++) {
+            if (!isLevelEmpty(cells, level)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isLevelEmpty(String[] cells, int level) {
+        for (int i = level * SIZE * SIZE; i < (level + 1) * SIZE * SIZE; i++) {
+            if (!cells[i].equals(ReferenceRecipeMatrix.EMPTY_ROW)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /*
+     * Clockwise, as ReferenceRecipeMatrix.rotate()
+     */
+    private static String[] rotate(String[] cells) {
+        String[] rotated = new String[cells.length];
+
+        for (int level = 0; level < SIZE; level++) {
+            for (int line = 0; line < SIZE; line++) {
+                for (int column = 0; column < SIZE; column++) {
+                    rotated[getIndex(level, line, column)] = cells[getIndex(level, SIZE - column - 1, line)];
+                }
+            }
+        }
+
+        return rotated;
+    }
+
+    private static String[] mirror(String[] cells) {
+        String[] mirrored = new String[cells.length];
+
+        for (int level = 0; level < SIZE; level++) {
+            for (int line = 0; line < SIZE; line++) {
+                for (int column = 0; column < SIZE; column++) {
+                    mirrored[getIndex(level, line, column)] = cells[getIndex(level, line, SIZE - column - 1)];
+                }
+            }
+        }
+
+        return mirrored;
+    }
+
+    private static String[] flip(String[] cells) {
+        String[] flipped = new String[cells.length];
+
+        for (int level = 0; level < SIZE; level++) {
+            for (int line = 0; line < SIZE; line++) {
+                for (int column = 0; column < SIZE; column++) {
+                    flipped[getIndex(level, line, column)] = cells[getIndex(SIZE - level - 1, line, column)];
+                }
+            }
+        }
+
+        return flipped;
+    }
+
+    /*
+     * A quarter turn around the axis along the rows, the lines become levels
+     */
+    private static String[] tilt(String[] cells) {
+        String[] tilted = new String[cells.length];
+
+        for (int level = 0; level < SIZE; level++) {
+            for (int line = 0; line < SIZE; line++) {
+                for (int column = 0; column < SIZE; column++) {
+                    tilted[getIndex(level, line, column)] = cells[getIndex(SIZE - line - 1, level, column)];
+                }
+            }
+        }
+
+        return tilted;
+    }
+
+    private static int getIndex(int level, int line, int column) {
+        return (level * SIZE + line) * SIZE + column;
+    }
+}
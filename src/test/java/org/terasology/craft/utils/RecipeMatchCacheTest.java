@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RecipeMatchCacheTest {
+
+    @Test
+    public void testLeastRecentlyUsedIsDropped() {
+        RecipeMatchCache<String> cache = new RecipeMatchCache<String>(2);
+        RecipeMatchState first = createState(0, 1);
+        RecipeMatchState second = createState(1, 1);
+        RecipeMatchState third = createState(2, 1);
+
+        cache.put(first, "first");
+        cache.put(second, null);
+        assertEquals("first", cache.get(first).getRecipe());
+
+        cache.put(third, "third");
+
+        assertEquals(2, cache.size());
+        assertNull(cache.get(second));
+        assertEquals("first", cache.get(first).getRecipe());
+        assertEquals("third", cache.get(third).getRecipe());
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        cache.invalidate();
+        assertNull(cache.get(first));
+    }
+
+    /*
+     * Grids which match nothing are kept apart from grids which are not cached
+     */
+    @Test
+    public void testNoMatchIsCached() {
+        RecipeMatchCache<String> cache = new RecipeMatchCache<String>();
+        RecipeMatchState state = createState(4, 2);
+        cache.put(state, null);
+
+        assertNotNull(cache.get(state));
+        assertNull(cache.get(state).getRecipe());
+    }
+
+    /*
+     * Two grids with the same fingerprint, the same count of items and other cells: the second must not get
+     * the recipe of the first. The fingerprint is a xor of hashes, so among the 256 cells of a large grid
+     * there is a set where holding ingredient 1 instead of 2 does not change it; it is found by elimination.
+     */
+    @Test
+    public void testFingerprintCollision() {
+        int size = 16;
+        int countCells = size * size;
+        long[] rows = new long[countCells];
+        BitSet[] combinations = new BitSet[countCells];
+        BitSet collision = null;
+
+        for (int cell = 0; cell < countCells && collision == null; cell++) {
+            rows[cell] = RecipeMatchState.getFingerprint(cell, 1) ^ RecipeMatchState.getFingerprint(cell, 2);
+            combinations[cell] = new BitSet();
+            combinations[cell].set(cell);
+
+            for (int earlier = 0; earlier < cell; earlier++) {
+                long pivot = Long.highestOneBit(rows[earlier]);
+
+                if (pivot != 0 && (rows[cell] & pivot) != 0) {
+                    rows[cell] ^= rows[earlier];
+                    combinations[cell].xor(combinations[earlier]);
+                }
+            }
+
+            if (rows[cell] == 0) {
+                collision = combinations[cell];
+            }
+        }
+
+        assertNotNull(collision);
+
+        RecipeMatchState first = new RecipeMatchState(1, size, size);
+        RecipeMatchState second = new RecipeMatchState(1, size, size);
+
+        for (int cell = collision.nextSetBit(0); cell >= 0; cell = collision.nextSetBit(cell + 1)) {
+            first.set(cell, 1);
+            second.set(cell, 2);
+        }
+
+        assertEquals(first.getFingerprint(), second.getFingerprint());
+        assertEquals(first.getCountItems(), second.getCountItems());
+        assertTrue(first.getCountItems() > 0);
+
+        RecipeMatchCache<String> cache = new RecipeMatchCache<String>();
+        cache.put(first, "first");
+
+        assertNull(cache.get(second));
+        assertEquals("first", cache.get(first).getRecipe());
+    }
+
+    private static RecipeMatchState createState(int cell, int id) {
+        RecipeMatchState state = new RecipeMatchState(3, 3, 3);
+        state.set(cell, id);
+        return state;
+    }
+}
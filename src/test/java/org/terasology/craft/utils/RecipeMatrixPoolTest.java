@@ -0,0 +1,129 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+
+public class RecipeMatrixPoolTest {
+
+    @Test
+    public void testSameCellsShareStorage() {
+        RecipeMatrixPool pool = new RecipeMatrixPool();
+        RecipeMatrix first = new RecipeMatrix(2, 2, 2, new int[]{1, 2, 3, 4, 0, 0, 0, 0});
+        RecipeMatrix second = new RecipeMatrix(2, 2, 2, new int[]{0, 0, 0, 0, 1, 2, 3, 4});
+
+        int firstPattern = pool.intern(first);
+        int secondPattern = pool.intern(second);
+
+        assertEquals(firstPattern, pool.intern(new RecipeMatrix(2, 2, 2, new int[]{1, 2, 3, 4, 0, 0, 0, 0})));
+        assertNotEquals(firstPattern, secondPattern);
+        assertEquals(2, pool.getCountPatterns());
+        assertEquals(2, pool.getCountLevels());
+
+        assertEquals(first, pool.get(firstPattern));
+        assertEquals(second, pool.get(secondPattern));
+        assertEquals(2, pool.getLevels(secondPattern));
+        assertEquals(2, pool.getWidth(secondPattern));
+        assertEquals(2, pool.getHeight(secondPattern));
+
+        //a level is kept by its cells, a matrix of another shape with the same cells shares it
+        int row = pool.intern(new RecipeMatrix(1, 4, 1, new int[]{1, 2, 3, 4}));
+        assertEquals(3, pool.getCountPatterns());
+        assertEquals(2, pool.getCountLevels());
+        assertEquals(new RecipeMatrix(1, 4, 1, new int[]{1, 2, 3, 4}), pool.get(row));
+    }
+
+    /*
+     * Many matrices, with tags and ids too large for a short added late, read back cell by cell after the arrays grew
+     */
+    @Test
+    public void testManyMatrices() {
+        Random random = new Random(1);
+        RecipeMatrixPool pool = new RecipeMatrixPool();
+        List<RecipeMatrix> matrices = Lists.newArrayList();
+        List<Integer> patterns = Lists.newArrayList();
+
+        for (int i = 0; i < 5000; i++) {
+            int levels = 1 + random.nextInt(3);
+            int width = 1 + random.nextInt(3);
+            int height = 1 + random.nextInt(3);
+            int[] cells = new int[levels * width * height];
+
+            for (int cell = 0; cell < cells.length; cell++) {
+                int kind = random.nextInt(10);
+                cells[cell] = kind < 5 ? 0 : kind < 8 ? 1 + random.nextInt(3) : kind < 9 ? IngredientDictionary.ANY - random.nextInt(3)
+                        : i > 4000 ? 40000 + random.nextInt(3) : 4;
+            }
+
+            RecipeMatrix matrix = new RecipeMatrix(levels, width, height, cells);
+            matrices.add(matrix);
+            patterns.add(pool.intern(matrix));
+        }
+
+        for (int i = 0; i < matrices.size(); i++) {
+            RecipeMatrix matrix = matrices.get(i);
+            int pattern = patterns.get(i);
+
+            assertEquals(matrix, pool.get(pattern));
+            assertEquals(pattern, pool.intern(matrix));
+            assertEquals(pattern, pool.getPattern(matrix));
+
+            for (int cell = 0; cell < matrix.size(); cell++) {
+                assertEquals(matrix.get(cell), pool.get(pattern, cell));
+            }
+        }
+    }
+
+    @Test
+    public void testGetPatternDoesNotAdd() {
+        RecipeMatrixPool pool = new RecipeMatrixPool();
+        int pattern = pool.intern(new RecipeMatrix(1, 2, 1, new int[]{1, 2}));
+
+        assertEquals(pattern, pool.getPattern(new RecipeMatrix(1, 2, 1, new int[]{1, 2})));
+        assertEquals(-1, pool.getPattern(new RecipeMatrix(1, 1, 2, new int[]{1, 2})));
+        assertEquals(-1, pool.getPattern(new RecipeMatrix(1, 2, 1, new int[]{2, 1})));
+        assertEquals(1, pool.getCountPatterns());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooWide() {
+        new RecipeMatrixPool().intern(new RecipeMatrix(1, 1024, 1, new int[1024]));
+    }
+
+    @Test
+    public void testInternRecipe() {
+        RecipeMatrixPool pool = new RecipeMatrixPool();
+        RecipeMatrix matrix = new RecipeMatrix(1, 2, 2, new int[]{1, 2, 0, 0});
+        RecipeIndex.NormalizedRecipe<String> recipe = RecipeIndex.normalize(matrix, false, EnumSet.noneOf(RecipeSymmetry.class), "row");
+
+        RecipeIndex.NormalizedRecipe<String> interned = pool.intern(recipe);
+
+        assertSame(interned, pool.intern(interned));
+        assertEquals("row", interned.getValue());
+        assertEquals(recipe.getMatrix(), interned.getMatrix());
+        assertEquals(recipe.getOrientations(), interned.getOrientations());
+        assertEquals(recipe.isFullMatch(), interned.isFullMatch());
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RecipeOrientationTableTest {
+
+    @Test
+    public void testKindsAreKeptApart() {
+        RecipeOrientationTable<String> table = new RecipeOrientationTable<String>();
+
+        assertTrue(table.put(7, false, false, "trimmed"));
+        assertTrue(table.put(7, true, false, "full"));
+        assertTrue(table.put(7, false, true, "any level"));
+        assertFalse(table.put(7, true, false, "second"));
+
+        assertEquals("trimmed", table.get(7, false, false));
+        assertEquals("full", table.get(7, true, false));
+        assertEquals("any level", table.get(7, false, true));
+        assertNull(table.get(8, false, false));
+
+        assertEquals(3, table.size());
+        assertEquals(1, table.size(true, false));
+        assertEquals(1, table.size(false, true));
+        assertEquals(1, table.size(false, false));
+    }
+
+    /*
+     * The orientations stay in the order they were added while the table grows
+     */
+    @Test
+    public void testOrderAfterGrowing() {
+        RecipeOrientationTable<Integer> table = new RecipeOrientationTable<Integer>();
+
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(table.put(i * 4, i % 3 == 0, i % 3 == 1, i));
+        }
+
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i * 4, table.getPattern(i));
+            assertEquals(i % 3 == 0, table.isFullMatch(i));
+            assertEquals(i % 3 == 1, table.isAnyLevel(i));
+            assertEquals(Integer.valueOf(i), table.getValue(i));
+            assertEquals(Integer.valueOf(i), table.get(i * 4, i % 3 == 0, i % 3 == 1));
+            assertFalse(table.put(i * 4, i % 3 == 0, i % 3 == 1, -i));
+        }
+
+        assertEquals(10000, table.size());
+        assertTrue(table.getFootprint() > 10000 * 12);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.Test;
+import org.terasology.craft.components.utility.CraftRecipeComponent;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RecipePackReaderTest {
+    private static final String PACK = "["
+            + "{\"name\": \"stairs\", \"result\": \"engine:$Mstair\", \"resultCount\": 4, \"width\": 2, \"depth\": 2, \"countLevels\": 1,"
+            + " \"fullMatch\": false, \"variables\": {\"M\": \"#wood\"}, \"recipe\": {\"bottom\": [\"$M\", \" \", \"$M\", \"$M\"]}},"
+            + "{\"name\": \"roof\", \"width\": 2, \"depth\": 2, \"countLevels\": 1, \"recipe\": {\"roof\": [\"stone\", \" \", \" \", \" \"]}},"
+            + "{\"name\": \"late\", \"recipe\": {\"bottom\": [\"stone\"]}, \"width\": 1},"
+            + "{\"name\": \"pillar\", \"type\": \"external\", \"width\": 1, \"depth\": 2, \"countLevels\": 1, \"shapeless\": true,"
+            + " \"symmetry\": [\"mirror\"], \"recipe\": {\"bottom\": [\"stone\", \"engine:plank\"]}}"
+            + "]";
+
+    /*
+     * The pack is read into a dictionary of its own, the dictionary of the index only gets the names
+     * when the matrices are translated, and short names resolve to the ingredients of the index
+     */
+    @Test
+    public void testReadIntoOwnDictionary() throws IOException {
+        IngredientDictionary index = new IngredientDictionary();
+        int stone = index.register("engine:stone");
+        int plank = index.register("engine:plank");
+        index.addTag(plank, "wood");
+        int countIngredients = index.size();
+        int countTags = index.countTags();
+
+        IngredientDictionary pack = new IngredientDictionary();
+        List<RecipePackReader.Definition> definitions = Lists.newArrayList();
+
+        try (RecipePackReader reader = new RecipePackReader(new StringReader(PACK), pack, "pack")) {
+            for (RecipePackReader.Definition definition = reader.next(); definition != null; definition = reader.next()) {
+                definitions.add(definition);
+            }
+
+            assertNull(reader.next());
+        }
+
+        assertEquals(4, definitions.size());
+        assertEquals(countIngredients, index.size());
+        assertEquals(countTags, index.countTags());
+
+        RecipePackReader.Definition stairs = definitions.get(0);
+        CraftRecipeComponent stairsDefinition = stairs.getRecipe().getDefinition();
+        assertNull(stairs.getError());
+        assertEquals("stairs", stairs.getRecipe().getName());
+        assertEquals("pack", stairs.getRecipe().getOwner());
+        assertEquals(4, stairsDefinition.resultCount);
+        assertTrue(stairsDefinition.recipe.isEmpty());
+
+        Map<String, List<String>> stairsCells = Maps.newHashMap();
+        stairsCells.put("bottom", Lists.newArrayList("$M", " ", "$M", "$M"));
+        assertEquals(new RecipeMatrix(stairsCells, 1, 2, 2, index, stairsDefinition.variables), stairs.getMatrix(index));
+        assertEquals(countTags + 1, index.countTags());
+
+        assertNull(definitions.get(1).getMatrix());
+        assertTrue(definitions.get(1).getError().contains("Unknown level roof"));
+        assertNull(definitions.get(2).getMatrix());
+        assertNotNull(definitions.get(2).getError());
+
+        RecipePackReader.Definition pillar = definitions.get(3);
+        CraftRecipeComponent pillarDefinition = pillar.getRecipe().getDefinition();
+        assertNull(pillar.getError());
+        assertEquals(CraftRecipeComponent.CraftRecipeType.EXTERNAL, pillarDefinition.type);
+        assertTrue(pillarDefinition.shapeless);
+        assertEquals(Lists.newArrayList(RecipeSymmetry.MIRROR), pillarDefinition.symmetry);
+        assertEquals(new RecipeMatrix(1, 1, 2, new int[]{stone, plank}), pillar.getMatrix(index));
+        assertEquals(pillar.getMatrix(), pillar.getMatrix(pack));
+        assertEquals(countIngredients, index.size());
+    }
+
+    @Test
+    public void testMalformedPack() throws IOException {
+        RecipePackReader reader = new RecipePackReader(new StringReader("[{\"name\": \"stairs\"}, {\"width\": \"wide\"}]"),
+                new IngredientDictionary(), "pack");
+
+        assertEquals("stairs", reader.next().getRecipe().getName());
+
+        try {
+            reader.next();
+            fail("a width which is not a number was read");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().startsWith("Malformed recipe pack"));
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Time of a search without the cache in a 3x3x3 craft block, with the recipes with tags searched in their trie
+ * and by their compiled checks, for as many recipes as given (12000 by default) of which a growing share has
+ * a tag or a wildcard in one cell. Half of the grids hold a recipe, the others have one more item.
+ * Not a test: run the main method with the test classpath, e.g. after mvn test-compile
+ * <pre>
+ * java -cp target/test-classes:target/classes:... org.terasology.craft.utils.RecipePatternBenchmark 12000
+ * </pre>
+ * Both ways search the same grids in turns, in several rounds after a warm up, the median round is printed.
+ */
+public final class RecipePatternBenchmark {
+    private static final int[] TAG_PERCENTS = {0, 10, 25, 50};
+    private static final int COUNT_ITEMS = 300;
+    private static final int COUNT_TAGS = 10;
+    private static final int SIZE = 3;
+    private static final int COUNT_GRIDS = 20000;
+    private static final int ROUNDS = 7;
+
+    private RecipePatternBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        int countRecipes = args.length > 0 ? Integer.parseInt(args[0]) : 12000;
+        ForkJoinPool pool = new ForkJoinPool(1);
+
+        System.out.println(countRecipes + " recipes, " + COUNT_GRIDS + " grids, median of " + ROUNDS + " rounds");
+        System.out.println("tags %  trie us  compiled us  ratio");
+
+        for (int tagPercent : TAG_PERCENTS) {
+            Random random = new Random(11);
+            IngredientDictionary ingredients = new IngredientDictionary();
+
+            for (int i = 1; i <= COUNT_ITEMS; i++) {
+                ingredients.addTag(ingredients.register("item" + i), "tag" + i % COUNT_TAGS);
+            }
+
+            RecipeIndex<Integer> index = new RecipeIndex<Integer>(ingredients);
+            List<int[]> recipes = Lists.newArrayList();
+
+            for (int i = 0; i < countRecipes; i++) {
+                int[] cells = createCells(random, random.nextInt(100) < tagPercent);
+                index.add(new RecipeMatrix(SIZE, SIZE, SIZE, cells), false,
+                        i % 3 == 0 ? EnumSet.of(RecipeSymmetry.MIRROR) : EnumSet.noneOf(RecipeSymmetry.class), i);
+                recipes.add(cells);
+            }
+
+            List<RecipeMatchState> grids = Lists.newArrayList();
+
+            for (int i = 0; i < COUNT_GRIDS; i++) {
+                grids.add(createGrid(random, ingredients, recipes.get(random.nextInt(recipes.size())), i % 2 == 1));
+            }
+
+            double[] times = time(index, grids, pool);
+
+            System.out.println(String.format("%6d  %7.2f  %11.2f  %5.2f", tagPercent, times[0], times[1], times[0] / times[1]));
+        }
+
+        pool.shutdown();
+    }
+
+    /*
+     * Half of the cells of the bottom level, one of them a tag or the wildcard if the recipe has tags
+     */
+    private static int[] createCells(Random random, boolean hasTags) {
+        int[] cells = new int[SIZE * SIZE * SIZE];
+        int countCells = 0;
+
+        while (countCells == 0) {
+            for (int i = 0; i < SIZE * SIZE; i++) {
+                cells[i] = random.nextBoolean() ? 1 + random.nextInt(COUNT_ITEMS) : IngredientDictionary.EMPTY;
+                countCells += cells[i] == IngredientDictionary.EMPTY ? 0 : 1;
+            }
+        }
+
+        if (hasTags) {
+            int i = random.nextInt(SIZE * SIZE);
+
+            while (cells[i] == IngredientDictionary.EMPTY) {
+                i = random.nextInt(SIZE * SIZE);
+            }
+
+            cells[i] = random.nextBoolean() ? IngredientDictionary.ANY : IngredientDictionary.ANY - 1 - random.nextInt(COUNT_TAGS);
+        }
+
+        return cells;
+    }
+
+    /*
+     * The recipe with an item for its tag, and one item more if it must miss
+     */
+    private static RecipeMatchState createGrid(Random random, IngredientDictionary ingredients, int[] cells, boolean miss) {
+        RecipeMatchState grid = new RecipeMatchState(SIZE, SIZE, SIZE);
+
+        for (int i = 0; i < cells.length; i++) {
+            int id = cells[i];
+
+            while (IngredientDictionary.isTag(id) && !ingredients.matches(cells[i], id)) {
+                id = 1 + random.nextInt(COUNT_ITEMS);
+            }
+
+            grid.set(i, id);
+        }
+
+        if (miss) {
+            grid.set(SIZE * SIZE + random.nextInt(SIZE * SIZE), 1 + random.nextInt(COUNT_ITEMS));
+        }
+
+        return grid;
+    }
+
+    /*
+     * Median over the rounds of the microseconds per search in the trie and by the compiled checks,
+     * which take turns to go first, after one round to warm up
+     */
+    private static double[] time(RecipeIndex<Integer> index, List<RecipeMatchState> grids, ForkJoinPool pool) {
+        double[][] rounds = new double[2][ROUNDS];
+        long found = 0;
+
+        for (int round = -1; round < ROUNDS; round++) {
+            for (int turn = 0; turn < 2; turn++) {
+                int compiled = (round + turn) & 1;
+                index.setCompiledPatterns(compiled == 1);
+                long start = System.nanoTime();
+
+                for (Integer recipe : index.findAll(grids, pool)) {
+                    found += recipe == null ? 0 : 1;
+                }
+
+                if (round >= 0) {
+                    rounds[compiled][round] = (System.nanoTime() - start) / 1000.0 / grids.size();
+                }
+            }
+        }
+
+        if (found == 0) {
+            throw new IllegalStateException("No recipes found");
+        }
+
+        Arrays.sort(rounds[0]);
+        Arrays.sort(rounds[1]);
+        return new double[]{rounds[0][ROUNDS / 2], rounds[1][ROUNDS / 2]};
+    }
+}
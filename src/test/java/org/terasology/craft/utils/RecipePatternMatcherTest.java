@@ -0,0 +1,255 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The compiled checks must give the same recipe as the trie of the same placements for every grid
+ */
+public class RecipePatternMatcherTest {
+    private static final int LEVELS = 2;
+    private static final int WIDTH = 3;
+    private static final int HEIGHT = 3;
+    private static final int COUNT_ITEMS = 8;
+
+    @Test
+    public void testSameRecipesAsTrie() {
+        Random random = new Random(3);
+        IngredientDictionary ingredients = createIngredients();
+        int[] cellKinds = getCellKinds(ingredients);
+        RecipeTrie<Integer> trie = new RecipeTrie<Integer>();
+        RecipePatternMatcher<Integer> matcher = new RecipePatternMatcher<Integer>(LEVELS, WIDTH, HEIGHT);
+        List<RecipeMatrix> patterns = Lists.newArrayList();
+
+        for (int i = 0; i < 2000; i++) {
+            RecipeMatrix pattern = new RecipeMatrix(LEVELS, WIDTH, HEIGHT, createCells(random, cellKinds, LEVELS * WIDTH * HEIGHT));
+
+            if (trie.put(pattern, i)) {
+                matcher.add(pattern, i);
+                patterns.add(pattern);
+            }
+        }
+
+        assertEquals(patterns.size(), matcher.size());
+
+        int countHits = 0;
+
+        for (int query = 0; query < 20000; query++) {
+            RecipeMatchState state = createGrid(random, ingredients, patterns.get(random.nextInt(patterns.size())));
+            Integer expected = trie.find(state.toMatrix(), ingredients);
+
+            assertEquals(state.toMatrix().toString(), expected, matcher.find(state, ingredients));
+
+            if (expected != null) {
+                countHits++;
+            }
+        }
+
+        assertTrue("too few grids matched a recipe to compare the searches: " + countHits, countHits > 5000);
+        assertEquals(trie.find(new RecipeMatrix(LEVELS, WIDTH, HEIGHT, new int[LEVELS * WIDTH * HEIGHT]), ingredients),
+                matcher.find(new RecipeMatchState(LEVELS, WIDTH, HEIGHT), ingredients));
+    }
+
+    /*
+     * Only the wildcards may be empty, and a placement with wildcards before its other cells
+     * is found whichever of them holds the first item
+     */
+    @Test
+    public void testWildcardsMayBeEmpty() {
+        IngredientDictionary ingredients = createIngredients();
+        int any = IngredientDictionary.ANY;
+        int item = ingredients.getId("item1");
+        RecipePatternMatcher<String> matcher = new RecipePatternMatcher<String>(1, 3, 1);
+        matcher.add(new RecipeMatrix(1, 3, 1, new int[]{any, any, item}), "wildcards first");
+        matcher.add(new RecipeMatrix(1, 3, 1, new int[]{any, 0, any}), "wildcards only");
+
+        assertEquals("wildcards first", matcher.find(createState(3, item, item, item), ingredients));
+        assertEquals("wildcards first", matcher.find(createState(3, 0, item, item), ingredients));
+        assertEquals("wildcards first", matcher.find(createState(3, 0, 0, item), ingredients));
+        assertEquals("wildcards only", matcher.find(createState(3, item, 0, 0), ingredients));
+        assertEquals("wildcards only", matcher.find(createState(3, 0, 0, 0), ingredients));
+        assertEquals(null, matcher.find(createState(3, 0, item, 0), ingredients));
+    }
+
+    /*
+     * The switch of the index only changes how the recipes with tags are searched
+     */
+    @Test
+    public void testIndexWithAndWithoutCompiledPatterns() {
+        Random random = new Random(4);
+        IngredientDictionary ingredients = createIngredients();
+        int[] cellKinds = getCellKinds(ingredients);
+        RecipeIndex<Integer> compiled = new RecipeIndex<Integer>(ingredients);
+        RecipeIndex<Integer> interpreted = new RecipeIndex<Integer>(ingredients);
+        interpreted.setCompiledPatterns(false);
+        List<RecipeMatrix> recipes = Lists.newArrayList();
+
+        for (int i = 0; i < 1000; i++) {
+            RecipeMatrix recipe = new RecipeMatrix(LEVELS, WIDTH, HEIGHT, createCells(random, cellKinds, LEVELS * WIDTH * HEIGHT));
+
+            if (recipe.isEmpty()) {
+                continue;
+            }
+
+            boolean fullMatch = random.nextInt(4) == 0;
+            EnumSet<RecipeSymmetry> symmetries = random.nextBoolean() ? EnumSet.of(RecipeSymmetry.MIRROR) : EnumSet.noneOf(RecipeSymmetry.class);
+            compiled.add(recipe, fullMatch, symmetries, i);
+            interpreted.add(recipe, fullMatch, symmetries, i);
+            recipes.add(recipe.trim());
+        }
+
+        List<RecipeMatchState> states = Lists.newArrayList();
+
+        for (int query = 0; query < 10000; query++) {
+            RecipeMatrix placed = recipes.get(random.nextInt(recipes.size())).place(WIDTH, HEIGHT, 0, 0);
+            states.add(createGrid(random, ingredients, placed.getLevels() == LEVELS ? placed : placed.placeOnLevel(LEVELS, 0)));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(1);
+        List<Integer> expected = interpreted.findAll(states, pool);
+        List<Integer> found = compiled.findAll(states, pool);
+        int countHits = 0;
+
+        for (int i = 0; i < states.size(); i++) {
+            assertEquals(states.get(i).toMatrix().toString(), expected.get(i), found.get(i));
+            assertEquals(expected.get(i), compiled.find(states.get(i)));
+
+            if (expected.get(i) != null) {
+                countHits++;
+            }
+        }
+
+        pool.shutdown();
+        assertTrue("too few grids matched a recipe to compare the searches: " + countHits, countHits > 2000);
+    }
+
+    /*
+     * Items with two tags, and two variables bound to the same tag, so grids may bind them alike or not
+     */
+    private static IngredientDictionary createIngredients() {
+        IngredientDictionary ingredients = new IngredientDictionary();
+
+        for (int i = 1; i <= COUNT_ITEMS; i++) {
+            int id = ingredients.register("item" + i);
+            ingredients.addTag(id, i % 2 == 0 ? "even" : "odd");
+
+            if (i <= 4) {
+                ingredients.addTag(id, "low");
+            }
+        }
+
+        ingredients.registerVariable("A", "#low");
+        ingredients.registerVariable("B", "#low");
+        ingredients.registerVariable("C", null);
+        return ingredients;
+    }
+
+    /*
+     * Every kind of cell a recipe may hold: empty, the items, the tags, the wildcard and the variables
+     */
+    private static int[] getCellKinds(IngredientDictionary ingredients) {
+        List<Integer> kinds = Lists.newArrayList();
+        kinds.add(IngredientDictionary.EMPTY);
+        kinds.add(IngredientDictionary.ANY);
+
+        for (int i = 1; i <= COUNT_ITEMS; i++) {
+            kinds.add(ingredients.getId("item" + i));
+        }
+
+        for (int index = 0; index < ingredients.countTags(); index++) {
+            kinds.add(IngredientDictionary.ANY - 1 - index);
+        }
+
+        int[] cellKinds = new int[kinds.size()];
+
+        for (int i = 0; i < cellKinds.length; i++) {
+            cellKinds[i] = kinds.get(i);
+        }
+
+        return cellKinds;
+    }
+
+    /*
+     * Half of the cells empty, and a few recipes without tags
+     */
+    private static int[] createCells(Random random, int[] cellKinds, int size) {
+        int[] cells = new int[size];
+
+        for (int i = 0; i < size; i++) {
+            cells[i] = random.nextBoolean() ? IngredientDictionary.EMPTY : cellKinds[random.nextInt(cellKinds.length)];
+        }
+
+        return cells;
+    }
+
+    /*
+     * A grid which the pattern matches when every tag gets an item it matches and every variable the same item,
+     * with a few cells changed so some grids match another recipe or none
+     */
+    private static RecipeMatchState createGrid(Random random, IngredientDictionary ingredients, RecipeMatrix pattern) {
+        RecipeMatchState state = new RecipeMatchState(pattern.getLevels(), pattern.getWidth(), pattern.getHeight());
+        int[] bound = new int[ingredients.countTags()];
+
+        for (int i = 0; i < pattern.size(); i++) {
+            int cell = pattern.get(i);
+            int id = cell;
+
+            if (cell == IngredientDictionary.ANY) {
+                id = random.nextInt(3) == 0 ? IngredientDictionary.EMPTY : 1 + random.nextInt(COUNT_ITEMS);
+            } else if (IngredientDictionary.isTag(cell)) {
+                int index = IngredientDictionary.ANY - 1 - cell;
+
+                if (bound[index] == IngredientDictionary.EMPTY || random.nextInt(4) == 0) {
+                    do {
+                        id = 1 + random.nextInt(COUNT_ITEMS);
+                    } while (!ingredients.matches(cell, id) && random.nextInt(8) != 0);
+
+                    bound[index] = id;
+                } else {
+                    id = bound[index];
+                }
+            }
+
+            state.set(i, id);
+        }
+
+        while (random.nextInt(4) == 0) {
+            state.set(random.nextInt(state.size()), random.nextBoolean() ? IngredientDictionary.EMPTY : 1 + random.nextInt(COUNT_ITEMS));
+        }
+
+        return state;
+    }
+
+    private static RecipeMatchState createState(int width, int... cells) {
+        RecipeMatchState state = new RecipeMatchState(1, width, 1);
+
+        for (int i = 0; i < cells.length; i++) {
+            state.set(i, cells[i]);
+        }
+
+        return state;
+    }
+}
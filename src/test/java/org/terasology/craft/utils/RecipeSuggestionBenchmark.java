@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Time of RecipeIndex.suggest() per grid, cell by cell and by bit masks, with the recipes and grids of
+ * RecipeSuggestionIndexTest and as many recipes as given (12000 by default). The sizes go from a single 3x3 level,
+ * where there is little to compare at each position, to grids 30 and 70 cells wide, where the recipes of three lines
+ * and then all recipes fall back to comparing cell by cell; the ratio of the two times shows where the masks pay.
+ * Not a test: run the main method with the test classpath, e.g. after mvn test-compile
+ * <pre>
+ * java -cp target/test-classes:target/classes:... org.terasology.craft.utils.RecipeSuggestionBenchmark 12000
+ * </pre>
+ * Each size is timed over the same grids in several rounds after a warm up, the median round is printed.
+ */
+public final class RecipeSuggestionBenchmark {
+    private static final int[][] GRID_SIZES = {{1, 3, 3}, {3, 3, 3}, {3, 5, 5}, {2, 9, 9}, {1, 12, 12}, {2, 30, 4}, {1, 70, 3}};
+    private static final int COUNT_GRIDS = 2000;
+    private static final int ROUNDS = 7;
+
+    private RecipeSuggestionBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        int countRecipes = args.length > 0 ? Integer.parseInt(args[0]) : 12000;
+        Random random = new Random(7);
+        List<int[]> recipes = Lists.newArrayList();
+        RecipeIndex<Integer> index = RecipeSuggestionIndexTest.createIndex(random, countRecipes, recipes);
+
+        System.out.println(countRecipes + " recipes, " + COUNT_GRIDS + " grids per size, median of " + ROUNDS + " rounds");
+        System.out.println("grid     level cells  scalar us  bit-parallel us  ratio");
+
+        for (int[] size : GRID_SIZES) {
+            List<RecipeMatchState> grids = Lists.newArrayList();
+
+            for (int i = 0; i < COUNT_GRIDS; i++) {
+                grids.add(RecipeSuggestionIndexTest.createNearGrid(random, recipes.get(random.nextInt(recipes.size())), size));
+            }
+
+            double scalar = time(index, grids, false);
+            double bitParallel = time(index, grids, true);
+
+            System.out.println(String.format("%-8s %11d  %9.1f  %15.1f  %5.2f", size[0] + "x" + size[1] + "x" + size[2],
+                    size[1] * size[2], scalar, bitParallel, scalar / bitParallel));
+        }
+    }
+
+    /*
+     * Median over the rounds of the microseconds per suggest(), after one round to warm up
+     */
+    private static double time(RecipeIndex<Integer> index, List<RecipeMatchState> grids, boolean bitParallel) {
+        index.setBitParallelComparison(bitParallel);
+        double[] rounds = new double[ROUNDS];
+        long found = 0;
+
+        for (int round = -1; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+
+            for (RecipeMatchState grid : grids) {
+                found += index.suggest(grid, 5).size();
+            }
+
+            if (round >= 0) {
+                rounds[round] = (System.nanoTime() - start) / 1000.0 / grids.size();
+            }
+        }
+
+        if (found == 0) {
+            throw new IllegalStateException("No suggestions");
+        }
+
+        Arrays.sort(rounds);
+        return rounds[ROUNDS / 2];
+    }
+}
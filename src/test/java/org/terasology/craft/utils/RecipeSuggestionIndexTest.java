@@ -0,0 +1,154 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Comparing the grid with the recipes by bit masks must suggest exactly what comparing them cell by cell suggests
+ */
+public class RecipeSuggestionIndexTest {
+    private static final int COUNT_INGREDIENTS = 300;
+    // levels, width and height; the lines of a 12x12 level take three words
+    private static final int[][] GRID_SIZES = {{3, 3, 3}, {3, 5, 5}, {2, 9, 9}, {1, 12, 12}};
+
+    @Test
+    public void testBitParallelSameAsScalar() {
+        Random random = new Random(7);
+        List<int[]> recipes = Lists.newArrayList();
+        RecipeIndex<Integer> index = createIndex(random, 4000, recipes);
+
+        for (int query = 0; query < 3000; query++) {
+            int[] size = GRID_SIZES[query % GRID_SIZES.length];
+            assertSameSuggestions(index, createNearGrid(random, recipes.get(random.nextInt(recipes.size())), size));
+        }
+    }
+
+    /*
+     * A grid wider than 64 cells has no bit masks at all. In a grid 30 cells wide a word holds two lines,
+     * so the recipes of three lines are compared cell by cell and the lower ones by bit masks in the same search.
+     */
+    @Test
+    public void testFallbackToScalar() {
+        Random random = new Random(11);
+        List<int[]> recipes = Lists.newArrayList();
+        RecipeIndex<Integer> index = createIndex(random, 2000, recipes);
+        int[][] sizes = {{1, 70, 3}, {2, 30, 4}};
+
+        for (int query = 0; query < 600; query++) {
+            int[] size = sizes[query % sizes.length];
+            assertSameSuggestions(index, createNearGrid(random, recipes.get(random.nextInt(recipes.size())), size));
+        }
+    }
+
+    private void assertSameSuggestions(RecipeIndex<Integer> index, RecipeMatchState state) {
+        index.setBitParallelComparison(false);
+        List<RecipeSuggestion<Integer>> scalar = index.suggest(state, 5);
+        index.setBitParallelComparison(true);
+        List<RecipeSuggestion<Integer>> bitParallel = index.suggest(state, 5);
+
+        assertEquals(scalar.size(), bitParallel.size());
+
+        for (int i = 0; i < scalar.size(); i++) {
+            RecipeSuggestion<Integer> expected = scalar.get(i);
+            RecipeSuggestion<Integer> actual = bitParallel.get(i);
+
+            assertEquals(expected.getRecipe(), actual.getRecipe());
+            assertEquals(expected.getDistance(), actual.getDistance());
+
+            for (int k = 0; k < expected.getDistance(); k++) {
+                assertEquals(expected.getCell(k), actual.getCell(k));
+                assertEquals(expected.getIngredient(k), actual.getIngredient(k));
+            }
+        }
+    }
+
+    /*
+     * Random 3x3x3 recipes, some shapeless, some full match, some with symmetries; their cells are added to the list
+     */
+    static RecipeIndex<Integer> createIndex(Random random, int countRecipes, List<int[]> recipes) {
+        IngredientDictionary ingredients = new IngredientDictionary();
+
+        for (int i = 0; i < COUNT_INGREDIENTS; i++) {
+            ingredients.register("item" + i);
+        }
+
+        RecipeIndex<Integer> index = new RecipeIndex<Integer>(ingredients);
+
+        for (int i = 0; i < countRecipes; i++) {
+            int[] cells = createCells(random);
+            Set<RecipeSymmetry> symmetries = i % 5 == 0 ? EnumSet.of(RecipeSymmetry.CUBE)
+                    : i % 5 == 1 ? EnumSet.of(RecipeSymmetry.MIRROR) : EnumSet.noneOf(RecipeSymmetry.class);
+
+            if (i % 11 == 0) {
+                index.addShapeless(new RecipeMatrix(3, 3, 3, cells), i);
+            } else {
+                index.add(new RecipeMatrix(3, 3, 3, cells), i % 7 == 0, symmetries, i);
+            }
+            recipes.add(cells);
+        }
+
+        return index;
+    }
+
+    /*
+     * A fifth of the cells hold an item, the first items far more often than the last ones
+     */
+    static int[] createCells(Random random) {
+        int[] cells = new int[27];
+
+        for (int k = 0; k < cells.length; k++) {
+            if (random.nextInt(5) == 0) {
+                cells[k] = 1 + (int) Math.min(COUNT_INGREDIENTS - 1, Math.abs(random.nextGaussian() * 60));
+            }
+        }
+
+        return cells;
+    }
+
+    /*
+     * The recipe with some items missing and sometimes one wrong item, somewhere in a grid of another size
+     */
+    static RecipeMatchState createNearGrid(Random random, int[] recipe, int[] size) {
+        RecipeMatchState state = new RecipeMatchState(size[0], size[1], size[2]);
+        int top = random.nextInt(size[2] - 2);
+        int left = random.nextInt(size[1] - 2);
+
+        for (int k = 0; k < recipe.length; k++) {
+            int level = k / 9;
+            int line = top + k / 3 % 3;
+            int column = left + k % 3;
+
+            if (level < size[0] && recipe[k] != IngredientDictionary.EMPTY && random.nextInt(5) != 0) {
+                state.set((level * size[2] + line) * size[1] + column, recipe[k]);
+            }
+        }
+
+        if (random.nextBoolean()) {
+            state.set(random.nextInt(state.size()), 1 + random.nextInt(COUNT_INGREDIENTS - 1));
+        }
+
+        return state;
+    }
+}
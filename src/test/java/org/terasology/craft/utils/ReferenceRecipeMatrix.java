@@ -0,0 +1,214 @@
+/*
+ * Copyright 2014 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.craft.utils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The recipe matrix the crafting module compared grids with before the RecipeIndex, kept as the reference
+ * the index must agree with. Levels are lists of ingredient names, row by row, " " is an empty cell.
+ * <p>
+ * trim() and matches() are the old code. rotate() is not: the old one took the height as the length of a row,
+ * so it read the wrong cells of a level which is not square. The index rotates correctly, thus the reference
+ * has that fix too; on square levels both rotations give the same cells.
+ */
+public class ReferenceRecipeMatrix {
+    public static final String EMPTY_ROW = " ";
+
+    private final Map<String, List<String>> recipe;
+    private final int width;
+    private final int height;
+
+    public ReferenceRecipeMatrix(Map<String, List<String>> recipe, int width, int height) {
+        this.recipe = recipe;
+        this.width = width;
+        this.height = height;
+    }
+
+    public Map<String, List<String>> getRecipe() {
+        return recipe;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /*
+     * Delete the empty lines and columns, but not a single empty one between two occupied ones
+     */
+    public ReferenceRecipeMatrix trim() {
+        Map<String, List<String>> matrix = Maps.newHashMap();
+
+        List<Integer> counterLines = Lists.newArrayList();
+        List<Integer> counterColumns = Lists.newArrayList();
+        int countLevels = recipe.size();
+
+        for (int i = 0; i < height; i++) {
+            counterLines.add(0);
+            for (int j = 0; j < width; j++) {
+                for (List<String> currentLevel : recipe.values()) {
+                    if (currentLevel.get(i * width + j).equals(EMPTY_ROW)) {
+                        counterLines.set(i, counterLines.get(i) + 1);
+                    }
+                }
+            }
+        }
+
+        if (counterLines.size() == 3
+                && counterLines.get(1) == countLevels * width
+                && counterLines.get(0) < countLevels * width
+                && counterLines.get(2) < countLevels * width) {
+            counterLines.set(1, 0);
+        }
+
+        for (int i = 0; i < width; i++) {
+            counterColumns.add(0);
+            for (int j = 0; j < height; j++) {
+                for (List<String> currentLevel : recipe.values()) {
+                    if (currentLevel.get(j * width + i).equals(EMPTY_ROW)) {
+                        counterColumns.set(i, counterColumns.get(i) + 1);
+                    }
+                }
+            }
+        }
+
+        if (counterColumns.size() == 3
+                && counterColumns.get(1) == countLevels * height
+                && counterColumns.get(0) < countLevels * height
+                && counterColumns.get(2) < countLevels * height) {
+            counterColumns.set(1, 0);
+        }
+
+        if (counterLines.isEmpty() && counterColumns.isEmpty()) {
+            return this;
+        }
+
+        int countLines = 0;
+
+        for (int i = 0; i < height; i++) {
+            if (counterLines.get(i) < countLevels * width) {
+                for (String key : recipe.keySet()) {
+                    if (!matrix.containsKey(key)) {
+                        matrix.put(key, Lists.<String>newArrayList());
+                    }
+
+                    for (int j = 0; j < height; j++) {
+                        matrix.get(key).add(recipe.get(key).get(i * width + j));
+                    }
+                }
+                countLines++;
+            }
+        }
+
+        int countColumns = width;
+
+        for (int i = 0, tCounter = 0; i < countColumns; i++, tCounter++) {
+            if (counterColumns.get(tCounter) == countLevels * height) {
+                for (String key : recipe.keySet()) {
+                    if (!matrix.containsKey(key)) {
+                        matrix.put(key, Lists.<String>newArrayList());
+                    }
+
+                    for (int j = 0; j < countLines; j++) {
+                        matrix.get(key).remove(j * (countColumns - 1) + i);
+                    }
+                }
+                countColumns--;
+                i--;
+            }
+        }
+
+        return new ReferenceRecipeMatrix(matrix, countColumns, countLines);
+    }
+
+    /*
+     * Rotate clockwise
+     */
+    public ReferenceRecipeMatrix rotate() {
+        Map<String, List<String>> rotated = Maps.newHashMap();
+
+        for (String key : recipe.keySet()) {
+            List<String> cells = Lists.newArrayList();
+            rotated.put(key, cells);
+
+            for (int i = 0; i < width; i++) {
+                for (int j = 0; j < height; j++) {
+                    cells.add(recipe.get(key).get((height - j - 1) * width + i));
+                }
+            }
+        }
+
+        return new ReferenceRecipeMatrix(rotated, height, width);
+    }
+
+    /*
+     * Same levels with the same cells, in one of the four rotations
+     */
+    public boolean matches(ReferenceRecipeMatrix matrix) {
+        if (recipe.size() != matrix.recipe.size()) {
+            return false;
+        }
+
+        for (int i = 0; i < 4; i++) {
+            if (matrix.width != width && matrix.height != height) {
+                matrix = matrix.rotate();
+                continue;
+            }
+
+            boolean found = true;
+
+            for (String key : recipe.keySet()) {
+                if (getTrace(key) != matrix.getTrace(key) || !recipe.get(key).equals(matrix.recipe.get(key))) {
+                    found = false;
+                    break;
+                }
+            }
+
+            if (found) {
+                return true;
+            }
+
+            matrix = matrix.rotate();
+        }
+
+        return false;
+    }
+
+    private int getTrace(String level) {
+        List<String> cells = recipe.get(level);
+
+        if (cells == null) {
+            return 0;
+        }
+
+        StringBuilder trace = new StringBuilder();
+        int min = Math.min(width, height);
+
+        for (int i = 0; i < min; i++) {
+            trace.append(cells.get(i * min + i));
+        }
+
+        return trace.toString().hashCode();
+    }
+}